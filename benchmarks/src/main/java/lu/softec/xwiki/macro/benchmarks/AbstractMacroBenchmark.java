@@ -0,0 +1,121 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.rendering.block.Block;
+
+import lu.softec.xwiki.macro.ClassRunnerMacroParameters;
+import lu.softec.xwiki.macro.harness.ClassRunnerHarness;
+import lu.softec.xwiki.macro.harness.CountingClassLoaderCache;
+import lu.softec.xwiki.macro.harness.InMemoryWiki;
+
+/**
+ * Base of the benchmarks running the macro end to end in the {@link ClassRunnerHarness}. Each invocation is a request
+ * of its own, so the results memoized for the duration of a request are never reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AbstractMacroBenchmark
+{
+    /** The groupId of the sample classes of the harness. */
+    protected static final String GROUPID = "lu.softec.xwiki.macro.samples";
+
+    /** The base URL of the packages, never opened since the sample classes are found by the parent loader. */
+    protected static final String BASEURL = "file:/packages/";
+
+    /** The user of the requests. */
+    protected static final String USER = "xwiki:XWiki.User";
+
+    /** The wiki holding the profiles. */
+    protected InMemoryWiki wiki;
+
+    /** The harness running the macro. */
+    protected ClassRunnerHarness harness;
+
+    /**
+     * Create the wiki, declaring the package of the sample classes in the default profile, and the harness.
+     *
+     * @throws Exception if the harness could not be created
+     */
+    protected void setUpHarness() throws Exception
+    {
+        this.wiki = new InMemoryWiki("xwiki");
+        this.wiki.addPackage(InMemoryWiki.DEFAULT_PROFILE, GROUPID, "samples", "1.0", "jar");
+        this.harness = new ClassRunnerHarness(this.wiki, new CountingClassLoaderCache().asClassLoaderCache());
+    }
+
+    /**
+     * @param className the name of a sample class
+     * @return the parameters running that class from the default profile
+     */
+    protected static ClassRunnerMacroParameters getParameters(String className)
+    {
+        ClassRunnerMacroParameters parameters = new ClassRunnerMacroParameters();
+        parameters.setClassName(className);
+        parameters.setBaseURL(BASEURL);
+        return parameters;
+    }
+
+    /**
+     * Execute the macro in a request of its own.
+     *
+     * @param parameters the macro parameters
+     * @return the blocks produced by the macro
+     * @throws Exception if the macro failed
+     */
+    protected List<Block> execute(ClassRunnerMacroParameters parameters) throws Exception
+    {
+        return execute(parameters, false);
+    }
+
+    /**
+     * Execute the macro in a request of its own.
+     *
+     * @param parameters the macro parameters
+     * @param inline true to execute the macro inline
+     * @return the blocks produced by the macro
+     * @throws Exception if the macro failed
+     */
+    protected List<Block> execute(ClassRunnerMacroParameters parameters, boolean inline) throws Exception
+    {
+        this.harness.beginRequest(USER);
+        try {
+            return this.harness.execute(parameters, inline);
+        } finally {
+            this.harness.endRequest();
+        }
+    }
+}
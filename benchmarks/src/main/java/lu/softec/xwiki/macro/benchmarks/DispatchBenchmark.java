@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.benchmarks;
+
+import java.io.StringWriter;
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lu.softec.xwiki.macro.ClassRunnerMacroParameters;
+import lu.softec.xwiki.macro.internal.ClassRunnerDispatch;
+
+/**
+ * Per-call overhead of the entry point dispatch. {@link #resolvePerCall()} scans the public methods of the class on
+ * every call, as the macro did before entry points were cached, while {@link #cachedDispatch()} looks them up in a
+ * cache held like the one of the macro. Both then create an instance and run it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark
+{
+    @Param({"WriterRunner", "ArgumentsRunner", "ContextRunner", "ArgumentsContextRunner"})
+    public String className;
+
+    private final Map<Class<?>, SoftReference<ClassRunnerDispatch>> dispatchCache =
+        Collections.synchronizedMap(new WeakHashMap<Class<?>, SoftReference<ClassRunnerDispatch>>());
+
+    private final Map<Object, Object> xcontext = new Hashtable<Object, Object>();
+
+    private Class<?> klass;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        this.klass = Class.forName(AbstractMacroBenchmark.GROUPID + ".xwiki." + this.className);
+        this.dispatchCache.put(this.klass,
+            new SoftReference<ClassRunnerDispatch>(ClassRunnerDispatch.resolve(this.klass, this.xcontext.getClass())));
+        this.xcontext.put("user", AbstractMacroBenchmark.USER);
+    }
+
+    private String run(ClassRunnerDispatch dispatch) throws Exception
+    {
+        StringWriter writer = new StringWriter();
+        Object obj = this.klass.newInstance();
+        dispatch.prepare(obj, null, this.xcontext, new ClassRunnerMacroParameters());
+        dispatch.run(obj, writer, null, this.xcontext);
+        return writer.toString();
+    }
+
+    @Benchmark
+    public String resolvePerCall() throws Exception
+    {
+        return run(ClassRunnerDispatch.resolve(this.klass, this.xcontext.getClass()));
+    }
+
+    @Benchmark
+    public String cachedDispatch() throws Exception
+    {
+        return run(this.dispatchCache.get(this.klass).get());
+    }
+}
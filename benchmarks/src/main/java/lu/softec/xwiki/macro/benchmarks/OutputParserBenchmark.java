@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.benchmarks;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.xwiki.rendering.block.Block;
+
+import lu.softec.xwiki.macro.ClassRunnerMacroParameters;
+
+/**
+ * Insert the same payload with the verbatim and html output modes, which skip the parser, and with the xwiki/2.0
+ * parser, in block and inline mode.
+ */
+public class OutputParserBenchmark extends AbstractMacroBenchmark
+{
+    @Param({"verbatim", "html", "xwiki/2.0"})
+    public String parser;
+
+    @Param({"100", "10000", "1000000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean inline;
+
+    private ClassRunnerMacroParameters parameters;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        setUpHarness();
+        this.parameters = getParameters("ArgumentsRunner");
+        this.parameters.setParser(this.parser);
+        this.parameters.set("size", Integer.toString(this.size));
+    }
+
+    @Benchmark
+    public List<Block> execute() throws Exception
+    {
+        return execute(this.parameters, this.inline);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.benchmarks;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.xwiki.rendering.block.Block;
+
+import lu.softec.xwiki.macro.ClassRunnerMacroParameters;
+import lu.softec.xwiki.macro.harness.InMemoryWiki;
+
+/**
+ * Run a class from profiles of growing size: the default profile declares the given number of packages, and includes
+ * a chain of profiles of the given depth, each declaring one more package.
+ */
+public class ProfileBenchmark extends AbstractMacroBenchmark
+{
+    @Param({"1", "10", "100"})
+    public int packages;
+
+    @Param({"0", "1", "5"})
+    public int includes;
+
+    private ClassRunnerMacroParameters parameters;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        setUpHarness();
+        for (int i = 1; i < this.packages; i++) {
+            this.wiki.addPackage(InMemoryWiki.DEFAULT_PROFILE, "org.example", "package" + i, "1.0", "jar");
+        }
+        String profile = InMemoryWiki.DEFAULT_PROFILE;
+        for (int i = 1; i <= this.includes; i++) {
+            String included = "Included" + i;
+            this.wiki.addInclude(profile, included, null);
+            this.wiki.addPackage(included, "org.example", "included" + i, "1.0", "jar");
+            profile = included;
+        }
+        this.parameters = getParameters("WriterRunner");
+    }
+
+    @Benchmark
+    public List<Block> execute() throws Exception
+    {
+        return execute(this.parameters);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.loadtest;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * Class loader hiding the classes and resources of a package from its parent, so the class loaders built by the macro
+ * load them from the published jars rather than from the class path.
+ */
+public class HidingClassLoader extends ClassLoader
+{
+    private final String packagePrefix;
+
+    private final String resourcePrefix;
+
+    /**
+     * @param parent the class loader providing everything but the hidden package
+     * @param packageName the name of the hidden package, including its subpackages
+     */
+    public HidingClassLoader(ClassLoader parent, String packageName)
+    {
+        super(parent);
+        this.packagePrefix = packageName + '.';
+        this.resourcePrefix = packageName.replace('.', '/') + '/';
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+    {
+        if (name.startsWith(this.packagePrefix)) {
+            throw new ClassNotFoundException(name);
+        }
+        return super.loadClass(name, resolve);
+    }
+
+    @Override
+    public URL getResource(String name)
+    {
+        return name.startsWith(this.resourcePrefix) ? null : super.getResource(name);
+    }
+
+    @Override
+    public Enumeration<URL> getResources(String name) throws IOException
+    {
+        if (name.startsWith(this.resourcePrefix)) {
+            return Collections.enumeration(Collections.<URL>emptyList());
+        }
+        return super.getResources(name);
+    }
+}
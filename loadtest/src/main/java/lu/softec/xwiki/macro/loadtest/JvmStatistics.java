@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.loadtest;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+
+/**
+ * Garbage collection, class metadata and class loading statistics of the JVM at a point in time.
+ */
+public class JvmStatistics
+{
+    private final long collections;
+
+    private final long collectionTime;
+
+    private final long metaspace;
+
+    private final long loadedClasses;
+
+    private final long unloadedClasses;
+
+    private JvmStatistics(long collections, long collectionTime, long metaspace, long loadedClasses,
+        long unloadedClasses)
+    {
+        this.collections = collections;
+        this.collectionTime = collectionTime;
+        this.metaspace = metaspace;
+        this.loadedClasses = loadedClasses;
+        this.unloadedClasses = unloadedClasses;
+    }
+
+    /**
+     * @return the current statistics
+     */
+    public static JvmStatistics get()
+    {
+        long collections = 0;
+        long collectionTime = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(collector.getCollectionCount(), 0);
+            collectionTime += Math.max(collector.getCollectionTime(), 0);
+        }
+
+        // The class metadata is held by the Metaspace since Java 8, and by the permanent generation before
+        long metaspace = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().contains("Metaspace") || pool.getName().contains("Perm Gen")) {
+                metaspace += pool.getUsage().getUsed();
+            }
+        }
+
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        return new JvmStatistics(collections, collectionTime, metaspace, classLoading.getTotalLoadedClassCount(),
+            classLoading.getUnloadedClassCount());
+    }
+
+    /**
+     * @return the number of collections since the JVM started
+     */
+    public long getCollections()
+    {
+        return this.collections;
+    }
+
+    /**
+     * @return the time spent in collections since the JVM started, in milliseconds
+     */
+    public long getCollectionTime()
+    {
+        return this.collectionTime;
+    }
+
+    /**
+     * @return the memory used by the class metadata, in bytes
+     */
+    public long getMetaspace()
+    {
+        return this.metaspace;
+    }
+
+    /**
+     * @return the number of classes loaded since the JVM started
+     */
+    public long getLoadedClasses()
+    {
+        return this.loadedClasses;
+    }
+
+    /**
+     * @return the number of classes unloaded since the JVM started
+     */
+    public long getUnloadedClasses()
+    {
+        return this.unloadedClasses;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.loadtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.RawBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import lu.softec.xwiki.macro.harness.ClassRunnerHarness;
+import lu.softec.xwiki.macro.harness.CountingClassLoaderCache;
+import lu.softec.xwiki.macro.harness.InMemoryWiki;
+import lu.softec.xwiki.macro.harness.StubConfiguration;
+import lu.softec.xwiki.macro.internal.LatencyHistogram;
+import lu.softec.xwiki.macro.samples.xwiki.ArgumentsContextRunner;
+import lu.softec.xwiki.macro.samples.xwiki.ArgumentsRunner;
+import lu.softec.xwiki.macro.samples.xwiki.BlockRunner;
+import lu.softec.xwiki.macro.samples.xwiki.ContextRunner;
+import lu.softec.xwiki.macro.samples.xwiki.ListenerRunner;
+import lu.softec.xwiki.macro.samples.xwiki.Payload;
+import lu.softec.xwiki.macro.samples.xwiki.ReusableRunner;
+import lu.softec.xwiki.macro.samples.xwiki.WriterRunner;
+
+/**
+ * Render pages of ClassRunner macros from several threads, with the packages served by a local {@link PackageServer}
+ * and mirrored in a temporary directory, and report the throughput, the latency, the garbage collections and the
+ * growth of the class metadata.
+ * <p>
+ * The users share a release profile, including a chain of profiles, except the first one, whose own profile declares
+ * a SNAPSHOT package. While the pages are rendered, the release profile is periodically switched between two sets of
+ * packages, and new builds of the SNAPSHOT package are published, so each switch and each reload builds a class loader.
+ * <p>
+ * The settings are read from system properties:
+ * <ul>
+ * <li>loadtest.threads: the number of threads rendering pages, 8 by default</li>
+ * <li>loadtest.duration: the duration of the test in seconds, 60 by default</li>
+ * <li>loadtest.macros: the number of macros on each page, 10 by default</li>
+ * <li>loadtest.includes: the depth of the chain of profiles included by the release profile, 3 by default</li>
+ * <li>loadtest.users: the number of users, the first one using the SNAPSHOT profile, 4 by default</li>
+ * <li>loadtest.switchInterval: the delay between two switches of the release profile in seconds, 0 to never switch,
+ * 10 by default</li>
+ * <li>loadtest.reloadInterval: the delay between two builds of the SNAPSHOT package in seconds, 0 to never publish a
+ * new build, 10 by default</li>
+ * <li>loadtest.reportInterval: the delay between two reports in seconds, 5 by default</li>
+ * </ul>
+ * The system properties starting with "classrunner." configure the macro, as in xwiki.properties.
+ */
+public final class LoadTest
+{
+    private static final String SAMPLES = "lu.softec.xwiki.macro.samples";
+
+    private static final Class<?>[] SAMPLE_CLASSES = {WriterRunner.class, ArgumentsRunner.class,
+        ArgumentsContextRunner.class, ContextRunner.class, BlockRunner.class, ListenerRunner.class,
+        ReusableRunner.class, Payload.class};
+
+    private static final String[] PAGE_CLASSES = {"WriterRunner", "ArgumentsRunner", "ContextRunner",
+        "BlockRunner", "ListenerRunner", "ReusableRunner"};
+
+    private static final String RELEASE = "1.0";
+
+    private static final String SNAPSHOT = "1.0-SNAPSHOT";
+
+    private static final String SWITCH_PACKAGE = "switch";
+
+    /** The profile of the first user, named after the user. */
+    private static final String SNAPSHOT_PROFILE = "Snapshot";
+
+    private static final String ERROR_CLASS = "xwikirenderingerror";
+
+    private static final double MB = 1024 * 1024;
+
+    private final int threads = Integer.getInteger("loadtest.threads", 8);
+
+    private final int duration = Integer.getInteger("loadtest.duration", 60);
+
+    private final int macros = Integer.getInteger("loadtest.macros", 10);
+
+    private final int includes = Integer.getInteger("loadtest.includes", 3);
+
+    private final int users = Integer.getInteger("loadtest.users", 4);
+
+    private final int switchInterval = Integer.getInteger("loadtest.switchInterval", 10);
+
+    private final int reloadInterval = Integer.getInteger("loadtest.reloadInterval", 10);
+
+    private final int reportInterval = Integer.getInteger("loadtest.reportInterval", 5);
+
+    private final PackageServer server;
+
+    private final File mirror;
+
+    private final InMemoryWiki wiki = new InMemoryWiki("xwiki");
+
+    private final CountingClassLoaderCache loaderf = new CountingClassLoaderCache();
+
+    private final ClassRunnerHarness harness;
+
+    private final ClassLoader parent = new HidingClassLoader(LoadTest.class.getClassLoader(), SAMPLES);
+
+    private final String page;
+
+    private final LatencyHistogram intervalLatency = new LatencyHistogram();
+
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    private final AtomicLong pages = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicInteger switches = new AtomicInteger();
+
+    private final AtomicInteger reloads = new AtomicInteger();
+
+    private LoadTest() throws Exception
+    {
+        this.server = new PackageServer();
+        this.server.publish("samples", RELEASE, PackageBuilder.build(0, SAMPLE_CLASSES));
+        this.server.publish("samples", SNAPSHOT, PackageBuilder.build(0, SAMPLE_CLASSES));
+        this.server.publish(SWITCH_PACKAGE, RELEASE, PackageBuilder.build(0));
+
+        this.wiki.addPackage(InMemoryWiki.DEFAULT_PROFILE, SAMPLES, "samples", RELEASE, "jar");
+        String profile = InMemoryWiki.DEFAULT_PROFILE;
+        for (int i = 1; i <= this.includes; i++) {
+            String included = "Include" + i;
+            this.server.publish(included.toLowerCase(), RELEASE, PackageBuilder.build(0));
+            this.wiki.addInclude(profile, included, null);
+            this.wiki.addPackage(included, SAMPLES, included.toLowerCase(), RELEASE, "jar");
+            profile = included;
+        }
+        this.wiki.addPackage(SNAPSHOT_PROFILE, SAMPLES, "samples", SNAPSHOT, "jar");
+
+        this.mirror = File.createTempFile("classrunner-mirror", "");
+        this.mirror.delete();
+        this.harness = new ClassRunnerHarness(this.wiki, this.loaderf.asClassLoaderCache(), getConfiguration());
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.macros; i++) {
+            sb.append("{{classrunner className=\"").append(PAGE_CLASSES[i % PAGE_CLASSES.length])
+                .append("\" baseURL=\"").append(this.server.getBaseURL()).append("\"/}}\n\n");
+        }
+        this.page = sb.toString();
+    }
+
+    private StubConfiguration getConfiguration() throws Exception
+    {
+        StubConfiguration configuration = ClassRunnerHarness.getDefaultConfiguration()
+            .with("classrunner.mirror.directory", this.mirror.getPath())
+            .with("classrunner.snapshot.checkInterval", 1)
+            .with("classrunner.loader.idleTimeout", 30);
+        for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+            String key = property.getKey().toString();
+            if (key.startsWith("classrunner.")) {
+                String value = property.getValue().toString();
+                configuration.with(key, value.matches("-?\\d+") ? (Object) Integer.valueOf(value) : value);
+            }
+        }
+        return configuration;
+    }
+
+    private static String getUser(int index)
+    {
+        return "xwiki:XWiki." + ((index == 0) ? SNAPSHOT_PROFILE : "User" + index);
+    }
+
+    /**
+     * Run the load test with the settings given as system properties.
+     *
+     * @param args unused
+     * @throws Exception if the load test could not be started
+     */
+    public static void main(String[] args) throws Exception
+    {
+        LoadTest test = new LoadTest();
+        try {
+            test.run();
+        } finally {
+            test.stop();
+        }
+    }
+
+    private void run() throws Exception
+    {
+        System.out.println("Rendering pages of " + this.macros + " macros from " + this.threads + " threads for "
+            + this.duration + " s, packages served at " + this.server.getBaseURL());
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        if (this.switchInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    switchProfile();
+                }
+            }, this.switchInterval, this.switchInterval, TimeUnit.SECONDS);
+        }
+        if (this.reloadInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    reloadSnapshot();
+                }
+            }, this.reloadInterval, this.reloadInterval, TimeUnit.SECONDS);
+        }
+
+        final JvmStatistics start = JvmStatistics.get();
+        final long startTime = System.nanoTime();
+        final long deadline = startTime + TimeUnit.SECONDS.toNanos(this.duration);
+        List<Thread> drivers = new ArrayList<Thread>();
+        for (int i = 0; i < this.threads; i++) {
+            final int first = i;
+            Thread thread = new Thread("loadtest-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    render(first, deadline);
+                }
+            };
+            thread.setContextClassLoader(this.parent);
+            drivers.add(thread);
+            thread.start();
+        }
+
+        long last = startTime;
+        long lastPages = 0;
+        JvmStatistics lastStatistics = start;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(this.reportInterval),
+                TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1));
+            long now = System.nanoTime();
+            long total = this.pages.get();
+            JvmStatistics statistics = JvmStatistics.get();
+            report(String.format("%4ds", TimeUnit.NANOSECONDS.toSeconds(now - startTime)), total - lastPages,
+                now - last, this.intervalLatency, lastStatistics, statistics);
+            this.intervalLatency.reset();
+            last = now;
+            lastPages = total;
+            lastStatistics = statistics;
+        }
+
+        for (Thread thread : drivers) {
+            thread.join();
+        }
+        scheduler.shutdownNow();
+
+        report("total", this.pages.get(), System.nanoTime() - startTime, this.totalLatency, start,
+            JvmStatistics.get());
+        System.out.println(String.format("errors %d, profile switches %d, SNAPSHOT reloads %d, loaders built %d, "
+            + "jar downloads %d, jar checks %d", this.errors.get(), this.switches.get(), this.reloads.get(),
+            this.loaderf.getBuilds(), this.server.getDownloads(), this.server.getChecks()));
+    }
+
+    /**
+     * Render pages until the deadline, as each user in turn.
+     *
+     * @param first the index of the first user
+     * @param deadline the end of the test, in {@link System#nanoTime()} time
+     */
+    private void render(int first, long deadline)
+    {
+        for (int i = first; System.nanoTime() < deadline; i++) {
+            long start = System.nanoTime();
+            try {
+                this.harness.beginRequest(getUser(i % this.users));
+                this.errors.addAndGet(countErrors(this.harness.render(this.page)));
+            } catch (Exception e) {
+                this.errors.addAndGet(this.macros);
+            } finally {
+                this.harness.endRequest();
+            }
+            long elapsed = System.nanoTime() - start;
+            this.intervalLatency.record(elapsed);
+            this.totalLatency.record(elapsed);
+            this.pages.incrementAndGet();
+        }
+    }
+
+    private static int countErrors(XDOM xdom)
+    {
+        int count = 0;
+        for (Block block : xdom.getChildrenByType(Block.class, true)) {
+            String cssClass = block.getParameter("class");
+            if ((cssClass != null && cssClass.contains(ERROR_CLASS))
+                || (block instanceof RawBlock && ((RawBlock) block).getRawContent().contains(ERROR_CLASS))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Add or remove a package of the release profile, so the next pages need another class loader.
+     */
+    private void switchProfile()
+    {
+        if (this.switches.incrementAndGet() % 2 == 1) {
+            this.wiki.addPackage(InMemoryWiki.DEFAULT_PROFILE, SAMPLES, SWITCH_PACKAGE, RELEASE, "jar");
+        } else {
+            this.wiki.removePackage(InMemoryWiki.DEFAULT_PROFILE, SWITCH_PACKAGE);
+        }
+    }
+
+    /**
+     * Publish a new build of the SNAPSHOT package, which its class loader picks up at its next check.
+     */
+    private void reloadSnapshot()
+    {
+        try {
+            this.server.publish("samples", SNAPSHOT, PackageBuilder.build(this.reloads.incrementAndGet(),
+                SAMPLE_CLASSES));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void report(String label, long count, long nanos, LatencyHistogram latency, JvmStatistics from,
+        JvmStatistics to)
+    {
+        double seconds = nanos / 1e9;
+        System.out.println(String.format("%s  %8.1f pages/s %9.1f macros/s  latency p50 %4d ms p90 %4d ms "
+            + "p99 %4d ms  gc %4d (%5d ms)  metaspace %7.1f MB (%+.1f)  classes %6d loaded %6d unloaded", label,
+            count / seconds, count * this.macros / seconds, toMillis(latency.getPercentile(0.5)),
+            toMillis(latency.getPercentile(0.9)), toMillis(latency.getPercentile(0.99)),
+            to.getCollections() - from.getCollections(), to.getCollectionTime() - from.getCollectionTime(),
+            to.getMetaspace() / MB, (to.getMetaspace() - from.getMetaspace()) / MB,
+            to.getLoadedClasses() - from.getLoadedClasses(), to.getUnloadedClasses() - from.getUnloadedClasses()));
+    }
+
+    private static long toMillis(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private void stop()
+    {
+        this.server.stop();
+        File[] files = this.mirror.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.mirror.delete();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Build package jars in memory, from classes available on the class path.
+ */
+public final class PackageBuilder
+{
+    private PackageBuilder()
+    {
+    }
+
+    /**
+     * Build a jar holding the class files of some classes. The build number is recorded in the manifest, so each
+     * build of a SNAPSHOT has its own content.
+     *
+     * @param build the build number of the jar
+     * @param classes the classes to package, found through their own class loader
+     * @return the content of the jar
+     * @throws IOException if a class file could not be read
+     */
+    public static byte[] build(int build, Class<?>... classes) throws IOException
+    {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VERSION, Integer.toString(build));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream jar = new JarOutputStream(bytes, manifest);
+        byte[] buffer = new byte[8192];
+        for (Class<?> klass : classes) {
+            String name = klass.getName().replace('.', '/') + ".class";
+            InputStream in = klass.getClassLoader().getResourceAsStream(name);
+            if (in == null) {
+                throw new IOException("Class file not found: " + name);
+            }
+            try {
+                jar.putNextEntry(new JarEntry(name));
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    jar.write(buffer, 0, count);
+                }
+                jar.closeEntry();
+            } finally {
+                in.close();
+            }
+        }
+        jar.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server publishing package jars as a Maven repository would: each jar has an ETag, honours conditional
+ * requests, and its SHA-1 is published next to it.
+ */
+public class PackageServer
+{
+    private static final String CONTEXT = "/packages/";
+
+    private static final String CHECKSUM_SUFFIX = ".sha1";
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final Map<String, Artifact> artifacts = new ConcurrentHashMap<String, Artifact>();
+
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    private final AtomicInteger checks = new AtomicInteger();
+
+    /**
+     * A published jar.
+     */
+    private static final class Artifact
+    {
+        private final byte[] content;
+
+        private final String sha1;
+
+        Artifact(byte[] content, String sha1)
+        {
+            this.content = content;
+            this.sha1 = sha1;
+        }
+
+        String getETag()
+        {
+            return '"' + this.sha1 + '"';
+        }
+    }
+
+    /**
+     * Start a server on a free port of the loopback interface.
+     *
+     * @throws IOException if the server could not be started
+     */
+    public PackageServer() throws IOException
+    {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext(CONTEXT, new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                serve(exchange);
+            }
+        });
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    /**
+     * @return the base URL of the packages, as declared in the macro parameters
+     */
+    public String getBaseURL()
+    {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort() + CONTEXT;
+    }
+
+    /**
+     * Publish a jar, replacing any previous content.
+     *
+     * @param artifactId the artifactId of the package
+     * @param version the version of the package
+     * @param content the content of the jar
+     */
+    public void publish(String artifactId, String version, byte[] content)
+    {
+        this.artifacts.put(artifactId + "-" + version + ".jar", new Artifact(content, sha1(content)));
+    }
+
+    /**
+     * @return the number of jars downloaded so far
+     */
+    public int getDownloads()
+    {
+        return this.downloads.get();
+    }
+
+    /**
+     * @return the number of HEAD and conditional requests answered without the content so far
+     */
+    public int getChecks()
+    {
+        return this.checks.get();
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop()
+    {
+        this.server.stop(0);
+        this.executor.shutdown();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        String name = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+        boolean checksum = name.endsWith(CHECKSUM_SUFFIX);
+        Artifact artifact =
+            this.artifacts.get(checksum ? name.substring(0, name.length() - CHECKSUM_SUFFIX.length()) : name);
+
+        try {
+            if (artifact == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else if (checksum) {
+                send(exchange, (artifact.sha1 + "  " + name + "\n").getBytes("UTF-8"));
+            } else {
+                exchange.getResponseHeaders().set("ETag", artifact.getETag());
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    this.checks.incrementAndGet();
+                    exchange.getResponseHeaders().set("Content-Length", Integer.toString(artifact.content.length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else if (artifact.getETag().equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    this.checks.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    this.downloads.incrementAndGet();
+                    send(exchange, artifact.content);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, byte[] body) throws IOException
+    {
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static String sha1(byte[] content)
+    {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -63,6 +63,31 @@ public class ClassRunnerMacroParameters implements RawProperties
      */
     private String key = "clpkg";
 
+    /**
+     * @see {@link #getCrCache()}
+     */
+    private int crCache = 0;
+
+    /**
+     * @see {@link #isCrStream()}
+     */
+    private boolean crStream = false;
+
+    /**
+     * @see {@link #getCrMaxOutput()}
+     */
+    private int crMaxOutput = 0;
+
+    /**
+     * @see {@link #isCrParallel()}
+     */
+    private boolean crParallel = false;
+
+    /**
+     * @see {@link #getCrTimeout()}
+     */
+    private int crTimeout = -1;
+
      /**
      * @see {@link #set(String,Object)}
      */
@@ -123,7 +148,7 @@ public class ClassRunnerMacroParameters implements RawProperties
     /**
      * @param output indicate the output result has to be inserted back in the document.
      */
-    @PropertyDescription("indicate the parser ID of the parser to use to parse the output result")
+    @PropertyDescription("indicate the parser ID of the parser to use to parse the output result, or verbatim or html to insert it without parsing")
     public void setParser(String parser)
     {
         this.parser = parser;
@@ -171,6 +196,98 @@ public class ClassRunnerMacroParameters implements RawProperties
         return this.key;
     }
 
+    /**
+     * @param crCache the number of seconds the rendered output is reused by identical invocations, 0 to disable
+     *            caching. Ignored when the output is not inserted in the document.
+     */
+    @PropertyDescription("number of seconds the rendered output is cached for identical invocations. Default is 0, no caching")
+    public void setCrCache(int crCache)
+    {
+        this.crCache = crCache;
+    }
+
+    /**
+     * @return the number of seconds the rendered output is cached, 0 if caching is disabled.
+     */
+    public int getCrCache()
+    {
+        return this.crCache;
+    }
+
+    /**
+     * @param crStream indicate the output is parsed while it is produced by the class, instead of being buffered.
+     *            Ignored with the verbatim and html parsers, and for classes only accepting a StringWriter.
+     */
+    @PropertyDescription("indicate the output is parsed while it is produced by the class, instead of being buffered. Default is false")
+    public void setCrStream(boolean crStream)
+    {
+        this.crStream = crStream;
+    }
+
+    /**
+     * @return indicate the output is parsed while it is produced by the class.
+     */
+    public boolean isCrStream()
+    {
+        return this.crStream;
+    }
+
+    /**
+     * @param crMaxOutput the maximum number of characters the class may output, 0 for no limit. A class writing to a
+     *            generic Writer fails as soon as it exceeds it, the output of any other class is truncated.
+     */
+    @PropertyDescription("maximum number of characters the class may output before being aborted, or truncated if it does not write to a generic Writer. Default is 0, no limit")
+    public void setCrMaxOutput(int crMaxOutput)
+    {
+        this.crMaxOutput = crMaxOutput;
+    }
+
+    /**
+     * @return the maximum number of characters the class may output, 0 for no limit.
+     */
+    public int getCrMaxOutput()
+    {
+        return this.crMaxOutput;
+    }
+
+    /**
+     * @param crParallel indicate the macro may run in another thread, concurrently with the other macros of the page,
+     *            when the classrunner transformation is enabled. Its changes to the response are applied once it
+     *            completes.
+     */
+    @PropertyDescription("indicate the macro may run concurrently with the other macros of the page, when the classrunner transformation is enabled. Default is false")
+    public void setCrParallel(boolean crParallel)
+    {
+        this.crParallel = crParallel;
+    }
+
+    /**
+     * @return indicate the macro may run concurrently with the other macros of the page.
+     */
+    public boolean isCrParallel()
+    {
+        return this.crParallel;
+    }
+
+    /**
+     * @param crTimeout the number of seconds after which the class is abandoned, 0 for no limit, -1 for the
+     *            classrunner.timeout configuration. A limited class runs in another thread, and its changes to the
+     *            response are lost when it is abandoned.
+     */
+    @PropertyDescription("number of seconds after which the class is abandoned, 0 for no limit. Default is the classrunner.timeout configuration, or no limit")
+    public void setCrTimeout(int crTimeout)
+    {
+        this.crTimeout = crTimeout;
+    }
+
+    /**
+     * @return the number of seconds after which the class is abandoned, 0 for none, -1 for the default.
+     */
+    public int getCrTimeout()
+    {
+        return this.crTimeout;
+    }
+
     /**
      * Implements Raw Properties
      * @param string    Property name
@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declare that the instances of a class run by the {@link lu.softec.xwiki.macro.internal.ClassRunnerMacro} Macro may
+ * be reused across renders, instead of being created for each render. This avoids repeating the expensive
+ * initialization done in the constructor.
+ * <p>
+ * The setContext and getParser methods are still called before each render. A {@link Scope#SINGLETON} instance is
+ * used concurrently by several renders, so it must be thread-safe, including these methods. A {@link Scope#POOLED}
+ * instance is used by one render at a time, and is only returned to the pool when its run completes normally: an
+ * instance whose run throws is discarded, since it may have been left in an inconsistent state, and a new instance
+ * is created when a later render finds no idle one.
+ * <p>
+ * The instances are discarded along with their class as soon as its class loader is replaced, like when a SNAPSHOT
+ * package has changed, or evicted.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Reusable
+{
+    /**
+     * The ways of reusing instances.
+     */
+    enum Scope
+    {
+        /** A single thread-safe instance serves all renders. */
+        SINGLETON,
+        /** Idle instances are kept in a bounded pool, and each render borrows one. */
+        POOLED
+    }
+
+    /**
+     * @return the way instances are reused
+     */
+    Scope value() default Scope.POOLED;
+
+    /**
+     * @return the maximum number of idle instances kept in the pool of a {@link Scope#POOLED} class
+     */
+    int maxIdle() default 8;
+}
@@ -0,0 +1,452 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local on-disk mirror of the release jars served over HTTP. A jar is downloaded once, verified against the SHA-1
+ * published next to it when there is one, or refused without one if checksums are required, and stored under the
+ * name of its own SHA-1. Once per run, the local copy is revalidated with a conditional GET on the ETag of the
+ * download, and the class loaders are given its file: URL.
+ * <p>
+ * Exploded directories, SNAPSHOT packages and non HTTP URLs are not mirrored. When the server cannot be reached, the
+ * local copy is used, and when there is none the original URL is returned. A failed download is not retried before a
+ * delay, doubled on each new failure, so an unreachable server does not slow down every request.
+ * <p>
+ * The directory is restricted to its owner, and a local copy is hashed again before being used, so a copy that does
+ * not match the name it is stored under is downloaded again rather than loaded.
+ */
+public class ArtifactMirror
+{
+    private static final String INDEX_FILE = "index.properties";
+
+    private static final String JAR_SUFFIX = ".jar";
+
+    private static final String CHECKSUM_SUFFIX = ".sha1";
+
+    private static final String DIGEST = "SHA-1";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private static final int READ_TIMEOUT = 60000;
+
+    private static final long MIN_RETRY_DELAY = 10000;
+
+    private static final long MAX_RETRY_DELAY = 600000;
+
+    private final File directory;
+
+    /**
+     * The SHA-1 and ETag of the mirrored jars, by URL, persisted in the index file.
+     */
+    private final Properties index = new Properties();
+
+    /**
+     * The local URL of the jars already revalidated during this run.
+     */
+    private final ConcurrentMap<URL, URL> validated = new ConcurrentHashMap<URL, URL>();
+
+    /**
+     * Locks ensuring that a jar is downloaded by a single thread at a time.
+     */
+    private final ConcurrentMap<URL, Object> locks = new ConcurrentHashMap<URL, Object>();
+
+    /**
+     * The jars whose download failed without a local copy to fall back on, and when to retry them.
+     */
+    private final ConcurrentMap<URL, Failure> failures = new ConcurrentHashMap<URL, Failure>();
+
+    private final long minRetryDelay;
+
+    private final long maxRetryDelay;
+
+    private volatile boolean checksumRequired;
+
+    /**
+     * A failed download, retried after a delay.
+     */
+    private static final class Failure
+    {
+        private final long delay;
+
+        private final long retryTime;
+
+        Failure(long delay)
+        {
+            this.delay = delay;
+            this.retryTime = System.currentTimeMillis() + delay;
+        }
+    }
+
+    /**
+     * @param directory the directory holding the mirrored jars, created if needed
+     */
+    public ArtifactMirror(File directory)
+    {
+        this(directory, MIN_RETRY_DELAY, MAX_RETRY_DELAY);
+    }
+
+    /**
+     * @param directory the directory holding the mirrored jars, created if needed
+     * @param minRetryDelay the delay before retrying a failed download, in milliseconds
+     * @param maxRetryDelay the maximum delay before retrying a download failing repeatedly, in milliseconds
+     */
+    public ArtifactMirror(File directory, long minRetryDelay, long maxRetryDelay)
+    {
+        this.directory = directory;
+        this.minRetryDelay = minRetryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+        directory.mkdirs();
+        restrictToOwner(directory);
+        File indexFile = new File(directory, INDEX_FILE);
+        if (indexFile.isFile()) {
+            try {
+                InputStream in = new FileInputStream(indexFile);
+                try {
+                    index.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // A broken index only causes the jars to be downloaded again
+                index.clear();
+            }
+        }
+    }
+
+    /**
+     * @param checksumRequired true to refuse the jars published without a checksum, rather than trusting their
+     *            download
+     */
+    public void setChecksumRequired(boolean checksumRequired)
+    {
+        this.checksumRequired = checksumRequired;
+    }
+
+    /**
+     * Make a directory readable, writable and searchable by its owner only.
+     *
+     * @param directory the directory
+     */
+    static void restrictToOwner(File directory)
+    {
+        directory.setReadable(false, false);
+        directory.setWritable(false, false);
+        directory.setExecutable(false, false);
+        directory.setReadable(true, true);
+        directory.setWritable(true, true);
+        directory.setExecutable(true, true);
+    }
+
+    /**
+     * Get the URL the class loaders should use for a package.
+     *
+     * @param url the URL of the package, as declared by its profile
+     * @return the file: URL of the local copy of the jar, or the given URL if it is not mirrored
+     */
+    public URL localize(URL url)
+    {
+        if (!isMirrorable(url)) {
+            return url;
+        }
+
+        URL local = validated.get(url);
+        if (local != null) {
+            return local;
+        }
+        Failure failure = failures.get(url);
+        if (failure != null && System.currentTimeMillis() < failure.retryTime) {
+            return url;
+        }
+
+        Object lock = new Object();
+        Object existing = locks.putIfAbsent(url, lock);
+        if (existing != null) {
+            lock = existing;
+        }
+        synchronized (lock) {
+            local = validated.get(url);
+            failure = failures.get(url);
+            if (local == null && failure != null && System.currentTimeMillis() < failure.retryTime) {
+                // Failed again while waiting for the lock
+                local = url;
+            } else if (local == null) {
+                local = revalidate(url);
+                if (local != null) {
+                    failures.remove(url);
+                    validated.put(url, local);
+                } else {
+                    failures.put(url, new Failure((failure != null)
+                        ? Math.min(failure.delay * 2, maxRetryDelay) : minRetryDelay));
+                    local = url;
+                }
+            }
+        }
+        return local;
+    }
+
+    /**
+     * @param url the URL of a package
+     * @return true if the package is mirrored, false if it is always loaded from its URL
+     */
+    public boolean isMirrorable(URL url)
+    {
+        String protocol = url.getProtocol();
+        return (protocol.equals("http") || protocol.equals("https")) && url.getPath().endsWith(JAR_SUFFIX);
+    }
+
+    /**
+     * @param urls the URLs of some packages
+     * @return the URLs the class loaders should use for these packages, in the same order
+     */
+    public URL[] localize(URL[] urls)
+    {
+        URL[] result = new URL[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            result[i] = localize(urls[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Revalidate the local copy of a jar, downloading it when it is missing or has changed.
+     *
+     * @param url the URL of the jar
+     * @return the file: URL of its local copy, or null if the download failed and there is no local copy
+     */
+    private URL revalidate(URL url)
+    {
+        String key = url.toExternalForm();
+        String[] entry = getEntry(key);
+        File local = (entry != null) ? new File(directory, entry[0] + JAR_SUFFIX) : null;
+        if (local != null && !local.isFile()) {
+            local = null;
+        } else if (local != null && !entry[0].equalsIgnoreCase(hash(local))) {
+            // Altered since it was stored, never load it
+            local.delete();
+            local = null;
+        }
+
+        try {
+            URLConnection connection = url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            if (local != null && entry[1].length() > 0) {
+                connection.setRequestProperty("If-None-Match", entry[1]);
+            }
+            if (local != null && connection instanceof HttpURLConnection
+                && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return local.toURI().toURL();
+            }
+
+            String etag = connection.getHeaderField("ETag");
+            String sha1 = download(connection, url);
+            setEntry(key, sha1, etag);
+            return new File(directory, sha1 + JAR_SUFFIX).toURI().toURL();
+        } catch (IOException e) {
+            // Work offline from the local copy, or let the caller fall back to the remote URL
+            if (local != null) {
+                try {
+                    return local.toURI().toURL();
+                } catch (MalformedURLException e1) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Download a jar into the mirror, and verify it against its published checksum.
+     *
+     * @param connection the open connection to the jar
+     * @param url the URL of the jar
+     * @return the SHA-1 of the jar, which is also the name of its local copy
+     * @throws IOException if the download failed or the jar does not match its checksum
+     */
+    private String download(URLConnection connection, URL url) throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        File temp = File.createTempFile("download", ".tmp", directory);
+        try {
+            InputStream in = new DigestInputStream(connection.getInputStream(), digest);
+            try {
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int len;
+                    while ((len = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, len);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            String sha1 = toHex(digest.digest());
+            String expected = getPublishedChecksum(url);
+            if (expected == null && checksumRequired) {
+                throw new IOException(url + " has no published checksum");
+            }
+            if (expected != null && !expected.equalsIgnoreCase(sha1)) {
+                throw new IOException(url + " does not match its published checksum");
+            }
+
+            File target = new File(directory, sha1 + JAR_SUFFIX);
+            if (target.isFile() && !sha1.equals(hash(target))) {
+                target.delete();
+            }
+            if (!target.isFile() && !temp.renameTo(target)) {
+                throw new IOException("Unable to store " + url + " into " + target);
+            }
+            return sha1;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * @param file a local copy of a jar
+     * @return the SHA-1 of the file, or null if it could not be read
+     */
+    private static String hash(File file)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST);
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = in.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param url the URL of a jar
+     * @return the SHA-1 published next to the jar, or null if there is none
+     */
+    private String getPublishedChecksum(URL url)
+    {
+        try {
+            URLConnection connection = new URL(url.toExternalForm() + CHECKSUM_SUFFIX).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "US-ASCII"));
+            try {
+                String line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+                // Some repositories append the file name to the checksum
+                line = line.trim();
+                int space = line.indexOf(' ');
+                return (space > 0) ? line.substring(0, space) : line;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param key the URL of a jar
+     * @return the SHA-1 and the ETag of its local copy, or null if it has never been mirrored
+     */
+    private synchronized String[] getEntry(String key)
+    {
+        String value = index.getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        int space = value.indexOf(' ');
+        return (space < 0) ? new String[] {value, ""}
+            : new String[] {value.substring(0, space), value.substring(space + 1)};
+    }
+
+    private synchronized void setEntry(String key, String sha1, String etag)
+    {
+        index.setProperty(key, (etag != null) ? sha1 + ' ' + etag : sha1);
+        File indexFile = new File(directory, INDEX_FILE);
+        try {
+            File temp = File.createTempFile("index", ".tmp", directory);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                index.store(out, null);
+            } finally {
+                out.close();
+            }
+            indexFile.delete();
+            if (!temp.renameTo(indexFile)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // The jar is still mirrored, it would only be downloaded again on the next run
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.BulletedListBlock;
+import org.xwiki.rendering.block.DefinitionDescriptionBlock;
+import org.xwiki.rendering.block.DefinitionListBlock;
+import org.xwiki.rendering.block.DefinitionTermBlock;
+import org.xwiki.rendering.block.EmptyLinesBlock;
+import org.xwiki.rendering.block.FormatBlock;
+import org.xwiki.rendering.block.GroupBlock;
+import org.xwiki.rendering.block.HeaderBlock;
+import org.xwiki.rendering.block.HorizontalLineBlock;
+import org.xwiki.rendering.block.IdBlock;
+import org.xwiki.rendering.block.ImageBlock;
+import org.xwiki.rendering.block.LinkBlock;
+import org.xwiki.rendering.block.ListItemBlock;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.MacroMarkerBlock;
+import org.xwiki.rendering.block.MetaDataBlock;
+import org.xwiki.rendering.block.NewLineBlock;
+import org.xwiki.rendering.block.NumberedListBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.QuotationBlock;
+import org.xwiki.rendering.block.QuotationLineBlock;
+import org.xwiki.rendering.block.RawBlock;
+import org.xwiki.rendering.block.SectionBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.TableBlock;
+import org.xwiki.rendering.block.TableCellBlock;
+import org.xwiki.rendering.block.TableHeadCellBlock;
+import org.xwiki.rendering.block.TableRowBlock;
+import org.xwiki.rendering.block.VerbatimBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.listener.Format;
+import org.xwiki.rendering.listener.HeaderLevel;
+import org.xwiki.rendering.listener.ListType;
+import org.xwiki.rendering.listener.Listener;
+import org.xwiki.rendering.listener.MetaData;
+import org.xwiki.rendering.listener.reference.ResourceReference;
+import org.xwiki.rendering.syntax.Syntax;
+
+/**
+ * Build the blocks matching the events received, for the classes producing their output as listener events.
+ * Each begin event opens a new list of children, closed by the matching end event into a block added to the
+ * enclosing list.
+ */
+public class BlockGeneratorListener implements Listener
+{
+    private final LinkedList<List<Block>> stack = new LinkedList<List<Block>>();
+
+    public BlockGeneratorListener()
+    {
+        this.stack.push(new ArrayList<Block>());
+    }
+
+    /**
+     * @return the top level blocks built from the events received so far
+     */
+    public List<Block> getBlocks()
+    {
+        return this.stack.getLast();
+    }
+
+    private void begin()
+    {
+        this.stack.push(new ArrayList<Block>());
+    }
+
+    private List<Block> end()
+    {
+        // Tolerate unbalanced end events rather than losing the blocks already built
+        return (this.stack.size() > 1) ? this.stack.pop() : new ArrayList<Block>();
+    }
+
+    private void add(Block block)
+    {
+        this.stack.peek().add(block);
+    }
+
+    public void beginDocument(MetaData metadata)
+    {
+        begin();
+    }
+
+    public void endDocument(MetaData metadata)
+    {
+        // The document itself is the XDOM built by the caller, only its children are kept
+        List<Block> children = end();
+        this.stack.peek().addAll(children);
+    }
+
+    public void beginMetaData(MetaData metadata)
+    {
+        begin();
+    }
+
+    public void endMetaData(MetaData metadata)
+    {
+        add(new MetaDataBlock(end(), metadata));
+    }
+
+    public void beginGroup(Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endGroup(Map<String, String> parameters)
+    {
+        add(new GroupBlock(end(), parameters));
+    }
+
+    public void beginFormat(Format format, Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endFormat(Format format, Map<String, String> parameters)
+    {
+        add(new FormatBlock(end(), format, parameters));
+    }
+
+    public void beginParagraph(Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endParagraph(Map<String, String> parameters)
+    {
+        add(new ParagraphBlock(end(), parameters));
+    }
+
+    public void beginList(ListType listType, Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endList(ListType listType, Map<String, String> parameters)
+    {
+        if (listType == ListType.BULLETED) {
+            add(new BulletedListBlock(end(), parameters));
+        } else {
+            add(new NumberedListBlock(end(), parameters));
+        }
+    }
+
+    public void beginListItem()
+    {
+        begin();
+    }
+
+    public void endListItem()
+    {
+        add(new ListItemBlock(end()));
+    }
+
+    public void beginDefinitionList(Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endDefinitionList(Map<String, String> parameters)
+    {
+        add(new DefinitionListBlock(end(), parameters));
+    }
+
+    public void beginDefinitionTerm()
+    {
+        begin();
+    }
+
+    public void endDefinitionTerm()
+    {
+        add(new DefinitionTermBlock(end()));
+    }
+
+    public void beginDefinitionDescription()
+    {
+        begin();
+    }
+
+    public void endDefinitionDescription()
+    {
+        add(new DefinitionDescriptionBlock(end()));
+    }
+
+    public void beginTable(Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endTable(Map<String, String> parameters)
+    {
+        add(new TableBlock(end(), parameters));
+    }
+
+    public void beginTableRow(Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endTableRow(Map<String, String> parameters)
+    {
+        add(new TableRowBlock(end(), parameters));
+    }
+
+    public void beginTableCell(Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endTableCell(Map<String, String> parameters)
+    {
+        add(new TableCellBlock(end(), parameters));
+    }
+
+    public void beginTableHeadCell(Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endTableHeadCell(Map<String, String> parameters)
+    {
+        add(new TableHeadCellBlock(end(), parameters));
+    }
+
+    public void beginSection(Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endSection(Map<String, String> parameters)
+    {
+        add(new SectionBlock(end(), parameters));
+    }
+
+    public void beginHeader(HeaderLevel level, String id, Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endHeader(HeaderLevel level, String id, Map<String, String> parameters)
+    {
+        add(new HeaderBlock(end(), level, parameters, id));
+    }
+
+    public void beginMacroMarker(String name, Map<String, String> parameters, String content, boolean isInline)
+    {
+        begin();
+    }
+
+    public void endMacroMarker(String name, Map<String, String> parameters, String content, boolean isInline)
+    {
+        add(new MacroMarkerBlock(name, parameters, content, end(), isInline));
+    }
+
+    public void beginQuotation(Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endQuotation(Map<String, String> parameters)
+    {
+        add(new QuotationBlock(end(), parameters));
+    }
+
+    public void beginQuotationLine()
+    {
+        begin();
+    }
+
+    public void endQuotationLine()
+    {
+        add(new QuotationLineBlock(end()));
+    }
+
+    public void beginLink(ResourceReference reference, boolean isFreeStandingURI, Map<String, String> parameters)
+    {
+        begin();
+    }
+
+    public void endLink(ResourceReference reference, boolean isFreeStandingURI, Map<String, String> parameters)
+    {
+        add(new LinkBlock(end(), reference, isFreeStandingURI, parameters));
+    }
+
+    public void onNewLine()
+    {
+        add(new NewLineBlock());
+    }
+
+    public void onMacro(String id, Map<String, String> parameters, String content, boolean isInline)
+    {
+        add(new MacroBlock(id, parameters, content, isInline));
+    }
+
+    public void onWord(String word)
+    {
+        add(new WordBlock(word));
+    }
+
+    public void onSpace()
+    {
+        add(new SpaceBlock());
+    }
+
+    public void onSpecialSymbol(char symbol)
+    {
+        add(new SpecialSymbolBlock(symbol));
+    }
+
+    public void onId(String name)
+    {
+        add(new IdBlock(name));
+    }
+
+    public void onHorizontalLine(Map<String, String> parameters)
+    {
+        add(new HorizontalLineBlock(parameters));
+    }
+
+    public void onEmptyLines(int count)
+    {
+        add(new EmptyLinesBlock(count));
+    }
+
+    public void onVerbatim(String protectedString, boolean isInline, Map<String, String> parameters)
+    {
+        add(new VerbatimBlock(protectedString, parameters, isInline));
+    }
+
+    public void onRawText(String rawContent, Syntax syntax)
+    {
+        add(new RawBlock(rawContent, syntax));
+    }
+
+    public void onImage(ResourceReference reference, boolean isFreeStandingURI, Map<String, String> parameters)
+    {
+        add(new ImageBlock(reference, isFreeStandingURI, parameters));
+    }
+}
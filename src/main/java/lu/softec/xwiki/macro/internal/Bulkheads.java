@@ -0,0 +1,215 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Limits of the number of concurrent runs of each class and of each profile, so a single slow class cannot hold all
+ * the request threads. A run exceeding a limit waits a bounded time for a permit, and is rejected once that time has
+ * elapsed.
+ */
+public class Bulkheads
+{
+    private final ConcurrentMap<String, Semaphore> classPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    private final ConcurrentMap<String, Semaphore> profilePermits = new ConcurrentHashMap<String, Semaphore>();
+
+    private volatile int defaultClassLimit;
+
+    private volatile Map<String, Integer> classLimits = Collections.emptyMap();
+
+    private volatile int defaultProfileLimit;
+
+    private volatile Map<String, Integer> profileLimits = Collections.emptyMap();
+
+    private volatile long maxWait;
+
+    private final AtomicLong queued = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Permits held by a run, to be released when it completes.
+     */
+    public static final class Permit
+    {
+        private final Semaphore classPermit;
+
+        private final Semaphore profilePermit;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Permit(Semaphore classPermit, Semaphore profilePermit)
+        {
+            this.classPermit = classPermit;
+            this.profilePermit = profilePermit;
+        }
+
+        /**
+         * Release the permits. Only the first call has an effect, so a run in another thread and its caller may both
+         * release them.
+         */
+        public void release()
+        {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            if (profilePermit != null) {
+                profilePermit.release();
+            }
+            if (classPermit != null) {
+                classPermit.release();
+            }
+        }
+    }
+
+    /**
+     * Set the limits. Limits of zero or less mean unlimited. Changing the limits only affects the classes and
+     * profiles not run yet.
+     *
+     * @param defaultClassLimit the limit of the classes not listed in classLimits
+     * @param classLimits the limits of some classes, as comma separated name=limit pairs
+     * @param defaultProfileLimit the limit of the profiles not listed in profileLimits
+     * @param profileLimits the limits of some profiles, as comma separated name=limit pairs
+     * @param maxWait the maximum time to wait for a permit, in milliseconds
+     */
+    public void configure(int defaultClassLimit, String classLimits, int defaultProfileLimit, String profileLimits,
+        long maxWait)
+    {
+        this.defaultClassLimit = defaultClassLimit;
+        this.classLimits = parseLimits(classLimits);
+        this.defaultProfileLimit = defaultProfileLimit;
+        this.profileLimits = parseLimits(profileLimits);
+        this.maxWait = maxWait;
+    }
+
+    private static Map<String, Integer> parseLimits(String limits)
+    {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (String pair : StringUtils.split(StringUtils.defaultString(limits), ", ")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                try {
+                    result.put(pair.substring(0, eq), Integer.valueOf(pair.substring(eq + 1)));
+                } catch (NumberFormatException e) {
+                    // Ignore invalid limits
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Acquire the permits needed to run a class.
+     *
+     * @param className the class about to run
+     * @param profile the name of the profile providing the class
+     * @return the permits to release when the run completes, or null if the run is rejected
+     * @throws InterruptedException if the thread has been interrupted while waiting
+     */
+    public Permit acquire(String className, String profile) throws InterruptedException
+    {
+        Semaphore classPermit = getSemaphore(classPermits, classLimits, defaultClassLimit, className);
+        Semaphore profilePermit = getSemaphore(profilePermits, profileLimits, defaultProfileLimit, profile);
+
+        if (classPermit != null && !acquire(classPermit)) {
+            return null;
+        }
+        if (profilePermit != null && !acquire(profilePermit)) {
+            if (classPermit != null) {
+                classPermit.release();
+            }
+            return null;
+        }
+        return new Permit(classPermit, profilePermit);
+    }
+
+    private boolean acquire(Semaphore semaphore) throws InterruptedException
+    {
+        if (semaphore.tryAcquire()) {
+            return true;
+        }
+        queued.incrementAndGet();
+        if (semaphore.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    private static Semaphore getSemaphore(ConcurrentMap<String, Semaphore> semaphores, Map<String, Integer> limits,
+        int defaultLimit, String key)
+    {
+        if (key == null) {
+            return null;
+        }
+        Semaphore semaphore = semaphores.get(key);
+        if (semaphore == null) {
+            Integer limit = limits.get(key);
+            int permits = (limit != null) ? limit : defaultLimit;
+            if (permits <= 0) {
+                return null;
+            }
+            Semaphore newSemaphore = new Semaphore(permits);
+            semaphore = semaphores.putIfAbsent(key, newSemaphore);
+            if (semaphore == null) {
+                semaphore = newSemaphore;
+            }
+        }
+        return semaphore;
+    }
+
+    /**
+     * @return the number of runs that had to wait for a permit
+     */
+    public long getQueued()
+    {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of runs rejected after waiting for a permit
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * Reset the counters.
+     */
+    public void reset()
+    {
+        queued.set(0);
+        rejected.set(0);
+    }
+}
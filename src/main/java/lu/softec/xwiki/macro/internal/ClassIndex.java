@@ -0,0 +1,213 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Index of the classes contained in the packages of a class loader, with a bounded cache of the class names that
+ * could not be loaded. The index is only complete when all the packages are local jars or directories; otherwise
+ * only the cache of misses is used, and since a miss may then come from a transient failure to fetch a remote package,
+ * misses are only remembered for a short while.
+ */
+public class ClassIndex
+{
+    private static final String CLASS_SUFFIX = ".class";
+
+    /**
+     * The time in milliseconds a miss is remembered when the index is not complete.
+     */
+    private static final long INCOMPLETE_MISS_TTL = 30000L;
+
+    private final Set<String> classes = new HashSet<String>();
+
+    private boolean complete = true;
+
+    private final long missTtl;
+
+    /**
+     * The expiry time of each miss.
+     */
+    private final Map<String, Long> misses;
+
+    /**
+     * Index the classes of some packages.
+     *
+     * @param urls the URLs of the packages
+     * @param maxMisses the maximum number of class names kept in the cache of misses
+     */
+    public ClassIndex(URL[] urls, int maxMisses)
+    {
+        this(urls, maxMisses, INCOMPLETE_MISS_TTL);
+    }
+
+    /**
+     * @param urls the URLs of the packages
+     * @param maxMisses the maximum number of class names kept in the cache of misses
+     * @param missTtl the time in milliseconds a miss is remembered when the index is not complete
+     */
+    ClassIndex(URL[] urls, final int maxMisses, long missTtl)
+    {
+        this.missTtl = missTtl;
+        misses = new LinkedHashMap<String, Long>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+            {
+                return size() > maxMisses;
+            }
+        };
+
+        for (URL url : urls) {
+            if (!index(url)) {
+                complete = false;
+            }
+        }
+    }
+
+    /**
+     * @param url the URL of a package
+     * @return true if the package has been fully indexed
+     */
+    private boolean index(URL url)
+    {
+        if (!url.getProtocol().equals("file")) {
+            return false;
+        }
+
+        File file;
+        try {
+            file = new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        if (file.isDirectory()) {
+            indexDirectory(file, "");
+            return true;
+        } else if (file.isFile()) {
+            return indexJar(file);
+        }
+        return false;
+    }
+
+    private void indexDirectory(File directory, String prefix)
+    {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory()) {
+                indexDirectory(child, prefix + name + '.');
+            } else if (name.endsWith(CLASS_SUFFIX)) {
+                classes.add(prefix + name.substring(0, name.length() - CLASS_SUFFIX.length()));
+            }
+        }
+    }
+
+    private boolean indexJar(File file)
+    {
+        try {
+            JarFile jar = new JarFile(file);
+            try {
+                // Classes may also be loaded from the jars referenced by the manifest, which are not indexed
+                Manifest manifest = jar.getManifest();
+                boolean indexed = manifest == null
+                    || manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH) == null;
+                for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();) {
+                    String name = entries.nextElement().getName();
+                    if (name.endsWith(CLASS_SUFFIX)) {
+                        classes.add(name.substring(0, name.length() - CLASS_SUFFIX.length()).replace('/', '.'));
+                    }
+                }
+                return indexed;
+            } finally {
+                jar.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if all the packages have been indexed, so a class absent from the index is not in these packages
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * @param className the fully qualified name of a class
+     * @return true if the class is known to be in the packages
+     */
+    public boolean contains(String className)
+    {
+        return classes.contains(className);
+    }
+
+    /**
+     * @param className the fully qualified name of a class
+     * @return true if the class is known to be missing, from a previous failure to load it
+     */
+    public boolean isMissing(String className)
+    {
+        synchronized (misses) {
+            Long expiry = misses.get(className);
+            if (expiry == null) {
+                return false;
+            }
+            if (expiry < System.currentTimeMillis()) {
+                misses.remove(className);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remember that a class could not be loaded, for good when the index is complete, or for a short while otherwise.
+     *
+     * @param className the fully qualified name of the class
+     */
+    public void addMissing(String className)
+    {
+        synchronized (misses) {
+            misses.put(className, complete ? Long.MAX_VALUE : System.currentTimeMillis() + missTtl);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.listener.Listener;
+import org.xwiki.rendering.macro.MacroExecutionException;
+
+import lu.softec.xwiki.macro.ClassRunnerMacroParameters;
+import lu.softec.xwiki.macro.Reusable;
+
+/**
+ * Entry points of a runnable class, resolved once from its public methods.
+ */
+public class ClassRunnerDispatch
+{
+    private final Class<?> contextClass;
+
+    private boolean reusable;
+
+    private Method run1;
+
+    private Method run2;
+
+    private Method run3;
+
+    private Method setContext1;
+
+    private Method setContext2;
+
+    private Method getParser;
+
+    private Method render0;
+
+    private Method render1;
+
+    private Method render2;
+
+    private Method listen1;
+
+    private Method listen2;
+
+    private Method listen3;
+
+    private boolean structured;
+
+    private ClassRunnerDispatch(Class<?> contextClass)
+    {
+        this.contextClass = contextClass;
+    }
+
+    /**
+     * Scan the public methods of a class for the run, setContext and getParser entry points.
+     *
+     * @param klass the class to scan
+     * @param contextClass the class of the XWiki context that will be provided to the entry points
+     * @return the resolved entry points
+     * @throws MacroExecutionException if the class has no suitable run method
+     */
+    public static ClassRunnerDispatch resolve(Class<?> klass, Class<?> contextClass) throws MacroExecutionException
+    {
+        ClassRunnerDispatch dispatch = new ClassRunnerDispatch(contextClass);
+        Class<?> writerClass = StringWriter.class;
+        Class<?> argsClass = LinkedHashMap.class;
+
+        for (Method m : klass.getMethods()) {
+            if (m.getName().equals("run") && List.class.isAssignableFrom(m.getReturnType())) {
+                Class<?>[] types = m.getParameterTypes();
+                if (types.length == 0) {
+                    dispatch.render0 = m;
+                } else if (types.length == 1 && types[0].isAssignableFrom(contextClass)) {
+                    dispatch.render1 = m;
+                } else if (types.length == 2 && types[0].isAssignableFrom(argsClass)
+                        && types[1].isAssignableFrom(contextClass)) {
+                    dispatch.render2 = m;
+                }
+            } else if (m.getName().equals("run") && m.getParameterTypes().length > 0
+                    && m.getParameterTypes()[0] == Listener.class) {
+                Class<?>[] types = m.getParameterTypes();
+                if (types.length == 1) {
+                    dispatch.listen1 = m;
+                } else if (types.length == 2 && types[1].isAssignableFrom(contextClass)) {
+                    dispatch.listen2 = m;
+                } else if (types.length == 3 && types[1].isAssignableFrom(argsClass)
+                        && types[2].isAssignableFrom(contextClass)) {
+                    dispatch.listen3 = m;
+                }
+            } else if (m.getName().equals("run")) {
+                Class<?>[] types = m.getParameterTypes();
+                if (types.length == 1 && types[0].isAssignableFrom(writerClass)) {
+                    dispatch.run1 = m;
+                } else if (types.length == 2 && types[0].isAssignableFrom(writerClass)
+                        && types[1].isAssignableFrom(contextClass)) {
+                    dispatch.run2 = m;
+                } else if (types.length == 3 && types[0].isAssignableFrom(writerClass)
+                        && types[1].isAssignableFrom(argsClass)
+                        && types[2].isAssignableFrom(contextClass)) {
+                    dispatch.run3 = m;
+                }
+            } else if (m.getName().equals("setContext")) {
+                Class<?>[] types = m.getParameterTypes();
+                if (types.length == 1 && types[0].isAssignableFrom(contextClass)) {
+                    dispatch.setContext1 = m;
+                } else if (types.length == 2 && types[0].isAssignableFrom(argsClass)
+                        && types[1].isAssignableFrom(contextClass)) {
+                    dispatch.setContext2 = m;
+                }
+            } else if (m.getName().equals("getParser")) {
+                if (m.getParameterTypes().length == 0) {
+                    dispatch.getParser = m;
+                }
+            }
+        }
+
+        if (dispatch.setContext1 != null || dispatch.setContext2 != null) {
+            dispatch.structured = (dispatch.render0 != null || dispatch.listen1 != null);
+        } else {
+            dispatch.structured = (dispatch.render1 != null || dispatch.render2 != null
+                || dispatch.listen2 != null || dispatch.listen3 != null);
+        }
+
+        if (dispatch.run2 == null && dispatch.run3 == null && !dispatch.structured) {
+            throw new MacroExecutionException(
+                    "Unable to find the appropriate run(Writer,XWikiContext) or run(Writer,Map,XWikiContext) method in the class.");
+        }
+
+        dispatch.reusable = klass.isAnnotationPresent(Reusable.class);
+
+        return dispatch;
+    }
+
+    /**
+     * @param contextClass the class of the XWiki context about to be provided
+     * @return true if these entry points have been resolved for that context class
+     */
+    public boolean isResolvedFor(Class<?> contextClass)
+    {
+        return this.contextClass == contextClass;
+    }
+
+    /**
+     * @return true if the instances of the class may be reused, as declared by {@link Reusable}
+     */
+    public boolean isReusable()
+    {
+        return reusable;
+    }
+
+    /**
+     * @return true if the class produces its output as blocks or listener events rather than text
+     */
+    public boolean isStructured()
+    {
+        return structured;
+    }
+
+    /**
+     * @param writerClass the class of the writer about to be provided
+     * @return true if the run methods of the class accept that kind of writer
+     */
+    public boolean acceptsWriter(Class<?> writerClass)
+    {
+        for (Method m : new Method[] {run1, run2, run3}) {
+            if (m != null && !m.getParameterTypes()[0].isAssignableFrom(writerClass)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Provide the context to a new instance of the class, and retrieve the parser it requests for its output.
+     *
+     * @param obj the instance to prepare
+     * @param args the raw properties of the macro, or null if none were provided
+     * @param xcontext the XWiki context
+     * @param parameters the macro parameters, updated with the parser requested by the instance
+     * @throws Exception if any of the entry points fail
+     */
+    public void prepare(Object obj, Map<String, Object> args, Object xcontext, ClassRunnerMacroParameters parameters)
+        throws Exception
+    {
+        boolean hasArgs = (args != null);
+        if (!hasArgs) {
+            args = new LinkedHashMap<String, Object>();
+        }
+
+        if (setContext2 != null && (hasArgs || setContext1 == null)) {
+            setContext2.invoke(obj, args, xcontext);
+        } else if (setContext1 != null) {
+            setContext1.invoke(obj, xcontext);
+        }
+        if ((setContext2 != null || setContext1 != null) && getParser != null) {
+            String parser = (String) getParser.invoke(obj);
+            if (parser != null) {
+                parameters.setParser(parser);
+            }
+        }
+    }
+
+    /**
+     * Run a prepared instance of the class.
+     *
+     * @param obj the instance to run
+     * @param writer the writer receiving the output
+     * @param args the raw properties of the macro, or null if none were provided
+     * @param xcontext the XWiki context
+     * @throws Exception if any of the entry points fail
+     */
+    public void run(Object obj, Writer writer, Map<String, Object> args, Object xcontext) throws Exception
+    {
+        boolean hasArgs = (args != null);
+        if (!hasArgs) {
+            args = new LinkedHashMap<String, Object>();
+        }
+
+        if (setContext2 != null || setContext1 != null) {
+            run1.invoke(obj, writer);
+        } else {
+            if (run3 != null && (hasArgs || run2 == null)) {
+                run3.invoke(obj, writer, args, xcontext);
+            } else {
+                run2.invoke(obj, writer, xcontext);
+            }
+        }
+    }
+
+    /**
+     * Run a prepared instance of a class producing its output as blocks or as listener events.
+     *
+     * @param obj the instance to run
+     * @param args the raw properties of the macro, or null if none were provided
+     * @param xcontext the XWiki context
+     * @return the blocks produced by the instance
+     * @throws Exception if any of the entry points fail
+     */
+    @SuppressWarnings("unchecked")
+    public List<Block> render(Object obj, Map<String, Object> args, Object xcontext) throws Exception
+    {
+        boolean hasArgs = (args != null);
+        if (!hasArgs) {
+            args = new LinkedHashMap<String, Object>();
+        }
+
+        Object result;
+        BlockGeneratorListener listener = new BlockGeneratorListener();
+        if (setContext2 != null || setContext1 != null) {
+            if (render0 != null) {
+                result = render0.invoke(obj);
+            } else {
+                result = listen1.invoke(obj, listener);
+            }
+        } else if (render2 != null && (hasArgs || render1 == null)) {
+            result = render2.invoke(obj, args, xcontext);
+        } else if (render1 != null) {
+            result = render1.invoke(obj, xcontext);
+        } else if (listen3 != null && (hasArgs || listen2 == null)) {
+            result = listen3.invoke(obj, listener, args, xcontext);
+        } else {
+            result = listen2.invoke(obj, listener, xcontext);
+        }
+
+        if (result instanceof List) {
+            return (List<Block>) result;
+        }
+        return listener.getBlocks();
+    }
+}
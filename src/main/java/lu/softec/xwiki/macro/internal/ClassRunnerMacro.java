@@ -20,20 +20,43 @@
  */
 package lu.softec.xwiki.macro.internal;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.lang.reflect.Method;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.SoftReference;
 import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -42,27 +65,41 @@ import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.container.ApplicationContext;
 import org.xwiki.container.Container;
 import org.xwiki.container.servlet.ServletApplicationContext;
 import org.xwiki.container.servlet.ServletRequest;
 import org.xwiki.container.servlet.ServletResponse;
 import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.model.reference.EntityReferenceValueProvider;
+import org.xwiki.observation.ObservationManager;
 import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.RawBlock;
+import org.xwiki.rendering.block.VerbatimBlock;
 import org.xwiki.rendering.block.XDOM;
 import org.xwiki.rendering.macro.AbstractMacro;
 import org.xwiki.rendering.macro.MacroExecutionException;
 import org.xwiki.rendering.parser.ParseException;
 import org.xwiki.rendering.parser.Parser;
+import org.xwiki.rendering.syntax.Syntax;
 import org.xwiki.rendering.transformation.MacroTransformationContext;
 import org.xwiki.rendering.util.ParserUtils;
 
 import lu.softec.xwiki.classloader.ClassLoaderCache;
 import lu.softec.xwiki.macro.ClassRunnerMacroParameters;
+import lu.softec.xwiki.macro.NotIdempotent;
+import lu.softec.xwiki.macro.Reusable;
+import lu.softec.xwiki.macro.internal.InvocationTimer.Phase;
 
 /**
  * Example Macro.
@@ -70,12 +107,148 @@ import lu.softec.xwiki.macro.ClassRunnerMacroParameters;
 @Component
 @Named("classrunner")
 @Singleton
-public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters> {
+public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters> implements Initializable {
 
     /**
      * The description of the macro.
      */
     private static final String DESCRIPTION = "Execute a new POJO by executing its run(Writer,XWikiContext) or run(Writer, Map, XWikiContext)";
+    /**
+     * The parser Id inserting the output as verbatim text, without parsing it.
+     */
+    public static final String VERBATIM_PARSER = "verbatim";
+    /**
+     * The parser Id inserting the output as raw XHTML, without parsing it.
+     */
+    public static final String HTML_PARSER = "html";
+    /**
+     * The maximum number of rendered outputs kept in cache.
+     */
+    private static final int OUTPUT_CACHE_SIZE = 500;
+    /**
+     * The maximum number of resolved profile packages kept in cache.
+     */
+    private static final int PROFILE_CACHE_SIZE = 1000;
+    /**
+     * The size in characters of the pipe between a streaming class and its parser.
+     */
+    private static final int STREAM_BUFFER_SIZE = 16384;
+    /**
+     * The maximum number of outputs parsed concurrently in streaming mode.
+     */
+    private static final int MAX_STREAMING_PARSERS = 32;
+    /**
+     * The maximum number of classes running with a deadline concurrently.
+     */
+    private static final int MAX_DEADLINE_THREADS = 64;
+    /**
+     * The xwiki.properties property giving the default timeout in seconds.
+     */
+    private static final String TIMEOUT_PROPERTY = "classrunner.timeout";
+    /**
+     * The xwiki.properties property giving the directory of the local mirror of the release jars. An empty value
+     * disables the mirror. It defaults to a directory of the XWiki permanent directory, and the mirror is disabled when
+     * there is none.
+     */
+    private static final String MIRROR_PROPERTY = "classrunner.mirror.directory";
+    /**
+     * The xwiki.properties property requiring a SHA-1 to be published next to each mirrored jar. Without one, the jar
+     * is not mirrored but loaded from its URL.
+     */
+    private static final String MIRROR_CHECKSUM_PROPERTY = "classrunner.mirror.requireChecksum";
+    /**
+     * The xwiki.properties property giving the comma separated names of the profiles to warm up at startup, in
+     * addition to the default ones.
+     */
+    private static final String WARMUP_PROFILES_PROPERTY = "classrunner.warmup.profiles";
+    /**
+     * The xwiki.properties property giving the comma separated names of the classes of the default profile to preload
+     * at startup, in addition to those recorded during the previous run.
+     */
+    private static final String WARMUP_CLASSES_PROPERTY = "classrunner.warmup.classes";
+    /**
+     * The xwiki.properties property giving the file recording the classes run, to preload them on the next run. It
+     * defaults to a file in the XWiki permanent directory, and an empty value disables the persistence.
+     */
+    private static final String HOT_CLASSES_PROPERTY = "classrunner.warmup.file";
+    /**
+     * The xwiki.properties property giving the minimum delay in seconds between two checks for changes of the SNAPSHOT
+     * packages of a profile.
+     */
+    private static final String SNAPSHOT_CHECK_PROPERTY = "classrunner.snapshot.checkInterval";
+    /**
+     * The maximum number of class loaders of profiles with SNAPSHOT packages kept in cache.
+     */
+    private static final int SNAPSHOT_LOADER_CACHE_SIZE = 64;
+    /**
+     * The xwiki.properties property giving the default maximum number of concurrent runs of a class, 0 for unlimited.
+     */
+    private static final String CLASS_LIMIT_PROPERTY = "classrunner.limit.class";
+    /**
+     * The xwiki.properties property giving the maximum number of concurrent runs of some classes, as comma separated
+     * className=limit pairs.
+     */
+    private static final String CLASS_LIMITS_PROPERTY = "classrunner.limit.classes";
+    /**
+     * The xwiki.properties property giving the default maximum number of concurrent runs of the classes of a profile,
+     * 0 for unlimited.
+     */
+    private static final String PROFILE_LIMIT_PROPERTY = "classrunner.limit.profile";
+    /**
+     * The xwiki.properties property giving the maximum number of concurrent runs of the classes of some profiles, as
+     * comma separated profile=limit pairs.
+     */
+    private static final String PROFILE_LIMITS_PROPERTY = "classrunner.limit.profiles";
+    /**
+     * The xwiki.properties property giving the maximum time in milliseconds a run waits for a concurrency permit.
+     */
+    private static final String LIMIT_WAIT_PROPERTY = "classrunner.limit.wait";
+    /**
+     * The xwiki.properties property giving the number of class loaders of packages beyond which the least recently
+     * used ones are evicted.
+     */
+    private static final String MAX_LOADERS_PROPERTY = "classrunner.loader.max";
+    /**
+     * The xwiki.properties property giving the time in seconds after which an unused class loader is evicted.
+     */
+    private static final String LOADER_IDLE_PROPERTY = "classrunner.loader.idleTimeout";
+    /**
+     * The maximum time in milliseconds a request waits for the class loader being built by another request.
+     */
+    private static final long LOADER_BUILD_TIMEOUT = 60000L;
+    /**
+     * Execution context property prefix holding the document access helper of the request.
+     */
+    private static final String DOC_HELPER_PROPERTY = "classrunner.docHelper";
+    /**
+     * Execution context property holding the outputs of the invocations already rendered during the request. The
+     * blocks are a copy of those returned by the first invocation, and are cloned again for each identical invocation.
+     */
+    private static final String REQUEST_RESULTS_PROPERTY = "classrunner.results";
+    /**
+     * The time to live in milliseconds of the admin status and profile choices shared across requests.
+     */
+    private static final long PROFILE_RESOLUTION_TTL = 30000L;
+    /**
+     * The maximum number of missing class names remembered for each class loader.
+     */
+    private static final int MAX_MISSING_CLASSES = 1000;
+    /**
+     * The maximum number of recorded classes preloaded at startup.
+     */
+    private static final int MAX_HOT_CLASSES = 200;
+    /**
+     * The maximum number of classes recorded, to select the classes preloaded at startup.
+     */
+    private static final int MAX_RECORDED_CLASSES = 2000;
+    /**
+     * The time in milliseconds between two saves of the recorded classes, so they survive a crash.
+     */
+    private static final long HOT_CLASSES_SAVE_INTERVAL = 600000L;
+    /**
+     * The name under which the metrics are published over JMX.
+     */
+    private static final String METRICS_NAME = "lu.softec.xwiki.macro:type=ClassRunner";
     /**
      * Used to find the parser from syntax identifier.
      */
@@ -118,10 +291,122 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
      */
     @Inject
     private EntityReferenceSerializer<String> E;
+    /**
+     * Used to clone the execution context for classes running in another thread.
+     */
+    @Inject
+    private ExecutionContextManager executionContextManager;
+    /**
+     * Used to read the default timeout.
+     */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+    /**
+     * Used to register the listeners invalidating the caches.
+     */
+    @Inject
+    private ObservationManager observationManager;
+    /**
+     * Cache of the packages of the profiles.
+     */
+    private final ProfilePackageCache profileCache = new ProfilePackageCache(PROFILE_CACHE_SIZE);
+    /**
+     * Cache of the admin status and profile choices, shared across requests.
+     */
+    private final ProfileResolutionCache resolutionCache = new ProfileResolutionCache(PROFILE_RESOLUTION_TTL);
+    /**
+     * Cache of the parsers by syntax id.
+     */
+    private final ParserCache parserCache = new ParserCache();
+    /**
+     * Cache of the rendered output of the invocations requesting it.
+     */
+    private final RenderedOutputCache outputCache = new RenderedOutputCache(OUTPUT_CACHE_SIZE);
+    /**
+     * Threads parsing the output of the classes run in streaming mode.
+     */
+    private final ExecutorService parserExecutor = new ThreadPoolExecutor(0, MAX_STREAMING_PARSERS, 60L,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ClassRunner streaming parser");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    /**
+     * Used to run classes with a deadline in another thread.
+     */
+    private ContextPropagator contextPropagator;
+    /**
+     * Threads running the classes with a deadline. Abandoned classes keep their thread until they complete, so this
+     * pool is bounded to stop hung classes from consuming all threads.
+     */
+    private final ExecutorService deadlineExecutor = new ThreadPoolExecutor(0, MAX_DEADLINE_THREADS, 60L,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ClassRunner deadline runner");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    /**
+     * Tracks the class loaders of packages, and evicts the idle ones.
+     */
+    private final LoaderManager loaderManager = new LoaderManager();
+    /**
+     * Limits of the concurrent runs of each class and profile.
+     */
+    private final Bulkheads bulkheads = new Bulkheads();
+    /**
+     * CPU time consumed by each class.
+     */
+    private final CpuTimeRecorder cpuTimes = new CpuTimeRecorder();
+    /**
+     * Invocation counters and latencies of each phase.
+     */
+    private final ClassRunnerMetrics metrics = new ClassRunnerMetrics(parserCache, cpuTimes, bulkheads, loaderManager);
+    /**
+     * Local mirror of the release jars, or null if disabled.
+     */
+    private ArtifactMirror artifactMirror;
+    /**
+     * Class loaders of the profiles with SNAPSHOT packages, rebuilt only when these packages change.
+     */
+    private SnapshotLoaderCache snapshotLoaders;
+    /**
+     * Class loader builds in progress, shared by concurrent requests for the same packages.
+     */
+    private final SingleFlight<ClassLoader> loaderBuilds = new SingleFlight<ClassLoader>();
+    /**
+     * Index of the classes of each class loader. Loaders are weakly referenced, so an index is dropped along with
+     * its loader when the loader is replaced.
+     */
+    private final Map<ClassLoader, ClassIndex> classIndexes = new WeakHashMap<ClassLoader, ClassIndex>();
+    /**
+     * Loaders of release packages, shared by the profiles of all wikis having the same packages.
+     */
+    private final SharedLoaderRegistry sharedLoaders = new SharedLoaderRegistry();
+    /**
+     * The classes run, preloaded on the next run.
+     */
+    private HotClassRecorder hotClasses;
     /**
      * Used to clean result of the parser syntax.
      */
     private ParserUtils parserUtils = new ParserUtils();
+    /**
+     * Entry points of the classes already run. Classes are weakly referenced, and since the resolved methods
+     * refer back to their class, they are softly held, so reloaded classes and their loader could still be collected.
+     */
+    private final Map<Class<?>, SoftReference<ClassRunnerDispatch>> dispatchCache =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, SoftReference<ClassRunnerDispatch>>());
+    /**
+     * Reused instances of the {@link Reusable} classes. Pools are strongly held, so a singleton survives as long as
+     * its class is in use, and they are dropped along with the loader of their class when it is evicted or replaced.
+     */
+    private final ConcurrentMap<Class<?>, InstancePool> instancePools =
+            new ConcurrentHashMap<Class<?>, InstancePool>();
 
     /**
      * Create and initialize the descriptor of the macro.
@@ -130,6 +415,138 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
         super("ClassRunner", DESCRIPTION, ClassRunnerMacroParameters.class);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.component.phase.Initializable#initialize()
+     */
+    public void initialize() throws InitializationException {
+        super.initialize();
+
+        observationManager.addListener(profileCache);
+        observationManager.addListener(parserCache);
+        observationManager.addListener(resolutionCache);
+        contextPropagator = new ContextPropagator(execution, executionContextManager, container);
+        registerMetrics();
+
+        File defaultMirror = getPermanentFile("mirror");
+        String mirrorDirectory = configuration.getProperty(MIRROR_PROPERTY,
+                (defaultMirror != null) ? defaultMirror.getPath() : "");
+        if (!StringUtils.isEmpty(mirrorDirectory)) {
+            artifactMirror = new ArtifactMirror(new File(mirrorDirectory));
+            artifactMirror.setChecksumRequired(configuration.getProperty(MIRROR_CHECKSUM_PROPERTY, false));
+        }
+
+        loaderManager.setFactory(loaderf);
+        loaderManager.configure(configuration.getProperty(MAX_LOADERS_PROPERTY, 32),
+                configuration.getProperty(LOADER_IDLE_PROPERTY, 3600) * 1000L);
+
+        bulkheads.configure(configuration.getProperty(CLASS_LIMIT_PROPERTY, 0),
+                configuration.getProperty(CLASS_LIMITS_PROPERTY, ""),
+                configuration.getProperty(PROFILE_LIMIT_PROPERTY, 0),
+                configuration.getProperty(PROFILE_LIMITS_PROPERTY, ""),
+                configuration.getProperty(LIMIT_WAIT_PROPERTY, 1000));
+
+        snapshotLoaders = new SnapshotLoaderCache(SNAPSHOT_LOADER_CACHE_SIZE,
+                configuration.getProperty(SNAPSHOT_CHECK_PROPERTY, 5) * 1000L);
+
+        File defaultHotClasses = getPermanentFile("hotclasses.properties");
+        String hotClassesFile = configuration.getProperty(HOT_CLASSES_PROPERTY,
+                (defaultHotClasses != null) ? defaultHotClasses.getPath() : "");
+        hotClasses = new HotClassRecorder(!StringUtils.isEmpty(hotClassesFile) ? new File(hotClassesFile) : null,
+                MAX_RECORDED_CLASSES, HOT_CLASSES_SAVE_INTERVAL);
+    }
+
+    /**
+     * @param name the name of a file or directory kept by the macro across restarts
+     * @return that file in the XWiki permanent directory, or null if there is no permanent directory
+     */
+    private File getPermanentFile(String name) {
+        ApplicationContext applicationContext = (container != null) ? container.getApplicationContext() : null;
+        File directory = (applicationContext != null) ? applicationContext.getPermanentDirectory() : null;
+        return (directory != null) ? new File(new File(directory, "classrunner"), name) : null;
+    }
+
+    /**
+     * Resolve the default and configured profiles, build their class loaders, and preload the configured classes and
+     * the classes run the most during the previous run, so the first requests find warm caches. Failures are ignored,
+     * the classes concerned are simply loaded on demand.
+     */
+    public void warmUp() {
+        DocumentAccessHelper docHelper = new DocumentAccessHelper(documentAccessBridge, currentProvider, currentDocumentReferenceResolver, E);
+        ClassRunnerMacroParameters defaults = new ClassRunnerMacroParameters();
+        Object xcontext = execution.getContext().getProperty("xwikicontext");
+
+        List<String> profileNames = new ArrayList<String>();
+        profileNames.add("");
+        profileNames.add(defaults.getProfile());
+        profileNames.addAll(Arrays.asList(StringUtils.split(configuration.getProperty(WARMUP_PROFILES_PROPERTY, ""), ", ")));
+        for (String profileName : profileNames) {
+            try {
+                DocumentReference profile = docHelper.getProfile(profileName);
+                if (profile != null) {
+                    getClassLoader(profileCache.getPackages(docHelper, profile, defaults.getBaseURL()),
+                            E.serialize(profile));
+                }
+            } catch (Exception e) {
+                // Left to the first request
+            }
+        }
+
+        List<HotClassRecorder.HotClass> classes = new ArrayList<HotClassRecorder.HotClass>();
+        DocumentReference defaultProfile = docHelper.getProfile("");
+        if (defaultProfile != null) {
+            for (String className : StringUtils.split(configuration.getProperty(WARMUP_CLASSES_PROPERTY, ""), ", ")) {
+                classes.add(new HotClassRecorder.HotClass(E.serialize(defaultProfile), defaults.getBaseURL(), className));
+            }
+        }
+        classes.addAll(hotClasses.getHotClasses(MAX_HOT_CLASSES));
+        for (HotClassRecorder.HotClass hot : classes) {
+            try {
+                DocumentReference profile = docHelper.getProfile(hot.getProfile());
+                if (profile != null) {
+                    ClassLoader loader = getClassLoader(profileCache.getPackages(docHelper, profile, hot.getBaseURL()),
+                            E.serialize(profile));
+                    Class<?> klass = Class.forName(hot.getClassName(), true, loader);
+                    if (xcontext != null) {
+                        getDispatch(klass, xcontext.getClass());
+                    }
+                }
+            } catch (Exception e) {
+                // Left to the first request, which reports the failure properly
+            } catch (LinkageError e) {
+                // Left to the first request, which reports the failure properly
+            }
+        }
+    }
+
+    /**
+     * Persist the classes run the most, to preload them on the next run.
+     */
+    public void saveHotClasses() {
+        try {
+            hotClasses.save(MAX_HOT_CLASSES);
+        } catch (IOException e) {
+            // The next run simply starts cold
+        }
+    }
+
+    /**
+     * Publish the metrics over JMX, replacing those of a previous instance of the macro.
+     */
+    private void registerMetrics() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(METRICS_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (Exception e) {
+            // Metrics are optional, the macro works without them
+        }
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -139,6 +556,27 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
         return true;
     }
 
+    /**
+     * @return the cache of the parsers, giving access to its hit rate
+     */
+    public ParserCache getParserCache() {
+        return parserCache;
+    }
+
+    /**
+     * @return the CPU time in nanoseconds consumed by each class since startup
+     */
+    public Map<String, Long> getCpuTimes() {
+        return cpuTimes.getCpuTimes();
+    }
+
+    /**
+     * @return the invocation counters and latencies of each phase
+     */
+    public ClassRunnerMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Allows overriding the Document Access Bridge used (useful for unit tests).
      * 
@@ -148,18 +586,116 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
         this.documentAccessBridge = documentAccessBridge;
     }
 
+    /**
+     * Allows overriding the class loader factory used (useful for unit tests and benchmarks).
+     *
+     * @param loaderf the new class loader factory to use
+     */
+    public void setClassLoaderCache(ClassLoaderCache loaderf) {
+        this.loaderf = loaderf;
+        loaderManager.setFactory(loaderf);
+    }
+
+    /**
+     * Allows overriding the container used (useful for unit tests and benchmarks).
+     *
+     * @param container the new container to use
+     */
+    public void setContainer(Container container) {
+        this.container = container;
+    }
+
+    /**
+     * Allows overriding the execution used (useful for unit tests and load tests).
+     *
+     * @param execution the new execution to use
+     */
+    public void setExecution(Execution execution) {
+        this.execution = execution;
+    }
+
+    /**
+     * Allows overriding the configuration used, which must be done before initialization (useful for unit tests and
+     * load tests).
+     *
+     * @param configuration the new configuration to use
+     */
+    public void setConfiguration(ConfigurationSource configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Allows overriding the observation manager used, which must be done before initialization (useful for unit tests
+     * and load tests).
+     *
+     * @param observationManager the new observation manager to use
+     */
+    public void setObservationManager(ObservationManager observationManager) {
+        this.observationManager = observationManager;
+    }
+
+    /**
+     * Allows overriding the component manager used (useful for unit tests and benchmarks).
+     *
+     * @param componentManager the new component manager to use
+     */
+    public void setComponentManager(ComponentManager componentManager) {
+        this.componentManager = componentManager;
+    }
+
     /**
      * {@inheritDoc}
      * 
      * @see org.xwiki.rendering.macro.Macro#execute(Object, String, MacroTransformationContext)
      */
-    @SuppressWarnings("unchecked")
     public List<Block> execute(ClassRunnerMacroParameters parameters, String content, MacroTransformationContext context)
             throws MacroExecutionException {
-        DocumentAccessHelper docHelper = new DocumentAccessHelper(documentAccessBridge, currentProvider, currentDocumentReferenceResolver, E);
+        Future<List<Block>> scheduled =
+                ClassRunnerParallelTransformation.takeScheduled(execution.getContext(), context.getCurrentMacroBlock());
+        if (scheduled == null) {
+            return executeDirectly(parameters, content, context);
+        }
+
+        try {
+            return scheduled.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MacroExecutionException) {
+                throw (MacroExecutionException) e.getCause();
+            }
+            throw new MacroExecutionException("Server Internal Error", e.getCause());
+        } catch (InterruptedException e) {
+            scheduled.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new MacroExecutionException("Server Internal Error", e);
+        }
+    }
+
+    /**
+     * Execute the macro in the current thread.
+     *
+     * @param parameters the macro parameters
+     * @param content the macro content
+     * @param context the context of the macro transformation
+     * @return the result of the macro execution
+     * @throws MacroExecutionException if the macro failed
+     * @see #execute(ClassRunnerMacroParameters, String, MacroTransformationContext)
+     */
+    @SuppressWarnings("unchecked")
+    public List<Block> executeDirectly(ClassRunnerMacroParameters parameters, String content,
+            MacroTransformationContext context) throws MacroExecutionException {
+        DocumentAccessHelper docHelper = getDocumentAccessHelper();
 
         boolean showDetailedException = true;
-        String executionResult;
+        String executionResult = null;
+        XDOM parsedDom = null;
+        RenderedOutputCache.Key cacheKey = null;
+        RenderedOutputCache.Key requestKey = null;
+        Map<RenderedOutputCache.Key, List<Block>> requestResults = null;
+        boolean idempotent = false;
+        InvocationTimer timer = new InvocationTimer();
+        String className = null;
+        String profileName = null;
+        boolean failed = true;
 
         try {
             // Hide Exception to all except admins
@@ -173,20 +709,16 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
             // throw new MacroExecutionException("You must have programming rigths to use this macro.");
             // }
 
-            if (!(this.container.getApplicationContext() instanceof ServletApplicationContext)) {
-                throw new MacroExecutionException("This macro is currently implemented only for a Servlet Context.");
-            }
-
-            HttpServletRequest httpRequest = ((ServletRequest) container.getRequest()).getHttpServletRequest();
-            HttpServletResponse httpResponse = ((ServletResponse) container.getResponse()).getHttpServletResponse();
-
-            DocumentReference profile = docHelper.getProfile(httpRequest, httpResponse, key, parameters.getProfile());
+            timer.mark();
+            DocumentReference profile = getProfile(docHelper, parameters);
+            profileName = profile.getName();
+            timer.lap(Phase.PROFILE);
             
-            Collection<URL> pkgUrls = new ArrayList<URL>();
-            Collection<URL> dpkgUrls = new ArrayList<URL>();
-            List<String> groupIds = new ArrayList<String>();
-
-            docHelper.getPackageList(profile, baseURL, pkgUrls, dpkgUrls, groupIds);
+            ProfilePackages packages = profileCache.getPackages(docHelper, profile, baseURL);
+            timer.lap(Phase.PACKAGES);
+            Collection<URL> pkgUrls = packages.getPackageURLs();
+            Collection<URL> dpkgUrls = packages.getDebugPackageURLs();
+            List<String> groupIds = packages.getGroupIds();
 
             if( pkgUrls.isEmpty() && dpkgUrls.isEmpty() ) {
                 throw new MacroExecutionException("No package to load in " + profile + ", no chance to find a class to run!");
@@ -205,7 +737,12 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
             DocumentReference currentDoc = this.documentAccessBridge.getCurrentDocumentReference();
             String currentDatabase = currentProvider.getDefaultValue(EntityType.WIKI);
 
-            String className = parameters.getClassName();
+            timer.mark();
+            ClassLoader loader = getClassLoader(packages, E.serialize(profile));
+            ClassIndex index = getClassIndex(loader);
+            timer.lap(Phase.CLASSLOADER);
+
+            className = parameters.getClassName();
             if (StringUtils.isEmpty(className)) {
                 className = StringUtils.join(new String[]{currentDoc.getLastSpaceReference().getName(), ".", currentDoc.getName()});
             }
@@ -219,16 +756,90 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
             }
 
             if (!prefixed) {
-                className = StringUtils.join(new String[]{groupIds.get(0), ".", currentDatabase, ".", className});
+                // Prefer the groupId whose packages actually contain the class
+                String groupId = groupIds.get(0);
+                if (index != null) {
+                    for (String candidate : groupIds) {
+                        if (index.contains(StringUtils.join(new String[]{candidate, ".", currentDatabase, ".", className}))) {
+                            groupId = candidate;
+                            break;
+                        }
+                    }
+                }
+                className = StringUtils.join(new String[]{groupId, ".", currentDatabase, ".", className});
+            }
+
+            if (parameters.isOutput()) {
+                requestKey = new RenderedOutputCache.Key(className, loader, profile, parameters.getRawProperties(),
+                        parameters.getParser(), context.isInline());
+                requestResults = getRequestResults();
+                List<Block> previous = (requestResults != null) ? requestResults.get(requestKey) : null;
+                if (previous != null) {
+                    metrics.record(className, profileName, timer, 0, false);
+                    return RenderedOutputCache.cloneBlocks(previous);
+                }
+            }
+
+            if (parameters.getCrCache() > 0 && parameters.isOutput()) {
+                cacheKey = requestKey;
+                List<Block> cached = outputCache.get(cacheKey);
+                if (cached != null) {
+                    metrics.record(className, profileName, timer, 0, false);
+                    return cached;
+                }
+            }
+
+            Bulkheads.Permit permit = bulkheads.acquire(className, profileName);
+            if (permit == null) {
+                // Overloaded, serve a stale result when there is one
+                List<Block> stale = (requestKey != null) ? outputCache.getStale(requestKey) : null;
+                if (stale != null) {
+                    if (cacheKey != null) {
+                        outputCache.release(cacheKey);
+                    }
+                    metrics.record(className, profileName, timer, 0, false);
+                    return stale;
+                }
+                throw new MacroExecutionException("Too many concurrent runs of " + className + " in " + profileName);
             }
 
-            ClassLoader loader = getClassLoader(pkgUrls, dpkgUrls);
-            executionResult = execute(loader, className, parameters, xcontext);
+            int timeout = (parameters.getCrTimeout() >= 0) ? parameters.getCrTimeout()
+                    : configuration.getProperty(TIMEOUT_PROPERTY, 0);
+            Object output;
+            if (timeout > 0) {
+                // Released by the run itself, which keeps running when it is abandoned
+                output = runClass(loader, className, parameters, context, timeout, timer, permit);
+            } else {
+                try {
+                    output = runClass(loader, className, parameters, xcontext, context, timer);
+                } finally {
+                    permit.release();
+                }
+            }
+            if (output instanceof XDOM) {
+                parsedDom = (XDOM) output;
+            } else {
+                executionResult = (String) output;
+            }
+            failed = false;
+            idempotent = !loadClass(loader, className).isAnnotationPresent(NotIdempotent.class);
+            hotClasses.record(E.serialize(profile), baseURL, className);
+            if (hotClasses.isSaveDue()) {
+                saveHotClasses();
+            }
         } catch (Exception e) {
+            // Never cache the error output
+            if (cacheKey != null) {
+                outputCache.release(cacheKey);
+                cacheKey = null;
+            }
             if (showDetailedException) {
+                metrics.record(className, profileName, timer, 0, true);
                 throw new MacroExecutionException("Server Internal Error", e);
             } else {
-                executionResult = "\n{{html}}\n<span class=\"xwikirenderingerror\">Server Internal Error</span>\n{{/html}}\n";
+                // Built as blocks, since the output may not be parsed with the wiki syntax
+                parsedDom = new XDOM(Collections.<Block>singletonList(new RawBlock(
+                        "<span class=\"xwikirenderingerror\">Server Internal Error</span>", Syntax.XHTML_1_0)));
             }
         }
 
@@ -236,16 +847,33 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
             List<Block> result = Collections.emptyList();
 
             if (parameters.isOutput()) {
-                XDOM parsedDom = parseSourceSyntax(executionResult, parameters.getParser(), context);
+                timer.mark();
+                if (parsedDom == null) {
+                    parsedDom = parseSourceSyntax(executionResult, parameters.getParser(), context);
+                }
+                timer.lap(Phase.PARSE);
 
                 result = parsedDom.getChildren();
                 if (context.isInline()) {
                     this.parserUtils.removeTopLevelParagraph(result);
                 }
+
+                if (cacheKey != null) {
+                    outputCache.put(cacheKey, result, parameters.getCrCache() * 1000L);
+                }
+                if (requestResults != null && idempotent) {
+                    // The returned blocks are transformed and moved into the page, so the original output is kept apart
+                    requestResults.put(requestKey, RenderedOutputCache.cloneBlocks(result));
+                }
             }
 
+            metrics.record(className, profileName, timer, failed ? 0 : timer.getOutputChars(), failed);
             return result;
         } catch (Exception e) {
+            if (cacheKey != null) {
+                outputCache.release(cacheKey);
+            }
+            metrics.record(className, profileName, timer, 0, true);
             if (showDetailedException) {
                 throw new MacroExecutionException("Server Internal Error", e);
             } else {
@@ -254,100 +882,608 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
         }
     }
 
-    private ClassLoader getClassLoader(Collection<URL> pkgUrls, Collection<URL> dpkgUrls) {
-        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    /**
+     * Choose the profile of a macro in the current thread, while the response can still receive the cookie
+     * remembering the choice of an admin. The choice is kept for the request, so the macro finds it when it is run
+     * later in another thread, where the response is no longer available.
+     *
+     * @param parameters the macro parameters
+     * @throws MacroExecutionException if there is no profile at all
+     */
+    public void chooseProfile(ClassRunnerMacroParameters parameters) throws MacroExecutionException
+    {
+        getProfile(getDocumentAccessHelper(), parameters);
+    }
+
+    /**
+     * Choose the profile of a macro, once per request.
+     *
+     * @param docHelper the document access helper of the current request
+     * @param parameters the macro parameters
+     * @return the chosen profile
+     * @throws MacroExecutionException if there is no profile at all
+     */
+    private DocumentReference getProfile(DocumentAccessHelper docHelper, ClassRunnerMacroParameters parameters)
+            throws MacroExecutionException {
+        if (!(this.container.getApplicationContext() instanceof ServletApplicationContext)) {
+            throw new MacroExecutionException("This macro is currently implemented only for a Servlet Context.");
+        }
+
+        HttpServletRequest httpRequest = ((ServletRequest) container.getRequest()).getHttpServletRequest();
+        HttpServletResponse httpResponse = ((ServletResponse) container.getResponse()).getHttpServletResponse();
+
+        return docHelper.getProfile(httpRequest, httpResponse, parameters.getKey(), parameters.getProfile());
+    }
+
+    /**
+     * @return the outputs of the identical invocations already rendered during the current request, or null if there
+     *         is no current request
+     */
+    @SuppressWarnings("unchecked")
+    private Map<RenderedOutputCache.Key, List<Block>> getRequestResults() {
+        ExecutionContext executionContext = execution.getContext();
+        if (executionContext == null) {
+            return null;
+        }
+        synchronized (executionContext) {
+            Map<RenderedOutputCache.Key, List<Block>> results =
+                    (Map<RenderedOutputCache.Key, List<Block>>) executionContext.getProperty(REQUEST_RESULTS_PROPERTY);
+            if (results == null) {
+                results = Collections.synchronizedMap(new HashMap<RenderedOutputCache.Key, List<Block>>());
+                executionContext.setProperty(REQUEST_RESULTS_PROPERTY, results);
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Get the document access helper of the current request, wiki and user, so the admin check and the choice of the
+     * profiles are made once for all the macros of the request.
+     *
+     * @return the document access helper
+     */
+    private DocumentAccessHelper getDocumentAccessHelper() {
+        ExecutionContext executionContext = execution.getContext();
+        if (executionContext == null) {
+            return new DocumentAccessHelper(documentAccessBridge, currentProvider, currentDocumentReferenceResolver, E,
+                    resolutionCache);
+        }
+
+        String property = StringUtils.join(new String[]{DOC_HELPER_PROPERTY, ".",
+                currentProvider.getDefaultValue(EntityType.WIKI), ".", documentAccessBridge.getCurrentUser()});
+        DocumentAccessHelper docHelper = (DocumentAccessHelper) executionContext.getProperty(property);
+        if (docHelper == null) {
+            docHelper = new DocumentAccessHelper(documentAccessBridge, currentProvider, currentDocumentReferenceResolver,
+                    E, resolutionCache);
+            executionContext.setProperty(property, docHelper);
+        }
+        return docHelper;
+    }
+
+    /**
+     * Get the class loader of the packages of a profile, through the local mirror of the release jars.
+     *
+     * @param packages the packages of the profile
+     * @param user the serialized reference of the profile requesting the loader
+     * @return the class loader
+     * @throws MacroExecutionException if the loader could not be built
+     */
+    ClassLoader getClassLoader(ProfilePackages packages, String user) throws MacroExecutionException {
+        ClassLoader parent = Thread.currentThread().getContextClassLoader();
+        if (loaderManager.isEvictionDue()) {
+            evictLoaders();
+        }
+
+        String source = null;
+        if (artifactMirror != null && packages.getDebugPackageURLs().isEmpty()) {
+            // Found by the declared URLs, avoiding to localize each of them again
+            source = getLoaderKey(parent, packages.getPackageURLs(), packages.getDebugPackageURLs());
+            ClassLoader shared = sharedLoaders.getBySource(source, user);
+            if (shared != null) {
+                loaderManager.touch(shared);
+                return shared;
+            }
+        }
+
+        Collection<URL> pkgUrls = new ArrayList<URL>(packages.getPackageURLs());
+        if (artifactMirror != null) {
+            pkgUrls = new ArrayList<URL>(Arrays.asList(artifactMirror.localize(pkgUrls.toArray(new URL[0]))));
+            for (URL url : pkgUrls) {
+                if (artifactMirror.isMirrorable(url)) {
+                    // Not mirrored yet, the loader should not be found by the declared URLs once it is
+                    source = null;
+                    break;
+                }
+            }
+        }
+        return getClassLoader(pkgUrls, new ArrayList<URL>(packages.getDebugPackageURLs()), parent, user, source);
+    }
+
+    /**
+     * @param parent the parent of the loader
+     * @param pkgUrls the URLs of the release packages
+     * @param dpkgUrls the URLs of the SNAPSHOT packages
+     * @return the key identifying the loader of these packages
+     */
+    private static String getLoaderKey(ClassLoader parent, Collection<URL> pkgUrls, Collection<URL> dpkgUrls) {
+        StringBuilder sb = new StringBuilder().append(System.identityHashCode(parent));
+        for (URL url : pkgUrls) {
+            sb.append(' ').append(SharedLoaderRegistry.normalize(url));
+        }
+        sb.append(" |");
+        for (URL url : dpkgUrls) {
+            sb.append(' ').append(SharedLoaderRegistry.normalize(url));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the class loader of a set of packages. Concurrent requests for the same packages share a single build of the
+     * loader, so the same classes are not defined again by several loaders. Loaders of release packages are also
+     * shared by all the profiles, of any wiki, with the same packages.
+     *
+     * @param pkgUrls the URLs of the release packages
+     * @param dpkgUrls the URLs of the SNAPSHOT packages
+     * @param parent the parent of the loader
+     * @param user the serialized reference of the profile requesting the loader
+     * @param source the key of the loader by the declared URLs of the packages, or null if they were not localized
+     * @return the class loader
+     * @throws MacroExecutionException if the loader could not be built, or its build by another request did not
+     *             complete in time
+     */
+    private ClassLoader getClassLoader(final Collection<URL> pkgUrls, final Collection<URL> dpkgUrls,
+            final ClassLoader parent, final String user, final String source) throws MacroExecutionException {
+        final String key = getLoaderKey(parent, pkgUrls, dpkgUrls);
+
+        // SNAPSHOT loaders are already shared by the SNAPSHOT loader cache, which also checks them for changes
+        if (dpkgUrls.isEmpty()) {
+            ClassLoader shared = sharedLoaders.get(key, user);
+            if (shared != null) {
+                if (source != null) {
+                    sharedLoaders.register(key, source, user, shared);
+                }
+                loaderManager.touch(shared);
+                return shared;
+            }
+        }
+
+        try {
+            ClassLoader loader = loaderBuilds.get(key, new Callable<ClassLoader>() {
+                public ClassLoader call() {
+                    ClassLoader built = getClassLoader(pkgUrls, dpkgUrls, parent);
+                    // Registered before the build completes, so later requests find it instead of building it again
+                    if (dpkgUrls.isEmpty()) {
+                        built = sharedLoaders.register(key, source, user, built);
+                    }
+                    return built;
+                }
+            }, LOADER_BUILD_TIMEOUT);
+            // Also counts the profiles that waited for the build as users of the loader
+            if (dpkgUrls.isEmpty()) {
+                loader = sharedLoaders.register(key, source, user, loader);
+            }
+            loaderManager.touch(loader);
+            return loader;
+        } catch (TimeoutException e) {
+            throw new MacroExecutionException("Timed out waiting for the class loader built by another request", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MacroExecutionException("Interrupted while waiting for the class loader", e);
+        } catch (Exception e) {
+            throw new MacroExecutionException("Unable to build the class loader", e);
+        }
+    }
+
+    /**
+     * Drop the idle class loaders from all the caches, and close them.
+     */
+    private void evictLoaders() {
+        for (ClassLoader loader : loaderManager.evict()) {
+            dropLoader(loader);
+            loaderManager.close(loader);
+        }
+    }
+
+    /**
+     * Drop the class loaders replaced in the SNAPSHOT loader cache from all the caches, and retire them, so they are
+     * closed by {@link #evictLoaders()} once the classes still running from them are done.
+     *
+     * @param replaced the replaced loaders
+     */
+    private void evictLoaders(List<ClassLoader> replaced) {
+        for (ClassLoader loader : replaced) {
+            dropLoader(loader);
+            loaderManager.retire(loader);
+        }
+    }
+
+    /**
+     * Drop a class loader, and the instances, indexes and entry points of its classes, from all the caches.
+     *
+     * @param loader the evicted or replaced loader
+     */
+    private void dropLoader(ClassLoader loader) {
+        sharedLoaders.remove(loader);
+        snapshotLoaders.remove(loader);
+        synchronized (classIndexes) {
+            classIndexes.remove(loader);
+        }
+        for (Iterator<Class<?>> it = instancePools.keySet().iterator(); it.hasNext();) {
+            if (it.next().getClassLoader() == loader) {
+                it.remove();
+            }
+        }
+        synchronized (dispatchCache) {
+            for (Iterator<Class<?>> it = dispatchCache.keySet().iterator(); it.hasNext();) {
+                if (it.next().getClassLoader() == loader) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private ClassLoader getClassLoader(Collection<URL> pkgUrls, Collection<URL> dpkgUrls, ClassLoader parent) {
+        ClassLoader loader = parent;
         if (!dpkgUrls.isEmpty()) {
             pkgUrls.addAll(dpkgUrls);
+            loader = snapshotLoaders.getClassLoader(pkgUrls.toArray(new URL[0]), dpkgUrls.toArray(new URL[0]), loader,
+                    loaderManager);
+            evictLoaders(snapshotLoaders.takeReplaced());
+            return loader;
         }
         if (!pkgUrls.isEmpty()) {
-            loader = loaderf.getURLClassLoader(pkgUrls.toArray(new URL[0]), loader, !dpkgUrls.isEmpty());
+            loader = loaderManager.getURLClassLoader(pkgUrls.toArray(new URL[0]), loader, false);
         }
         return loader;
     }
 
     protected String execute(ClassLoader loader, String className, ClassRunnerMacroParameters parameters, Object xcontext) throws MacroExecutionException {
-        StringWriter stringWriter = new StringWriter();
-        boolean hasArgs = (parameters.getRawProperties() != null);
-        Map<String,Object> args = (hasArgs) ? parameters.getRawProperties() : new LinkedHashMap<String,Object>();
+        Class<?> klass = loadClass(loader, className);
+        ClassRunnerDispatch dispatch = getDispatch(klass, xcontext.getClass());
+        Object obj = newInstance(klass, dispatch, parameters, xcontext);
+        String text = execute(obj, dispatch, parameters, xcontext);
+        if (dispatch.isReusable()) {
+            getInstancePool(klass).release(obj);
+        }
+        return text;
+    }
 
-        Class<?> klass;
+    /**
+     * Run the class in the current thread, accounting for its CPU time.
+     *
+     * @param loader the class loader of the class
+     * @param className the fully qualified name of the class
+     * @param parameters the macro parameters
+     * @param xcontext the XWiki context
+     * @param context the context of the macro transformation.
+     * @param timer receives the durations of the loading and of the run of the class
+     * @return the output of the class, either as text or already parsed
+     * @throws MacroExecutionException if the class failed to run
+     */
+    private Object runClass(ClassLoader loader, String className, ClassRunnerMacroParameters parameters,
+            Object xcontext, MacroTransformationContext context, InvocationTimer timer)
+            throws MacroExecutionException {
+        long cpuStart = cpuTimes.start();
+        timer.mark();
         try {
-            klass = loader.loadClass(className);
-        } catch (ClassNotFoundException e) {
-            throw new MacroExecutionException(e.getMessage(), e);
+            Class<?> klass = loadClass(loader, className);
+            ClassRunnerDispatch dispatch = getDispatch(klass, xcontext.getClass());
+            timer.lap(Phase.LOADCLASS);
+            Object obj = newInstance(klass, dispatch, parameters, xcontext);
+
+            Object output;
+            if (dispatch.isStructured()) {
+                output = render(obj, dispatch, parameters, xcontext);
+            } else if (parameters.isOutput() && parameters.isCrStream()) {
+                output = executeStreaming(obj, dispatch, parameters, xcontext, context, timer);
+            } else {
+                String text = execute(obj, dispatch, parameters, xcontext);
+                timer.addOutput(text.length());
+                output = text;
+            }
+            // A failed instance may be in an inconsistent state, so only successful ones are reused
+            if (dispatch.isReusable()) {
+                getInstancePool(klass).release(obj);
+            }
+            return output;
+        } finally {
+            timer.lap(Phase.RUN);
+            cpuTimes.record(className, cpuStart);
         }
+    }
 
-        Method[] methods = klass.getMethods();
-        Method run1 = null;
-        Method run2 = null;
-        Method run3 = null;
-        Method setContext1 = null;
-        Method setContext2 = null;
-        Method getParser = null;
-        for (Method m : methods) {
-            if (m.getName().equals("run")) {
-                Class<?>[] types = m.getParameterTypes();
-                if (types.length == 1 && types[0].isAssignableFrom(stringWriter.getClass())) {
-                    run1 = m;
-                } else if (types.length == 2 && types[0].isAssignableFrom(stringWriter.getClass())
-                        && types[1].isAssignableFrom(xcontext.getClass())) {
-                    run2 = m;
-                } else if( types.length == 3 && types[0].isAssignableFrom(stringWriter.getClass())
-                        && types[1].isAssignableFrom(args.getClass())
-                        && types[2].isAssignableFrom(xcontext.getClass())) {
-                    run3 = m;
-                }
-            } else if (m.getName().equals("setContext")) {
-                Class<?>[] types = m.getParameterTypes();
-                if (types.length == 1 && types[0].isAssignableFrom(xcontext.getClass())) {
-                    setContext1 = m;
-                } else if (types.length == 2 && types[0].isAssignableFrom(args.getClass())
-                        && types[1].isAssignableFrom(xcontext.getClass())) {
-                    setContext2 = m;
-                }
-            } else if (m.getName().equals("getParser")) {
-                Class<?>[] types = m.getParameterTypes();
-                if (types.length == 0) {
-                    getParser = m;
+    /**
+     * Run the class in another thread, with a copy of the contexts, and abandon it when it exceeds its deadline. An
+     * abandoned class keeps its permit until it actually completes, so hung classes count against the limits of their
+     * class and profile.
+     * <p>
+     * The changes the class makes to the response are applied once it completes in time, and lost otherwise.
+     *
+     * @param loader the class loader of the class
+     * @param className the fully qualified name of the class
+     * @param parameters the macro parameters
+     * @param context the context of the macro transformation.
+     * @param timeout the maximum duration of the run, in seconds
+     * @param timer receives the durations of the loading and of the run of the class, when it completes in time
+     * @param permit the permit of the run, released when the class completes
+     * @return the output of the class, either as text or already parsed
+     * @throws MacroExecutionException if the class failed to run or exceeded its deadline
+     */
+    private Object runClass(final ClassLoader loader, final String className,
+            final ClassRunnerMacroParameters parameters, final MacroTransformationContext context, int timeout,
+            InvocationTimer timer, final Bulkheads.Permit permit) throws MacroExecutionException {
+        // The abandoned class may still be running, so it gets a timer of its own
+        final InvocationTimer runTimer = new InvocationTimer();
+        final AtomicBoolean started = new AtomicBoolean();
+        PropagatedTask<Object> future;
+        try {
+            future = contextPropagator.propagate(new Callable<Object>() {
+                public Object call() throws Exception {
+                    started.set(true);
+                    try {
+                        return runClass(loader, className, parameters,
+                                execution.getContext().getProperty("xwikicontext"), context, runTimer);
+                    } finally {
+                        permit.release();
+                    }
                 }
+            });
+            deadlineExecutor.execute(future);
+        } catch (ExecutionContextException e) {
+            permit.release();
+            throw new MacroExecutionException("Failed to clone the execution context", e);
+        } catch (RejectedExecutionException e) {
+            permit.release();
+            throw new MacroExecutionException("Too many running classes, " + className + " has not been run", e);
+        }
+
+        try {
+            Object output = future.get(timeout, TimeUnit.SECONDS);
+            timer.addAll(runTimer);
+            return output;
+        } catch (TimeoutException e) {
+            abandon(future, started, permit);
+            throw new MacroExecutionException(className + " has been abandoned after running for " + timeout
+                    + " seconds", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MacroExecutionException) {
+                throw (MacroExecutionException) e.getCause();
             }
-            if( run2 != null && run3 != null && setContext1 != null && setContext2 != null && getParser != null)
-                break;
+            throw new MacroExecutionException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            abandon(future, started, permit);
+            Thread.currentThread().interrupt();
+            throw new MacroExecutionException(className + " has been interrupted", e);
         }
+    }
 
-        if (run2 == null && run3 == null) {
-            throw new MacroExecutionException(
-                    "Unable to find the appropriate run(Writer,XWikiContext) or run(Writer,Map,XWikiContext) method in the class.");
+    /**
+     * Interrupt a run exceeding its deadline. Its permit is released at once only if it never started, otherwise
+     * the run releases it when it completes.
+     *
+     * @param future the run
+     * @param started set by the run when it starts
+     * @param permit the permit of the run
+     */
+    private void abandon(Future<Object> future, AtomicBoolean started, Bulkheads.Permit permit) {
+        if (future.cancel(true) && !started.get()) {
+            permit.release();
         }
+    }
 
+    /**
+     * Create a new instance of the class, or reuse one if the class allows it, and provide it the context.
+     *
+     * @param klass the class to run
+     * @param dispatch the entry points of the class
+     * @param parameters the macro parameters, updated with the parser requested by the instance
+     * @param xcontext the XWiki context
+     * @return the prepared instance
+     * @throws MacroExecutionException if the instance could not be created or prepared
+     */
+    private Object newInstance(Class<?> klass, ClassRunnerDispatch dispatch, ClassRunnerMacroParameters parameters,
+            Object xcontext) throws MacroExecutionException {
         try {
-            Object obj = klass.newInstance();
-            if(setContext2 != null && (hasArgs || setContext1 == null)) {
-                setContext2.invoke(obj, args, xcontext);
-            } else if(setContext1 != null) {
-                setContext1.invoke(obj, xcontext);
-            }
-            if(setContext2 != null || setContext1 != null) {
-                if(getParser != null) {
-                    String parser = null;
-                    parser = (String) getParser.invoke(obj);
-                    if(parser != null) {
-                        parameters.setParser(parser);
-                    }
-                }
-                run1.invoke(obj, stringWriter);
-            } else {
-                if(run3 != null && (hasArgs || run2 == null)) {
-                    run3.invoke(obj, stringWriter, args, xcontext);
-                } else {
-                    run2.invoke(obj, stringWriter, xcontext);
-                }
+            Object obj = dispatch.isReusable() ? getInstancePool(klass).acquire() : klass.newInstance();
+            dispatch.prepare(obj, parameters.getRawProperties(), xcontext, parameters);
+            return obj;
+        } catch (Exception e) {
+            throw new MacroExecutionException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param klass a class annotated with {@link Reusable}
+     * @return the pool of the reused instances of the class, created on first use
+     */
+    private InstancePool getInstancePool(Class<?> klass) {
+        InstancePool pool = instancePools.get(klass);
+        if (pool == null) {
+            pool = new InstancePool(klass, klass.getAnnotation(Reusable.class));
+            InstancePool existing = instancePools.putIfAbsent(klass, pool);
+            if (existing != null) {
+                pool = existing;
             }
+        }
+        return pool;
+    }
+
+    /**
+     * Run a prepared instance writing its output as text. When the class does not accept a generic Writer, it cannot
+     * be stopped at the maximum output size, so its output is truncated once it completes.
+     *
+     * @param obj the prepared instance
+     * @param dispatch the entry points of the class
+     * @param parameters the macro parameters
+     * @param xcontext the XWiki context
+     * @return the output of the class
+     * @throws MacroExecutionException if the class failed to run
+     */
+    private String execute(Object obj, ClassRunnerDispatch dispatch, ClassRunnerMacroParameters parameters,
+            Object xcontext) throws MacroExecutionException {
+        StringWriter stringWriter = new StringWriter();
+
+        try {
+            dispatch.run(obj, limitOutput(stringWriter, dispatch, parameters), parameters.getRawProperties(), xcontext);
         } catch (Exception e) {
             throw new MacroExecutionException(e.getMessage(), e);
         }
 
-        return (stringWriter.toString());
+        String text = stringWriter.toString();
+        if (parameters.getCrMaxOutput() > 0 && text.length() > parameters.getCrMaxOutput()) {
+            text = text.substring(0, parameters.getCrMaxOutput());
+        }
+        return text;
+    }
+
+    /**
+     * Run a prepared instance producing its output as blocks or as listener events, skipping any parsing.
+     *
+     * @param obj the prepared instance
+     * @param dispatch the entry points of the class
+     * @param parameters the macro parameters
+     * @param xcontext the XWiki context
+     * @return the output of the class
+     * @throws MacroExecutionException if the class failed to run
+     */
+    private XDOM render(Object obj, ClassRunnerDispatch dispatch, ClassRunnerMacroParameters parameters,
+            Object xcontext) throws MacroExecutionException {
+        try {
+            List<Block> blocks = dispatch.render(obj, parameters.getRawProperties(), xcontext);
+            return new XDOM((blocks != null) ? blocks : Collections.<Block>emptyList());
+        } catch (Exception e) {
+            throw new MacroExecutionException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Run a prepared instance while its output is parsed in another thread, with a copy of the contexts. Fall back to
+     * parsing the buffered output when no parser thread is available, when the contexts could not be copied, or when
+     * the class does not accept a generic Writer.
+     *
+     * @param obj the prepared instance
+     * @param dispatch the entry points of the class
+     * @param parameters the macro parameters
+     * @param xcontext the XWiki context
+     * @param context the context of the macro transformation.
+     * @param timer receives the number of characters output
+     * @return the parsed output of the class
+     * @throws MacroExecutionException if the class failed to run or its output could not be parsed
+     */
+    private XDOM executeStreaming(Object obj, ClassRunnerDispatch dispatch, ClassRunnerMacroParameters parameters,
+            Object xcontext, MacroTransformationContext context, InvocationTimer timer)
+            throws MacroExecutionException {
+        StreamingParser output = null;
+        if (dispatch.acceptsWriter(OutputLimitWriter.class) && !VERBATIM_PARSER.equals(parameters.getParser())
+                && !HTML_PARSER.equals(parameters.getParser())) {
+            Parser parser = getSyntaxParser(parameters.getParser(), context);
+            try {
+                output = new StreamingParser(parser, parserExecutor, contextPropagator, STREAM_BUFFER_SIZE);
+            } catch (RejectedExecutionException e) {
+                output = null;
+            } catch (ExecutionContextException e) {
+                output = null;
+            } catch (IOException e) {
+                output = null;
+            }
+        }
+
+        if (output == null) {
+            String text = execute(obj, dispatch, parameters, xcontext);
+            timer.addOutput(text.length());
+            return parseSourceSyntax(text, parameters.getParser(), context);
+        }
+
+        OutputLimitWriter writer = new OutputLimitWriter(output, parameters.getCrMaxOutput());
+        try {
+            dispatch.run(obj, writer, parameters.getRawProperties(), xcontext);
+            return output.getResult();
+        } catch (Exception e) {
+            output.abort();
+            throw new MacroExecutionException(e.getMessage(), e);
+        } finally {
+            timer.addOutput(writer.getCount());
+        }
+    }
+
+    /**
+     * Enforce the maximum output size, when the class accepts a generic Writer.
+     *
+     * @param out the writer receiving the output
+     * @param dispatch the entry points of the class
+     * @param parameters the macro parameters
+     * @return the writer to provide to the class
+     */
+    private Writer limitOutput(Writer out, ClassRunnerDispatch dispatch, ClassRunnerMacroParameters parameters) {
+        if (parameters.getCrMaxOutput() > 0 && dispatch.acceptsWriter(OutputLimitWriter.class)) {
+            return new OutputLimitWriter(out, parameters.getCrMaxOutput());
+        }
+        return out;
+    }
+
+    private Class<?> loadClass(ClassLoader loader, String className) throws MacroExecutionException {
+        ClassIndex index = getClassIndex(loader);
+        if (index != null && index.isMissing(className)) {
+            throw new MacroExecutionException(className + " has already been found missing from the packages");
+        }
+        try {
+            if (index != null && index.isComplete() && !index.contains(className) && loader.getParent() != null) {
+                // Not in the packages, avoid scanning them
+                return loader.getParent().loadClass(className);
+            }
+            return loader.loadClass(className);
+        } catch (ClassNotFoundException e) {
+            if (index != null) {
+                index.addMissing(className);
+            }
+            throw new MacroExecutionException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the index of the classes of the packages of a class loader, building it the first time.
+     *
+     * @param loader the class loader
+     * @return the index of its classes, or null if it is not a loader of packages
+     */
+    private ClassIndex getClassIndex(ClassLoader loader) {
+        if (!(loader instanceof URLClassLoader)) {
+            return null;
+        }
+        ClassIndex index;
+        synchronized (classIndexes) {
+            index = classIndexes.get(loader);
+        }
+        if (index == null) {
+            // Built outside the lock, a concurrent build being harmless
+            ClassIndex newIndex = new ClassIndex(((URLClassLoader) loader).getURLs(), MAX_MISSING_CLASSES);
+            synchronized (classIndexes) {
+                index = classIndexes.get(loader);
+                if (index == null) {
+                    index = newIndex;
+                    classIndexes.put(loader, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Retrieve the entry points of a class, scanning its methods only the first time it is run.
+     *
+     * @param klass the class to run
+     * @param contextClass the class of the XWiki context provided to the class
+     * @return the entry points of the class
+     * @throws MacroExecutionException if the class has no suitable run method
+     */
+    private ClassRunnerDispatch getDispatch(Class<?> klass, Class<?> contextClass) throws MacroExecutionException {
+        SoftReference<ClassRunnerDispatch> ref = dispatchCache.get(klass);
+        ClassRunnerDispatch dispatch = (ref != null) ? ref.get() : null;
+        if (dispatch == null || !dispatch.isResolvedFor(contextClass)) {
+            dispatch = ClassRunnerDispatch.resolve(klass, contextClass);
+            dispatchCache.put(klass, new SoftReference<ClassRunnerDispatch>(dispatch));
+        }
+        return dispatch;
     }
 
     /**
@@ -360,14 +1496,15 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
      */
     protected Parser getSyntaxParser(String parserId, MacroTransformationContext context) throws MacroExecutionException {
         try {
-            return (Parser) this.componentManager.lookup(Parser.class, (StringUtils.isNotEmpty(parserId)) ? parserId : context.getSyntax().toIdString());
+            return parserCache.getParser(this.componentManager, (StringUtils.isNotEmpty(parserId)) ? parserId : context.getSyntax().toIdString());
         } catch (ComponentLookupException e) {
             throw new MacroExecutionException("Failed to find source parser", e);
         }
     }
 
     /**
-     * Parse provided content with the parser of the current wiki syntax.
+     * Parse provided content with the parser of the current wiki syntax. The {@value #VERBATIM_PARSER} and
+     * {@value #HTML_PARSER} parser Ids insert the content as is, respectively as verbatim text and as raw XHTML.
      * 
      * @param content the content to parse.
      * @param parserId the parser Id of the parser to use
@@ -376,6 +1513,12 @@ public class ClassRunnerMacro extends AbstractMacro<ClassRunnerMacroParameters>
      * @throws MacroExecutionException failed to parse content
      */
     protected XDOM parseSourceSyntax(String content, String parserId, MacroTransformationContext context) throws MacroExecutionException {
+        if (VERBATIM_PARSER.equals(parserId)) {
+            return new XDOM(Collections.<Block>singletonList(new VerbatimBlock(content, context.isInline())));
+        } else if (HTML_PARSER.equals(parserId)) {
+            return new XDOM(Collections.<Block>singletonList(new RawBlock(content, Syntax.XHTML_1_0)));
+        }
+
         Parser parser = getSyntaxParser(parserId, context);
 
         try {
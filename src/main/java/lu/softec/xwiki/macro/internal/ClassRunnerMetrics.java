@@ -0,0 +1,347 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lu.softec.xwiki.macro.internal.InvocationTimer.Phase;
+
+/**
+ * Invocation counters and per phase latency histograms of the macro, in total, by class and by profile. Recording
+ * only updates atomic counters, so it does not add contention between concurrent invocations.
+ */
+public class ClassRunnerMetrics implements ClassRunnerMetricsMBean
+{
+    /**
+     * The maximum number of classes or profiles tracked separately. Beyond that, figures are merged under
+     * {@link #OTHER}, so an unbounded number of class names could not exhaust the memory.
+     */
+    private static final int MAX_KEYS = 1000;
+
+    private static final String OTHER = "(other)";
+
+    private static final String UNKNOWN = "(unknown)";
+
+    private static final double P50 = 0.5;
+
+    private static final double P99 = 0.99;
+
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    /**
+     * Counters of a set of invocations.
+     */
+    private static class Stats
+    {
+        private final AtomicLong invocations = new AtomicLong();
+
+        private final AtomicLong errors = new AtomicLong();
+
+        private final AtomicLong outputChars = new AtomicLong();
+
+        private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+        Stats()
+        {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+
+        void record(InvocationTimer timer, long chars, boolean error)
+        {
+            invocations.incrementAndGet();
+            if (error) {
+                errors.incrementAndGet();
+            }
+            if (chars > 0) {
+                outputChars.addAndGet(chars);
+            }
+            for (Phase phase : Phase.values()) {
+                if (timer.isReached(phase)) {
+                    phases[phase.ordinal()].record(timer.getDuration(phase));
+                }
+            }
+        }
+
+        String format(String name)
+        {
+            StringBuilder sb = new StringBuilder(name);
+            sb.append(": invocations=").append(invocations.get());
+            sb.append(", errors=").append(errors.get());
+            sb.append(", output=").append(outputChars.get());
+            for (Phase phase : Phase.values()) {
+                LatencyHistogram histogram = phases[phase.ordinal()];
+                if (histogram.getCount() > 0) {
+                    sb.append(", ").append(phase.name().toLowerCase());
+                    sb.append(" p50=").append(histogram.getPercentile(P50) / NANOS_PER_MICRO);
+                    sb.append(" p99=").append(histogram.getPercentile(P99) / NANOS_PER_MICRO);
+                }
+            }
+            return sb.toString();
+        }
+
+        void reset()
+        {
+            invocations.set(0);
+            errors.set(0);
+            outputChars.set(0);
+            for (LatencyHistogram histogram : phases) {
+                histogram.reset();
+            }
+        }
+    }
+
+    private final Stats total = new Stats();
+
+    private final ConcurrentMap<String, Stats> byClass = new ConcurrentHashMap<String, Stats>();
+
+    private final ConcurrentMap<String, Stats> byProfile = new ConcurrentHashMap<String, Stats>();
+
+    private final ParserCache parserCache;
+
+    private final CpuTimeRecorder cpuTimes;
+
+    private final Bulkheads bulkheads;
+
+    private final LoaderManager loaderManager;
+
+    /**
+     * @param parserCache the parser cache whose hit rate is published
+     * @param cpuTimes the CPU times of the classes published
+     * @param bulkheads the concurrency limits whose counters are published
+     * @param loaderManager the manager of the class loaders whose figures are published
+     */
+    public ClassRunnerMetrics(ParserCache parserCache, CpuTimeRecorder cpuTimes, Bulkheads bulkheads,
+        LoaderManager loaderManager)
+    {
+        this.parserCache = parserCache;
+        this.cpuTimes = cpuTimes;
+        this.bulkheads = bulkheads;
+        this.loaderManager = loaderManager;
+    }
+
+    /**
+     * Record a completed invocation.
+     *
+     * @param className the class run, or null if it was not resolved
+     * @param profile the name of the profile used, or null if it was not resolved
+     * @param timer the durations of the phases of the invocation
+     * @param outputChars the number of characters output by the class
+     * @param error true if the invocation failed
+     */
+    public void record(String className, String profile, InvocationTimer timer, long outputChars, boolean error)
+    {
+        total.record(timer, outputChars, error);
+        getStats(byClass, className).record(timer, outputChars, error);
+        getStats(byProfile, profile).record(timer, outputChars, error);
+    }
+
+    private static Stats getStats(ConcurrentMap<String, Stats> map, String key)
+    {
+        if (key == null) {
+            key = UNKNOWN;
+        }
+        Stats stats = map.get(key);
+        if (stats == null) {
+            if (map.size() >= MAX_KEYS) {
+                key = OTHER;
+            }
+            Stats newStats = new Stats();
+            stats = map.putIfAbsent(key, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    private static String[] format(Map<String, Stats> map)
+    {
+        List<String> lines = new ArrayList<String>(map.size());
+        for (Map.Entry<String, Stats> entry : map.entrySet()) {
+            lines.add(entry.getValue().format(entry.getKey()));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getInvocations()
+     */
+    public long getInvocations()
+    {
+        return total.invocations.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getErrors()
+     */
+    public long getErrors()
+    {
+        return total.errors.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getOutputChars()
+     */
+    public long getOutputChars()
+    {
+        return total.outputChars.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getPhaseStatistics()
+     */
+    public String[] getPhaseStatistics()
+    {
+        return new String[] {total.format("all")};
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getClassStatistics()
+     */
+    public String[] getClassStatistics()
+    {
+        return format(byClass);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getProfileStatistics()
+     */
+    public String[] getProfileStatistics()
+    {
+        return format(byProfile);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getClassCpuTimes()
+     */
+    public String[] getClassCpuTimes()
+    {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : cpuTimes.getCpuTimes().entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue() / NANOS_PER_MICRO);
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getBulkheadQueued()
+     */
+    public long getBulkheadQueued()
+    {
+        return bulkheads.getQueued();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getBulkheadRejected()
+     */
+    public long getBulkheadRejected()
+    {
+        return bulkheads.getRejected();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getLoaderCount()
+     */
+    public int getLoaderCount()
+    {
+        return loaderManager.getLoaderCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getEvictedLoaderCount()
+     */
+    public int getEvictedLoaderCount()
+    {
+        return loaderManager.getEvictedLoaderCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getLoaderSize()
+     */
+    public long getLoaderSize()
+    {
+        return loaderManager.getLoaderSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getLoaderEvictions()
+     */
+    public long getLoaderEvictions()
+    {
+        return loaderManager.getEvictions();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#getParserCacheHitRate()
+     */
+    public double getParserCacheHitRate()
+    {
+        return parserCache.getHitRate();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ClassRunnerMetricsMBean#reset()
+     */
+    public void reset()
+    {
+        total.reset();
+        bulkheads.reset();
+        byClass.clear();
+        byProfile.clear();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+/**
+ * JMX view of the {@link ClassRunnerMetrics}. Durations are reported in microseconds.
+ */
+public interface ClassRunnerMetricsMBean
+{
+    /**
+     * @return the number of macro invocations
+     */
+    long getInvocations();
+
+    /**
+     * @return the number of failed macro invocations
+     */
+    long getErrors();
+
+    /**
+     * @return the number of characters of text output by the classes, buffered or streamed; output produced as blocks
+     *         or listener events is not counted
+     */
+    long getOutputChars();
+
+    /**
+     * @return invocations, errors, output and p50/p99 latency of each phase, for all invocations
+     */
+    String[] getPhaseStatistics();
+
+    /**
+     * @return invocations, errors, output and p50/p99 latency of each phase, by class
+     */
+    String[] getClassStatistics();
+
+    /**
+     * @return invocations, errors, output and p50/p99 latency of each phase, by profile
+     */
+    String[] getProfileStatistics();
+
+    /**
+     * @return the CPU time in microseconds consumed by each class
+     */
+    String[] getClassCpuTimes();
+
+    /**
+     * @return the number of runs that had to wait for a concurrency permit
+     */
+    long getBulkheadQueued();
+
+    /**
+     * @return the number of runs rejected for lack of a concurrency permit
+     */
+    long getBulkheadRejected();
+
+    /**
+     * @return the number of class loaders of packages currently kept
+     */
+    int getLoaderCount();
+
+    /**
+     * @return the number of evicted class loaders of packages not collected yet
+     */
+    int getEvictedLoaderCount();
+
+    /**
+     * @return the estimated size in bytes of the class loaders of packages not collected yet, evicted or not
+     */
+    long getLoaderSize();
+
+    /**
+     * @return the number of idle class loaders evicted since startup
+     */
+    long getLoaderEvictions();
+
+    /**
+     * @return the ratio of parser lookups served from the cache
+     */
+    double getParserCacheHitRate();
+
+    /**
+     * Forget all figures collected so far.
+     */
+    void reset();
+}
@@ -0,0 +1,209 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.container.Container;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.properties.BeanManager;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.macro.Macro;
+import org.xwiki.rendering.transformation.AbstractTransformation;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+import org.xwiki.rendering.transformation.TransformationContext;
+import org.xwiki.rendering.transformation.TransformationException;
+
+import lu.softec.xwiki.macro.ClassRunnerMacroParameters;
+
+/**
+ * Pre-pass of the macro transformation starting, in a bounded pool of threads, the classrunner macros of a page that
+ * have the crParallel parameter set. When the macro transformation reaches them, the macro simply collects their result.
+ * <p>
+ * This transformation is enabled by adding "classrunner" to the rendering.transformations of xwiki.properties.
+ */
+@Component
+@Named("classrunner")
+@Singleton
+public class ClassRunnerParallelTransformation extends AbstractTransformation
+{
+    /**
+     * Execution context property holding the macro blocks started by this transformation.
+     */
+    private static final String SCHEDULED_PROPERTY = "classrunner.scheduled";
+
+    /**
+     * Run before the macro transformation.
+     */
+    private static final int PRIORITY = 90;
+
+    /**
+     * The maximum number of macros running concurrently, for all requests.
+     */
+    private static final int MAX_THREADS = 32;
+
+    /**
+     * The maximum number of macros waiting for a thread, beyond which macros are run by the macro transformation.
+     */
+    private static final int MAX_QUEUED = 256;
+
+    @Inject
+    @Named("classrunner")
+    private Macro<ClassRunnerMacroParameters> macro;
+
+    @Inject
+    private BeanManager beanManager;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Container container;
+
+    private final ThreadPoolExecutor executor;
+
+    public ClassRunnerParallelTransformation()
+    {
+        executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "ClassRunner parallel macro");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public int getPriority()
+    {
+        return PRIORITY;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.rendering.transformation.Transformation#transform(Block, TransformationContext)
+     */
+    public void transform(Block block, TransformationContext context) throws TransformationException
+    {
+        for (MacroBlock macroBlock : block.getChildrenByType(MacroBlock.class, true)) {
+            if ("classrunner".equals(macroBlock.getId())) {
+                schedule(macroBlock, context);
+            }
+        }
+    }
+
+    /**
+     * Start a macro in a worker thread, with its own clone of the execution and XWiki contexts, and a copy of the
+     * request.
+     *
+     * @param macroBlock the macro to start
+     * @param context the transformation context
+     */
+    private void schedule(final MacroBlock macroBlock, TransformationContext context)
+    {
+        final ClassRunnerMacroParameters parameters = new ClassRunnerMacroParameters();
+        final MacroTransformationContext macroContext = new MacroTransformationContext(context);
+        macroContext.setCurrentMacroBlock(macroBlock);
+        macroContext.setInline(macroBlock.isInline());
+
+        PropagatedTask<List<Block>> task;
+        try {
+            this.beanManager.populate(parameters, macroBlock.getParameters());
+            if (!parameters.isCrParallel()) {
+                return;
+            }
+            // The worker gets a detached response, so the cookie remembering the profile is sent from here
+            ((ClassRunnerMacro) this.macro).chooseProfile(parameters);
+            task = new ContextPropagator(this.execution, this.executionContextManager, this.container)
+                .propagate(new Callable<List<Block>>()
+                {
+                    public List<Block> call() throws Exception
+                    {
+                        return ((ClassRunnerMacro) macro).executeDirectly(parameters, macroBlock.getContent(),
+                            macroContext);
+                    }
+                });
+        } catch (Exception e) {
+            // Leave it to the macro transformation, which reports errors properly
+            return;
+        }
+
+        try {
+            this.executor.execute(task);
+            getScheduled(this.execution.getContext()).put(macroBlock, task);
+        } catch (RejectedExecutionException e) {
+            // Too many macros pending, leave it to the macro transformation
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static synchronized Map<MacroBlock, Future<List<Block>>> getScheduled(ExecutionContext context)
+    {
+        Map<MacroBlock, Future<List<Block>>> scheduled =
+            (Map<MacroBlock, Future<List<Block>>>) context.getProperty(SCHEDULED_PROPERTY);
+        if (scheduled == null) {
+            scheduled = Collections.synchronizedMap(new IdentityHashMap<MacroBlock, Future<List<Block>>>());
+            context.setProperty(SCHEDULED_PROPERTY, scheduled);
+        }
+        return scheduled;
+    }
+
+    /**
+     * Retrieve, and forget, the pending result of a macro started by this transformation.
+     *
+     * @param context the execution context of the request
+     * @param macroBlock the macro about to be executed
+     * @return the pending result of the macro, or null if it has not been started by this transformation
+     */
+    public static Future<List<Block>> takeScheduled(ExecutionContext context, MacroBlock macroBlock)
+    {
+        if (context == null || macroBlock == null || context.getProperty(SCHEDULED_PROPERTY) == null) {
+            return null;
+        }
+        return getScheduled(context).remove(macroBlock);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.container.Container;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ActionExecutionEvent;
+import org.xwiki.observation.event.ApplicationStoppedEvent;
+import org.xwiki.observation.event.Event;
+import org.xwiki.rendering.macro.Macro;
+
+/**
+ * Warm up the classrunner macro in the background as soon as the wiki is ready, and record its hot classes for the
+ * next run when the wiki stops.
+ * <p>
+ * The wiki documents are only accessible once the first request has initialized the wiki, so the warm-up starts at
+ * the end of the first view action, with a copy of its contexts.
+ */
+@Component
+@Named("ClassRunnerWarmup")
+@Singleton
+public class ClassRunnerWarmup implements EventListener
+{
+    private static final List<Event> EVENTS =
+        Arrays.<Event> asList(new ActionExecutionEvent("view"), new ApplicationStoppedEvent());
+
+    /**
+     * Used to lookup the macro lazily, so it is not instantiated with the listeners.
+     */
+    @Inject
+    private ComponentManager componentManager;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Container container;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#getName()
+     */
+    public String getName()
+    {
+        return "ClassRunnerWarmup";
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#getEvents()
+     */
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#onEvent(Event, Object, Object)
+     */
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof ApplicationStoppedEvent) {
+            ClassRunnerMacro macro = getMacro();
+            if (macro != null) {
+                macro.saveHotClasses();
+            }
+        } else if (started.compareAndSet(false, true)) {
+            startWarmUp();
+        }
+    }
+
+    private void startWarmUp()
+    {
+        final ClassRunnerMacro macro = getMacro();
+        if (macro == null || this.execution.getContext() == null) {
+            return;
+        }
+
+        final PropagatedTask<Void> task;
+        try {
+            task = new ContextPropagator(this.execution, this.executionContextManager, this.container)
+                .propagate(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        macro.warmUp();
+                        return null;
+                    }
+                });
+        } catch (Exception e) {
+            // No warm-up, classes are loaded on demand
+            return;
+        }
+
+        // A failed warm-up is left in the task, classes are then loaded on demand
+        Thread thread = new Thread(task, "ClassRunner warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * @return the classrunner macro, or null if it is not available
+     */
+    private ClassRunnerMacro getMacro()
+    {
+        try {
+            Object macro = this.componentManager.lookup(Macro.class, "classrunner");
+            return (macro instanceof ClassRunnerMacro) ? (ClassRunnerMacro) macro : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.lang.reflect.Method;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.xwiki.container.Container;
+import org.xwiki.container.Request;
+import org.xwiki.container.Response;
+import org.xwiki.container.servlet.ServletRequest;
+import org.xwiki.container.servlet.ServletResponse;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+/**
+ * Prepare tasks to run in another thread with a copy of the execution and XWiki contexts of the current request.
+ * <p>
+ * The task may outlive the request, for example when it is abandoned after a deadline, so it never gets anything the
+ * servlet container recycles once the request completes:
+ * <ul>
+ * <li>the execution and XWiki contexts are cloned, and so is the velocity context they hold, so the task may change
+ * their entries freely;</li>
+ * <li>the request is replaced by a {@link DetachedServletRequest}, a copy taken in the calling thread;</li>
+ * <li>the response is replaced by a {@link DetachedServletResponse}, which records the changes, like cookies or headers,
+ * so they are replayed on the actual response when the result of the {@link PropagatedTask} is retrieved, in the
+ * thread processing the request; the content of the response cannot be written.</li>
+ * </ul>
+ * The other objects held by the contexts, like the current documents, are shared with the request and must only be
+ * read by the task.
+ */
+public class ContextPropagator
+{
+    /**
+     * Execution context property holding the XWiki context.
+     */
+    private static final String XWIKI_CONTEXT = "xwikicontext";
+
+    /**
+     * Execution context property holding the velocity context.
+     */
+    private static final String VELOCITY_CONTEXT = "velocityContext";
+
+    /**
+     * XWiki context entry holding the velocity context.
+     */
+    private static final String XWIKI_VELOCITY_CONTEXT = "vcontext";
+
+    /**
+     * XWiki context entry holding the request.
+     */
+    private static final String XWIKI_REQUEST = "request";
+
+    /**
+     * XWiki context entry holding the response.
+     */
+    private static final String XWIKI_RESPONSE = "response";
+
+    private final Execution execution;
+
+    private final ExecutionContextManager executionContextManager;
+
+    private final Container container;
+
+    public ContextPropagator(Execution execution, ExecutionContextManager executionContextManager,
+        Container container)
+    {
+        this.execution = execution;
+        this.executionContextManager = executionContextManager;
+        this.container = container;
+    }
+
+    /**
+     * Wrap a task so it runs with a clone of the current contexts. The contexts are cloned, and the request copied,
+     * immediately, in the calling thread.
+     *
+     * @param task the task to wrap
+     * @param <T> the result of the task
+     * @return the wrapped task, to be run by an executor, and whose result must be retrieved in the calling thread
+     * @throws ExecutionContextException if the execution context could not be cloned
+     */
+    @SuppressWarnings("unchecked")
+    public <T> PropagatedTask<T> propagate(final Callable<T> task) throws ExecutionContextException
+    {
+        ExecutionContext context = this.execution.getContext();
+        final ExecutionContext clonedContext = this.executionContextManager.clone(context);
+        Map<Object, Object> clones = new IdentityHashMap<Object, Object>();
+
+        HttpServletRequest httpRequest = null;
+        final Request request;
+        if (this.container.getRequest() instanceof ServletRequest) {
+            httpRequest = new DetachedServletRequest(
+                ((ServletRequest) this.container.getRequest()).getHttpServletRequest());
+            request = new ServletRequest(httpRequest);
+        } else {
+            request = null;
+        }
+
+        HttpServletResponse actualResponse = null;
+        DetachedServletResponse httpResponse = null;
+        final Response response;
+        if (this.container.getResponse() instanceof ServletResponse) {
+            actualResponse = ((ServletResponse) this.container.getResponse()).getHttpServletResponse();
+            httpResponse = new DetachedServletResponse(actualResponse);
+            response = new ServletResponse(httpResponse);
+        } else {
+            response = null;
+        }
+
+        Object velocityContext = context.getProperty(VELOCITY_CONTEXT);
+        if (velocityContext != null) {
+            clonedContext.setProperty(VELOCITY_CONTEXT, cloneValue(velocityContext, clones));
+        }
+
+        Object xcontext = context.getProperty(XWIKI_CONTEXT);
+        if (xcontext instanceof Hashtable) {
+            Hashtable<Object, Object> clonedXContext = (Hashtable<Object, Object>) ((Hashtable<?, ?>) xcontext).clone();
+            Object xcontextVelocity = clonedXContext.get(XWIKI_VELOCITY_CONTEXT);
+            if (xcontextVelocity != null) {
+                clonedXContext.put(XWIKI_VELOCITY_CONTEXT, cloneValue(xcontextVelocity, clones));
+            }
+            replaceEntry(clonedXContext, XWIKI_REQUEST, HttpServletRequest.class, httpRequest);
+            replaceEntry(clonedXContext, XWIKI_RESPONSE, HttpServletResponse.class, httpResponse);
+            clonedContext.setProperty(XWIKI_CONTEXT, clonedXContext);
+        }
+
+        return new PropagatedTask<T>(new Callable<T>()
+        {
+            public T call() throws Exception
+            {
+                execution.setContext(clonedContext);
+                if (request != null) {
+                    container.setRequest(request);
+                }
+                if (response != null) {
+                    container.setResponse(response);
+                }
+                try {
+                    return task.call();
+                } finally {
+                    if (response != null) {
+                        container.removeResponse();
+                    }
+                    if (request != null) {
+                        container.removeRequest();
+                    }
+                    execution.removeContext();
+                }
+            }
+        }, httpResponse, actualResponse);
+    }
+
+    /**
+     * Clone a value through its public clone method, reusing the clone of a value already cloned, so a value held by
+     * both contexts stays shared between them.
+     *
+     * @param value the value to clone
+     * @param clones the values already cloned, and their clone
+     * @return the clone, or the value itself if it cannot be cloned
+     */
+    private Object cloneValue(Object value, Map<Object, Object> clones)
+    {
+        Object clone = clones.get(value);
+        if (clone == null) {
+            clone = value;
+            if (value instanceof Cloneable) {
+                try {
+                    Method cloneMethod = value.getClass().getMethod("clone");
+                    clone = cloneMethod.invoke(value);
+                } catch (Exception e) {
+                    // Not publicly cloneable, left shared
+                }
+            }
+            clones.put(value, clone);
+        }
+        return clone;
+    }
+
+    /**
+     * Replace the request or response wrapper of the XWiki context by a wrapper of the same kind around its detached
+     * stand-in, or remove it when no such wrapper can be built.
+     *
+     * @param xcontext the cloned XWiki context
+     * @param key the entry of the wrapper
+     * @param wrappedClass the class of the object wrapped
+     * @param detached the detached stand-in to wrap, or null if there is none
+     */
+    private void replaceEntry(Hashtable<Object, Object> xcontext, String key, Class<?> wrappedClass, Object detached)
+    {
+        Object wrapper = xcontext.get(key);
+        if (wrapper == null) {
+            return;
+        }
+        try {
+            if (detached != null) {
+                xcontext.put(key, wrapper.getClass().getConstructor(wrappedClass).newInstance(detached));
+                return;
+            }
+        } catch (Exception e) {
+            // No such wrapper, removed below
+        }
+        xcontext.remove(key);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulate the CPU time consumed by the runs of each class, as reported by the {@link ThreadMXBean}.
+ */
+public class CpuTimeRecorder
+{
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private final boolean supported = threadBean.isCurrentThreadCpuTimeSupported();
+
+    private final ConcurrentMap<String, AtomicLong> cpuTimes = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds, to be given back to {@link #record}
+     */
+    public long start()
+    {
+        return supported ? threadBean.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Add the CPU time consumed by the current thread since {@link #start()} to a class.
+     *
+     * @param className the class that has been run
+     * @param start the value returned by {@link #start()}
+     */
+    public void record(String className, long start)
+    {
+        if (start < 0) {
+            return;
+        }
+        long elapsed = threadBean.getCurrentThreadCpuTime() - start;
+
+        AtomicLong total = cpuTimes.get(className);
+        if (total == null) {
+            AtomicLong newTotal = new AtomicLong();
+            total = cpuTimes.putIfAbsent(className, newTotal);
+            if (total == null) {
+                total = newTotal;
+            }
+        }
+        total.addAndGet(elapsed);
+    }
+
+    /**
+     * @return the CPU time in nanoseconds consumed by each class since startup
+     */
+    public Map<String, Long> getCpuTimes()
+    {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : cpuTimes.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+}
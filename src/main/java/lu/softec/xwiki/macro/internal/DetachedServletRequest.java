@@ -0,0 +1,470 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.BufferedReader;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Copy of a servlet request, for the tasks that may outlive the request. The servlet container recycles the request
+ * once it completes, so the parameters, headers, cookies, attributes and properties of the request are copied while
+ * it is still being processed. The session is kept, since it outlives the request, but the body, the dispatchers and
+ * the roles of the user are not available.
+ */
+public class DetachedServletRequest implements HttpServletRequest
+{
+    private static final String NOT_AVAILABLE = "Not available outside of the request thread";
+
+    private final Map<String, String[]> parameters;
+
+    private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+
+    private final Map<String, Object> attributes = Collections.synchronizedMap(new HashMap<String, Object>());
+
+    private final Cookie[] cookies;
+
+    private final List<Locale> locales = new ArrayList<Locale>();
+
+    private final HttpSession session;
+
+    private final Principal userPrincipal;
+
+    private final String authType;
+
+    private final String method;
+
+    private final String pathInfo;
+
+    private final String pathTranslated;
+
+    private final String contextPath;
+
+    private final String queryString;
+
+    private final String remoteUser;
+
+    private final String requestedSessionId;
+
+    private final String requestURI;
+
+    private final String requestURL;
+
+    private final String servletPath;
+
+    private final boolean requestedSessionIdValid;
+
+    private final boolean requestedSessionIdFromCookie;
+
+    private final boolean requestedSessionIdFromURL;
+
+    private String characterEncoding;
+
+    private final int contentLength;
+
+    private final String contentType;
+
+    private final String protocol;
+
+    private final String scheme;
+
+    private final String serverName;
+
+    private final int serverPort;
+
+    private final String remoteAddr;
+
+    private final String remoteHost;
+
+    private final int remotePort;
+
+    private final String localName;
+
+    private final String localAddr;
+
+    private final int localPort;
+
+    private final boolean secure;
+
+    /**
+     * Copy a request. Must be called in the thread processing it.
+     *
+     * @param request the request to copy
+     */
+    @SuppressWarnings("unchecked")
+    public DetachedServletRequest(HttpServletRequest request)
+    {
+        this.parameters = Collections.unmodifiableMap(new HashMap<String, String[]>(request.getParameterMap()));
+        for (Enumeration<String> names = request.getHeaderNames(); names != null && names.hasMoreElements();) {
+            String name = names.nextElement();
+            this.headers.put(name, Collections.list((Enumeration<String>) request.getHeaders(name)));
+        }
+        for (Enumeration<String> names = request.getAttributeNames(); names.hasMoreElements();) {
+            String name = names.nextElement();
+            this.attributes.put(name, request.getAttribute(name));
+        }
+        Cookie[] requestCookies = request.getCookies();
+        if (requestCookies != null) {
+            this.cookies = new Cookie[requestCookies.length];
+            for (int i = 0; i < requestCookies.length; i++) {
+                this.cookies[i] = (Cookie) requestCookies[i].clone();
+            }
+        } else {
+            this.cookies = null;
+        }
+        this.locales.addAll(Collections.list((Enumeration<Locale>) request.getLocales()));
+        this.session = request.getSession(false);
+        this.userPrincipal = request.getUserPrincipal();
+        this.authType = request.getAuthType();
+        this.method = request.getMethod();
+        this.pathInfo = request.getPathInfo();
+        this.pathTranslated = request.getPathTranslated();
+        this.contextPath = request.getContextPath();
+        this.queryString = request.getQueryString();
+        this.remoteUser = request.getRemoteUser();
+        this.requestedSessionId = request.getRequestedSessionId();
+        this.requestURI = request.getRequestURI();
+        this.requestURL = request.getRequestURL().toString();
+        this.servletPath = request.getServletPath();
+        this.requestedSessionIdValid = request.isRequestedSessionIdValid();
+        this.requestedSessionIdFromCookie = request.isRequestedSessionIdFromCookie();
+        this.requestedSessionIdFromURL = request.isRequestedSessionIdFromURL();
+        this.characterEncoding = request.getCharacterEncoding();
+        this.contentLength = request.getContentLength();
+        this.contentType = request.getContentType();
+        this.protocol = request.getProtocol();
+        this.scheme = request.getScheme();
+        this.serverName = request.getServerName();
+        this.serverPort = request.getServerPort();
+        this.remoteAddr = request.getRemoteAddr();
+        this.remoteHost = request.getRemoteHost();
+        this.remotePort = request.getRemotePort();
+        this.localName = request.getLocalName();
+        this.localAddr = request.getLocalAddr();
+        this.localPort = request.getLocalPort();
+        this.secure = request.isSecure();
+    }
+
+    public String getAuthType()
+    {
+        return this.authType;
+    }
+
+    public Cookie[] getCookies()
+    {
+        return (this.cookies != null) ? this.cookies.clone() : null;
+    }
+
+    public long getDateHeader(String name)
+    {
+        String value = getHeader(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).parse(value).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(value);
+        }
+    }
+
+    public String getHeader(String name)
+    {
+        List<String> values = this.headers.get(name);
+        return (values != null && !values.isEmpty()) ? values.get(0) : null;
+    }
+
+    public Enumeration<String> getHeaders(String name)
+    {
+        List<String> values = this.headers.get(name);
+        return Collections.enumeration((values != null) ? values : Collections.<String>emptyList());
+    }
+
+    public Enumeration<String> getHeaderNames()
+    {
+        return Collections.enumeration(this.headers.keySet());
+    }
+
+    public int getIntHeader(String name)
+    {
+        String value = getHeader(name);
+        return (value != null) ? Integer.parseInt(value) : -1;
+    }
+
+    public String getMethod()
+    {
+        return this.method;
+    }
+
+    public String getPathInfo()
+    {
+        return this.pathInfo;
+    }
+
+    public String getPathTranslated()
+    {
+        return this.pathTranslated;
+    }
+
+    public String getContextPath()
+    {
+        return this.contextPath;
+    }
+
+    public String getQueryString()
+    {
+        return this.queryString;
+    }
+
+    public String getRemoteUser()
+    {
+        return this.remoteUser;
+    }
+
+    public boolean isUserInRole(String role)
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    public Principal getUserPrincipal()
+    {
+        return this.userPrincipal;
+    }
+
+    public String getRequestedSessionId()
+    {
+        return this.requestedSessionId;
+    }
+
+    public String getRequestURI()
+    {
+        return this.requestURI;
+    }
+
+    public StringBuffer getRequestURL()
+    {
+        return new StringBuffer(this.requestURL);
+    }
+
+    public String getServletPath()
+    {
+        return this.servletPath;
+    }
+
+    public HttpSession getSession(boolean create)
+    {
+        if (this.session == null && create) {
+            throw new IllegalStateException(NOT_AVAILABLE);
+        }
+        return this.session;
+    }
+
+    public HttpSession getSession()
+    {
+        return getSession(true);
+    }
+
+    public boolean isRequestedSessionIdValid()
+    {
+        return this.requestedSessionIdValid;
+    }
+
+    public boolean isRequestedSessionIdFromCookie()
+    {
+        return this.requestedSessionIdFromCookie;
+    }
+
+    public boolean isRequestedSessionIdFromURL()
+    {
+        return this.requestedSessionIdFromURL;
+    }
+
+    @Deprecated
+    public boolean isRequestedSessionIdFromUrl()
+    {
+        return this.requestedSessionIdFromURL;
+    }
+
+    public Object getAttribute(String name)
+    {
+        return this.attributes.get(name);
+    }
+
+    public Enumeration<String> getAttributeNames()
+    {
+        synchronized (this.attributes) {
+            return Collections.enumeration(new ArrayList<String>(this.attributes.keySet()));
+        }
+    }
+
+    public void setAttribute(String name, Object value)
+    {
+        this.attributes.put(name, value);
+    }
+
+    public void removeAttribute(String name)
+    {
+        this.attributes.remove(name);
+    }
+
+    public String getCharacterEncoding()
+    {
+        return this.characterEncoding;
+    }
+
+    public void setCharacterEncoding(String env)
+    {
+        this.characterEncoding = env;
+    }
+
+    public int getContentLength()
+    {
+        return this.contentLength;
+    }
+
+    public String getContentType()
+    {
+        return this.contentType;
+    }
+
+    public ServletInputStream getInputStream()
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    public BufferedReader getReader()
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    public String getParameter(String name)
+    {
+        String[] values = this.parameters.get(name);
+        return (values != null && values.length > 0) ? values[0] : null;
+    }
+
+    public Enumeration<String> getParameterNames()
+    {
+        return Collections.enumeration(this.parameters.keySet());
+    }
+
+    public String[] getParameterValues(String name)
+    {
+        String[] values = this.parameters.get(name);
+        return (values != null) ? values.clone() : null;
+    }
+
+    public Map<String, String[]> getParameterMap()
+    {
+        return this.parameters;
+    }
+
+    public String getProtocol()
+    {
+        return this.protocol;
+    }
+
+    public String getScheme()
+    {
+        return this.scheme;
+    }
+
+    public String getServerName()
+    {
+        return this.serverName;
+    }
+
+    public int getServerPort()
+    {
+        return this.serverPort;
+    }
+
+    public String getRemoteAddr()
+    {
+        return this.remoteAddr;
+    }
+
+    public String getRemoteHost()
+    {
+        return this.remoteHost;
+    }
+
+    public int getRemotePort()
+    {
+        return this.remotePort;
+    }
+
+    public String getLocalName()
+    {
+        return this.localName;
+    }
+
+    public String getLocalAddr()
+    {
+        return this.localAddr;
+    }
+
+    public int getLocalPort()
+    {
+        return this.localPort;
+    }
+
+    public Locale getLocale()
+    {
+        return this.locales.isEmpty() ? Locale.getDefault() : this.locales.get(0);
+    }
+
+    public Enumeration<Locale> getLocales()
+    {
+        return Collections.enumeration(this.locales);
+    }
+
+    public boolean isSecure()
+    {
+        return this.secure;
+    }
+
+    public RequestDispatcher getRequestDispatcher(String path)
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    @Deprecated
+    public String getRealPath(String path)
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+}
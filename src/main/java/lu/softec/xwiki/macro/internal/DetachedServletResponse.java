@@ -0,0 +1,376 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Stand-in for a servlet response, for the tasks that may outlive the request. The response may already have been
+ * sent, so the changes, like added cookies or headers, are only recorded, to be replayed on the actual response by
+ * the thread processing the request once the task has completed. The content of the response cannot be written,
+ * since the page is still being rendered. URLs are not encoded with the session id, which is only needed when cookies
+ * are disabled.
+ */
+public class DetachedServletResponse implements HttpServletResponse
+{
+    private static final String NOT_AVAILABLE = "The response content is not available outside of the request thread";
+
+    /**
+     * A change to replay on the actual response.
+     */
+    private interface Change
+    {
+        void apply(HttpServletResponse response) throws IOException;
+    }
+
+    /**
+     * The recorded changes, in order.
+     */
+    private final List<Change> changes = new ArrayList<Change>();
+
+    /**
+     * The names of the headers set, in lower case.
+     */
+    private final Set<String> headers = new HashSet<String>();
+
+    private String characterEncoding;
+
+    private String contentType;
+
+    private Locale locale;
+
+    private final int bufferSize;
+
+    private boolean committed;
+
+    /**
+     * Copy the properties of a response. Must be called in the thread processing the request.
+     *
+     * @param response the response to copy
+     */
+    public DetachedServletResponse(HttpServletResponse response)
+    {
+        this.characterEncoding = response.getCharacterEncoding();
+        this.contentType = response.getContentType();
+        this.locale = response.getLocale();
+        this.bufferSize = response.getBufferSize();
+        this.committed = response.isCommitted();
+    }
+
+    /**
+     * Apply the recorded changes to the actual response, and forget them. Must be called in the thread processing the
+     * request.
+     *
+     * @param response the actual response
+     * @throws IOException if an error or a redirect could not be sent
+     */
+    public void replay(HttpServletResponse response) throws IOException
+    {
+        List<Change> recorded;
+        synchronized (this) {
+            recorded = new ArrayList<Change>(this.changes);
+            this.changes.clear();
+        }
+        for (Change change : recorded) {
+            change.apply(response);
+        }
+    }
+
+    private synchronized void record(Change change)
+    {
+        this.changes.add(change);
+    }
+
+    private synchronized void recordHeader(String name, Change change)
+    {
+        this.headers.add(name.toLowerCase(Locale.ROOT));
+        this.changes.add(change);
+    }
+
+    public void addCookie(final Cookie cookie)
+    {
+        record(new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.addCookie(cookie);
+            }
+        });
+    }
+
+    public synchronized boolean containsHeader(String name)
+    {
+        return this.headers.contains(name.toLowerCase(Locale.ROOT));
+    }
+
+    public String encodeURL(String url)
+    {
+        return url;
+    }
+
+    public String encodeRedirectURL(String url)
+    {
+        return url;
+    }
+
+    @Deprecated
+    public String encodeUrl(String url)
+    {
+        return url;
+    }
+
+    @Deprecated
+    public String encodeRedirectUrl(String url)
+    {
+        return url;
+    }
+
+    public synchronized void sendError(final int sc, final String msg)
+    {
+        this.committed = true;
+        record(new Change()
+        {
+            public void apply(HttpServletResponse response) throws IOException
+            {
+                response.sendError(sc, msg);
+            }
+        });
+    }
+
+    public synchronized void sendError(final int sc)
+    {
+        this.committed = true;
+        record(new Change()
+        {
+            public void apply(HttpServletResponse response) throws IOException
+            {
+                response.sendError(sc);
+            }
+        });
+    }
+
+    public synchronized void sendRedirect(final String location)
+    {
+        this.committed = true;
+        record(new Change()
+        {
+            public void apply(HttpServletResponse response) throws IOException
+            {
+                response.sendRedirect(location);
+            }
+        });
+    }
+
+    public void setDateHeader(final String name, final long date)
+    {
+        recordHeader(name, new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.setDateHeader(name, date);
+            }
+        });
+    }
+
+    public void addDateHeader(final String name, final long date)
+    {
+        recordHeader(name, new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.addDateHeader(name, date);
+            }
+        });
+    }
+
+    public void setHeader(final String name, final String value)
+    {
+        recordHeader(name, new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.setHeader(name, value);
+            }
+        });
+    }
+
+    public void addHeader(final String name, final String value)
+    {
+        recordHeader(name, new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.addHeader(name, value);
+            }
+        });
+    }
+
+    public void setIntHeader(final String name, final int value)
+    {
+        recordHeader(name, new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.setIntHeader(name, value);
+            }
+        });
+    }
+
+    public void addIntHeader(final String name, final int value)
+    {
+        recordHeader(name, new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.addIntHeader(name, value);
+            }
+        });
+    }
+
+    public void setStatus(final int sc)
+    {
+        record(new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.setStatus(sc);
+            }
+        });
+    }
+
+    @Deprecated
+    public void setStatus(final int sc, final String sm)
+    {
+        record(new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.setStatus(sc, sm);
+            }
+        });
+    }
+
+    public synchronized String getCharacterEncoding()
+    {
+        return this.characterEncoding;
+    }
+
+    public synchronized String getContentType()
+    {
+        return this.contentType;
+    }
+
+    public ServletOutputStream getOutputStream()
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    public PrintWriter getWriter()
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    public synchronized void setCharacterEncoding(final String charset)
+    {
+        this.characterEncoding = charset;
+        record(new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.setCharacterEncoding(charset);
+            }
+        });
+    }
+
+    public void setContentLength(int len)
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    public synchronized void setContentType(final String type)
+    {
+        this.contentType = type;
+        record(new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.setContentType(type);
+            }
+        });
+    }
+
+    public void setBufferSize(int size)
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    public int getBufferSize()
+    {
+        return this.bufferSize;
+    }
+
+    public void flushBuffer()
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    public void resetBuffer()
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    public synchronized boolean isCommitted()
+    {
+        return this.committed;
+    }
+
+    public void reset()
+    {
+        throw new IllegalStateException(NOT_AVAILABLE);
+    }
+
+    public synchronized void setLocale(final Locale loc)
+    {
+        this.locale = loc;
+        record(new Change()
+        {
+            public void apply(HttpServletResponse response)
+            {
+                response.setLocale(loc);
+            }
+        });
+    }
+
+    public synchronized Locale getLocale()
+    {
+        return this.locale;
+    }
+}
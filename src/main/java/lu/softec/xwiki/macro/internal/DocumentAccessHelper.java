@@ -5,14 +5,19 @@
 package lu.softec.xwiki.macro.internal;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.lang3.StringUtils;
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
@@ -38,6 +43,10 @@ public class DocumentAccessHelper
 
     private static final String DEFAULTPROFILE = "ClassRunnerData";
 
+    private static final String[] PACKAGE_PROPERTIES = {"artifactId", "version", "groupId", "packaging"};
+
+    private static final String[] INCLUDE_PROPERTIES = {"name", "baseURL"};
+
     private DocumentAccessBridge documentAccessBridge;
 
     private DocumentReferenceResolver<String> profileResolver;
@@ -52,6 +61,15 @@ public class DocumentAccessHelper
 
     private boolean hasAdmin;
 
+    private ProfileResolutionCache resolutionCache;
+
+    private String cacheUser;
+
+    /**
+     * The profiles already chosen by this helper, by key and requested profile.
+     */
+    private final Map<String, DocumentReference> chosenProfiles = new ConcurrentHashMap<String, DocumentReference>();
+
     public boolean hasAdmin()
     {
         return hasAdmin;
@@ -70,13 +88,91 @@ public class DocumentAccessHelper
         hasAdmin = this.documentAccessBridge.isDocumentEditable(getProfileRef(""));
     }
 
+    /**
+     * Create a helper sharing the admin status and the profile chosen for users that are not admins with other
+     * requests, through a cache.
+     *
+     * @param bridge the document access bridge
+     * @param provider the provider of the current wiki
+     * @param resolver the resolver of the profile references
+     * @param serializer the serializer of references
+     * @param resolutionCache the cache shared with other requests
+     */
+    public DocumentAccessHelper(DocumentAccessBridge bridge, EntityReferenceValueProvider provider,
+        DocumentReferenceResolver<String> resolver, EntityReferenceSerializer<String> serializer,
+        ProfileResolutionCache resolutionCache)
+    {
+        documentAccessBridge = bridge;
+        profileResolver = resolver;
+        E = serializer;
+        this.resolutionCache = resolutionCache;
+
+        String wiki = provider.getDefaultValue(EntityType.WIKI);
+        cacheUser = wiki + '\u0000' + bridge.getCurrentUser();
+        defaultProfile = new EntityReference(DEFAULTPROFILE, EntityType.DOCUMENT, new EntityReference(DATASPACE, EntityType.SPACE));
+        javaPackageClass = new DocumentReference(wiki, CODESPACE, JAVAPACKAGECLASS);
+        profileIncludeClass = new DocumentReference(wiki, CODESPACE, PROFILEINCLUDECLASS);
+
+        Boolean admin = resolutionCache.getAdmin(cacheUser);
+        if (admin == null) {
+            long gen = resolutionCache.getGeneration();
+            admin = this.documentAccessBridge.isDocumentEditable(getProfileRef(""));
+            resolutionCache.putAdmin(cacheUser, admin, gen);
+        }
+        hasAdmin = admin;
+    }
+
     private DocumentReference getProfileRef(String pkgName)
     {
         return profileResolver.resolve(pkgName,defaultProfile);
     }
 
+    /**
+     * Resolve a profile by name, without regard to the current request or user.
+     *
+     * @param profileName the name of the profile, or an empty string for the default profile
+     * @return the profile document, or null if it does not exist
+     */
+    public DocumentReference getProfile(String profileName)
+    {
+        DocumentReference profile = getProfileRef(profileName);
+        return this.documentAccessBridge.exists(profile) ? profile : null;
+    }
+
+    /**
+     * Choose the profile of the current request. The choice is made once per key and requested profile for the
+     * lifetime of this helper, and, for users that are not admins, shared with other requests when a cache is used.
+     *
+     * @param httpRequest the current request, which may select the profile of an admin
+     * @param httpResponse the current response, receiving the cookie remembering the profile of an admin
+     * @param key the name of the request parameter and cookie selecting the profile
+     * @param defaultProfileName the name of the profile requested by the macro
+     * @return the chosen profile
+     * @throws MacroExecutionException if there is no profile at all
+     */
     public DocumentReference getProfile(HttpServletRequest httpRequest, HttpServletResponse httpResponse, String key,
         String defaultProfileName) throws MacroExecutionException
+    {
+        String memoKey = key + '\u0000' + defaultProfileName;
+        DocumentReference profile = chosenProfiles.get(memoKey);
+        if (profile == null) {
+            if (hasAdmin || resolutionCache == null) {
+                profile = chooseProfile(httpRequest, httpResponse, key, defaultProfileName);
+            } else {
+                profile = resolutionCache.getProfile(cacheUser, defaultProfileName);
+                if (profile == null) {
+                    long gen = resolutionCache.getGeneration();
+                    profile = chooseProfile(httpRequest, httpResponse, key, defaultProfileName);
+                    resolutionCache.putProfile(cacheUser, defaultProfileName, profile, gen);
+                }
+            }
+            chosenProfiles.put(memoKey, profile);
+        }
+        return profile;
+    }
+
+    private DocumentReference chooseProfile(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+        String key, String defaultProfileName) throws MacroExecutionException
     {
         DocumentReference profile = null;
 
@@ -170,55 +266,118 @@ public class DocumentAccessHelper
     public void getPackageList(DocumentReference profile, String baseURL, Collection<URL> pkgUrls,
         Collection<URL> dpkgUrls, List<String> groupIds) throws MacroExecutionException
     {
-        int nb = 0;
-        String artifactId;
+        getPackageList(profile, baseURL, pkgUrls, dpkgUrls, groupIds, new HashSet<DocumentReference>());
+    }
+
+    /**
+     * Collect the packages of a profile and of the profiles it includes. A profile included several times with the
+     * same base URL, including through a cycle, is only visited once. An artifact declared several times is only
+     * loaded once: the first declaration wins, the profile's own packages coming before those of its includes, in
+     * the order of the includes.
+     *
+     * @param profile the profile document
+     * @param baseURL the base URL of the packages
+     * @param pkgUrls receive the URLs of release packages
+     * @param dpkgUrls receive the URLs of SNAPSHOT packages
+     * @param groupIds receive the distinct groupIds of the packages
+     * @param profiles receive the profile document and all the profiles it includes
+     * @throws MacroExecutionException if the profiles could not be read
+     */
+    public void getPackageList(DocumentReference profile, String baseURL, Collection<URL> pkgUrls,
+        Collection<URL> dpkgUrls, List<String> groupIds, Collection<DocumentReference> profiles)
+        throws MacroExecutionException
+    {
+        getPackageList(profile, baseURL, pkgUrls, dpkgUrls, groupIds, profiles, new HashSet<String>(),
+            new HashSet<String>());
+    }
+
+    /**
+     * @param visited receive the profiles and base URLs already visited
+     * @param artifacts receive the groupId and artifactId of the packages already collected
+     * @see #getPackageList(DocumentReference, String, Collection, Collection, List, Collection)
+     */
+    private void getPackageList(DocumentReference profile, String baseURL, Collection<URL> pkgUrls,
+        Collection<URL> dpkgUrls, List<String> groupIds, Collection<DocumentReference> profiles, Set<String> visited,
+        Set<String> artifacts) throws MacroExecutionException
+    {
+        if (!visited.add(E.serialize(profile) + ' ' + baseURL)) {
+            return;
+        }
+        profiles.add(profile);
+
         try {
-            while ((artifactId =
-                (String) this.documentAccessBridge.getProperty(E.serialize(profile), E.serialize(javaPackageClass), nb,
-                    "artifactId")) != null) {
-                String version =
-                    (String) this.documentAccessBridge.getProperty(E.serialize(profile), E.serialize(javaPackageClass),
-                        nb, "version");
-                String groupId =
-                    (String) this.documentAccessBridge.getProperty(E.serialize(profile), E.serialize(javaPackageClass),
-                        nb, "groupId");
-                if (!groupIds.contains(groupId)) {
-                    groupIds.add(groupId);
+            for (PackageDescriptor pkg : getPackages(profile)) {
+                if (!artifacts.add(pkg.getGroupId() + ':' + pkg.getArtifactId())) {
+                    continue;
                 }
-                String packaging =
-                    (String) this.documentAccessBridge.getProperty(E.serialize(profile), E.serialize(javaPackageClass),
-                        nb, "packaging");
-                URL url;
-                if (packaging.equals("jar")) {
-                    url = new URL(StringUtils.join(new String[] {baseURL, artifactId, "-", version, ".jar"}));
-                } else {
-                    url = new URL(StringUtils.join(new String[] {baseURL, artifactId, "-", version, "/"}));
+
+                if (!groupIds.contains(pkg.getGroupId())) {
+                    groupIds.add(pkg.getGroupId());
                 }
 
-                if (version.endsWith("-SNAPSHOT")) {
+                URL url = pkg.getURL(baseURL);
+                if (pkg.isSnapshot()) {
                     dpkgUrls.add(url);
                 } else {
                     pkgUrls.add(url);
                 }
-                nb++;
             }
 
-            nb = 0;
-            String iPkgName;
-            while ((iPkgName =
-                (String) this.documentAccessBridge.getProperty(E.serialize(profile), E.serialize(profileIncludeClass),
-                    nb, "name")) != null) {
-                String iBaseURL =
-                    (String) this.documentAccessBridge.getProperty(E.serialize(profile), E
-                        .serialize(profileIncludeClass), nb, "baseURL");
+            for (String[] include : getObjects(profile, profileIncludeClass, INCLUDE_PROPERTIES)) {
+                String iBaseURL = include[1];
                 if (iBaseURL == null || iBaseURL.length() == 0) {
                     iBaseURL = baseURL;
                 }
-                getPackageList(getProfileRef(iPkgName), iBaseURL, pkgUrls, dpkgUrls, groupIds);
-                nb++;
+                getPackageList(getProfileRef(include[0]), iBaseURL, pkgUrls, dpkgUrls, groupIds, profiles, visited,
+                    artifacts);
             }
         } catch (Exception e) {
             throw new MacroExecutionException(e.getMessage(), e);
         }
     }
+
+    /**
+     * @param profile the profile document
+     * @return the packages declared in the profile, not including the profiles it includes
+     */
+    public List<PackageDescriptor> getPackages(DocumentReference profile)
+    {
+        List<String[]> objects = getObjects(profile, javaPackageClass, PACKAGE_PROPERTIES);
+        List<PackageDescriptor> packages = new ArrayList<PackageDescriptor>(objects.size());
+        for (String[] values : objects) {
+            packages.add(new PackageDescriptor(values[2], values[0], values[1], values[3]));
+        }
+        return Collections.unmodifiableList(packages);
+    }
+
+    /**
+     * Read the properties of all the objects of a class attached to a document. The references are serialized once,
+     * and the objects are read in order until the first property is missing.
+     *
+     * @param document the document holding the objects
+     * @param classRef the class of the objects
+     * @param properties the names of the properties to read, the first one being mandatory
+     * @return the values of the properties, in the same order as their names, for each object
+     */
+    private List<String[]> getObjects(DocumentReference document, DocumentReference classRef, String[] properties)
+    {
+        String docName = E.serialize(document);
+        String className = E.serialize(classRef);
+        List<String[]> objects = new ArrayList<String[]>();
+
+        for (int nb = 0;; nb++) {
+            String first = (String) this.documentAccessBridge.getProperty(docName, className, nb, properties[0]);
+            if (first == null) {
+                break;
+            }
+            String[] values = new String[properties.length];
+            values[0] = first;
+            for (int i = 1; i < properties.length; i++) {
+                values[i] = (String) this.documentAccessBridge.getProperty(docName, className, nb, properties[i]);
+            }
+            objects.add(values);
+        }
+
+        return objects;
+    }
 }
@@ -0,0 +1,245 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Record the classes run, with their profile and base URL, so the most used ones can be preloaded when the wiki
+ * restarts. The figures are persisted in a properties file, and those of the previous run are kept until replaced.
+ * Only a bounded number of classes is recorded: beyond it, the least run half is forgotten.
+ */
+public class HotClassRecorder
+{
+    private static final char SEPARATOR = '\t';
+
+    private final int maxClasses;
+
+    private final long saveInterval;
+
+    private final AtomicLong lastSave = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * A class run, with the profile and base URL providing its packages.
+     */
+    public static final class HotClass
+    {
+        private final String profile;
+
+        private final String baseURL;
+
+        private final String className;
+
+        HotClass(String profile, String baseURL, String className)
+        {
+            this.profile = profile;
+            this.baseURL = baseURL;
+            this.className = className;
+        }
+
+        public String getProfile()
+        {
+            return profile;
+        }
+
+        public String getBaseURL()
+        {
+            return baseURL;
+        }
+
+        public String getClassName()
+        {
+            return className;
+        }
+
+        String getKey()
+        {
+            return profile + SEPARATOR + baseURL + SEPARATOR + className;
+        }
+    }
+
+    private final File file;
+
+    private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @param file the file persisting the figures, loaded immediately if it exists, or null to keep them in memory
+     * @param maxClasses the maximum number of classes recorded
+     * @param saveInterval the time in milliseconds between two saves of the figures
+     */
+    public HotClassRecorder(File file, int maxClasses, long saveInterval)
+    {
+        this.file = file;
+        this.maxClasses = maxClasses;
+        this.saveInterval = saveInterval;
+        if (file != null && file.isFile()) {
+            Properties properties = new Properties();
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // Nothing recorded, nothing to preload
+                return;
+            }
+            for (String key : properties.stringPropertyNames()) {
+                try {
+                    counts.put(key, new AtomicLong(Long.parseLong(properties.getProperty(key))));
+                } catch (NumberFormatException e) {
+                    // Ignore broken entries
+                }
+            }
+        }
+    }
+
+    /**
+     * Count a run of a class.
+     *
+     * @param profile the serialized reference of the profile
+     * @param baseURL the base URL of the packages
+     * @param className the fully qualified name of the class
+     */
+    public void record(String profile, String baseURL, String className)
+    {
+        String key = new HotClass(profile, baseURL, className).getKey();
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = counts.putIfAbsent(key, newCount);
+            if (count == null) {
+                count = newCount;
+                if (counts.size() > maxClasses) {
+                    prune();
+                }
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Forget the least run half of the classes.
+     */
+    private synchronized void prune()
+    {
+        if (counts.size() <= maxClasses) {
+            return;
+        }
+        List<HotClass> kept = getHotClasses(maxClasses / 2);
+        List<String> keys = new ArrayList<String>(kept.size());
+        for (HotClass hot : kept) {
+            keys.add(hot.getKey());
+        }
+        counts.keySet().retainAll(keys);
+    }
+
+    /**
+     * @return true if the figures should be saved now, in which case the other callers get false until the next
+     *         save interval has elapsed
+     */
+    public boolean isSaveDue()
+    {
+        long last = lastSave.get();
+        long now = System.currentTimeMillis();
+        return file != null && now - last >= saveInterval && lastSave.compareAndSet(last, now);
+    }
+
+    /**
+     * @param limit the maximum number of classes returned
+     * @return the most run classes, most run first
+     */
+    public List<HotClass> getHotClasses(int limit)
+    {
+        List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>()
+        {
+            public int compare(Map.Entry<String, AtomicLong> e1, Map.Entry<String, AtomicLong> e2)
+            {
+                long c1 = e1.getValue().get();
+                long c2 = e2.getValue().get();
+                return (c1 > c2) ? -1 : ((c1 == c2) ? 0 : 1);
+            }
+        });
+
+        List<HotClass> result = new ArrayList<HotClass>(Math.min(limit, entries.size()));
+        for (Map.Entry<String, AtomicLong> entry : entries) {
+            if (result.size() >= limit) {
+                break;
+            }
+            String[] parts = entry.getKey().split(String.valueOf(SEPARATOR), 3);
+            if (parts.length == 3) {
+                result.add(new HotClass(parts[0], parts[1], parts[2]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Persist the most run classes, for the next run. Nothing is done when there is no file.
+     *
+     * @param limit the maximum number of classes persisted
+     * @throws IOException if the file could not be written
+     */
+    public synchronized void save(int limit) throws IOException
+    {
+        if (file == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (HotClass hot : getHotClasses(limit)) {
+            AtomicLong count = counts.get(hot.getKey());
+            properties.setProperty(hot.getKey(), String.valueOf(count != null ? count.get() : 1));
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent.mkdirs()) {
+            ArtifactMirror.restrictToOwner(parent);
+        }
+        File temp = File.createTempFile("hotclasses", ".tmp", parent);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, "Classes preloaded by the classrunner macro at startup");
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to write " + file);
+        }
+    }
+}
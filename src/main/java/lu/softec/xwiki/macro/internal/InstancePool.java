@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lu.softec.xwiki.macro.Reusable;
+
+/**
+ * Reusable instances of a class annotated with {@link Reusable}: either a single shared instance, or a bounded pool
+ * of idle instances.
+ */
+public class InstancePool
+{
+    private final Class<?> klass;
+
+    private final boolean singleton;
+
+    private final int maxIdle;
+
+    private volatile Object instance;
+
+    private final Queue<Object> idle = new ConcurrentLinkedQueue<Object>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * @param klass the class of the instances
+     * @param reusable the reuse declared by the class
+     */
+    public InstancePool(Class<?> klass, Reusable reusable)
+    {
+        this.klass = klass;
+        this.singleton = reusable.value() == Reusable.Scope.SINGLETON;
+        this.maxIdle = reusable.maxIdle();
+    }
+
+    /**
+     * @return the shared instance, an idle instance, or a new one if none is idle
+     * @throws InstantiationException if the class could not be instantiated
+     * @throws IllegalAccessException if the class or its constructor is not accessible
+     */
+    public Object acquire() throws InstantiationException, IllegalAccessException
+    {
+        if (singleton) {
+            Object obj = instance;
+            if (obj == null) {
+                synchronized (this) {
+                    obj = instance;
+                    if (obj == null) {
+                        obj = klass.newInstance();
+                        instance = obj;
+                    }
+                }
+            }
+            return obj;
+        }
+
+        Object obj = idle.poll();
+        if (obj != null) {
+            idleCount.decrementAndGet();
+            return obj;
+        }
+        return klass.newInstance();
+    }
+
+    /**
+     * Return an instance after a successful run, so it can be reused. An instance whose run failed is never returned,
+     * so it is simply dropped, and replaced by a new instance on a later {@link #acquire()} when none is idle.
+     *
+     * @param obj the instance given by {@link #acquire()}
+     */
+    public void release(Object obj)
+    {
+        if (singleton) {
+            return;
+        }
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(obj);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+/**
+ * Measure the duration of the successive phases of a single macro invocation, and the size of its output.
+ */
+public class InvocationTimer
+{
+    /**
+     * The phases of a macro invocation.
+     */
+    public enum Phase
+    {
+        /** Choice of the profile. */
+        PROFILE,
+        /** Resolution of the packages of the profile. */
+        PACKAGES,
+        /** Retrieval of the class loader. */
+        CLASSLOADER,
+        /** Loading of the class. */
+        LOADCLASS,
+        /** Instantiation and run of the class. */
+        RUN,
+        /** Parsing of the output. */
+        PARSE
+    }
+
+    private final long[] durations = new long[Phase.values().length];
+
+    private int reached;
+
+    private long start = System.nanoTime();
+
+    private long outputChars;
+
+    /**
+     * Start measuring a new phase.
+     */
+    public void mark()
+    {
+        start = System.nanoTime();
+    }
+
+    /**
+     * Add the time elapsed since the last mark to a phase, and start measuring the next one.
+     *
+     * @param phase the phase that has just completed
+     */
+    public void lap(Phase phase)
+    {
+        long now = System.nanoTime();
+        add(phase, now - start);
+        start = now;
+    }
+
+    /**
+     * Add a duration measured elsewhere to a phase.
+     *
+     * @param phase the phase
+     * @param nanos the duration to add, in nanoseconds
+     */
+    public void add(Phase phase, long nanos)
+    {
+        durations[phase.ordinal()] += nanos;
+        reached |= 1 << phase.ordinal();
+    }
+
+    /**
+     * Add the durations of the phases and the output measured by another timer.
+     *
+     * @param other the other timer
+     */
+    public void addAll(InvocationTimer other)
+    {
+        for (Phase phase : Phase.values()) {
+            if (other.isReached(phase)) {
+                add(phase, other.getDuration(phase));
+            }
+        }
+        outputChars += other.getOutputChars();
+    }
+
+    /**
+     * Account for text output by the class.
+     *
+     * @param chars the number of characters output
+     */
+    public void addOutput(long chars)
+    {
+        outputChars += chars;
+    }
+
+    /**
+     * @return the number of characters output by the class, not counting output produced as blocks or events
+     */
+    public long getOutputChars()
+    {
+        return outputChars;
+    }
+
+    /**
+     * @param phase a phase
+     * @return true if the invocation went through that phase
+     */
+    public boolean isReached(Phase phase)
+    {
+        return (reached & (1 << phase.ordinal())) != 0;
+    }
+
+    /**
+     * @param phase a phase
+     * @return the time spent in that phase, in nanoseconds
+     */
+    public long getDuration(Phase phase)
+    {
+        return durations[phase.ordinal()];
+    }
+}
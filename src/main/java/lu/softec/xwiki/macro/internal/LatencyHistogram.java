@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, using power of two buckets. Percentiles are reported as the upper bound of the
+ * bucket holding them, so they are accurate to a factor of two.
+ */
+public class LatencyHistogram
+{
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * @param nanos the duration to record, in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(Math.min(BUCKETS - Long.numberOfLeadingZeros(nanos), BUCKETS - 1));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of the recorded durations, in nanoseconds
+     */
+    public long getTotal()
+    {
+        return total.get();
+    }
+
+    /**
+     * @param percentile the requested percentile, between 0 and 1
+     * @return an upper bound of the duration at that percentile, in nanoseconds
+     */
+    public long getPercentile(double percentile)
+    {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return (i == 0) ? 0 : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Forget all recorded durations.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lu.softec.xwiki.classloader.ClassLoaderCache;
+
+/**
+ * Track the class loaders of packages built for the macro, with their last use and an estimate of their size, and
+ * select the idle ones to evict, least recently used first.
+ * <p>
+ * Loaders are weakly referenced, so they are forgotten as soon as they are collected. A loader replaced by the caches,
+ * like the loader of a SNAPSHOT package that has changed, is retired: it is evicted as soon as it has been idle for a
+ * minute, whatever the limits. Evicted loaders are closed to release their jar files, but remain
+ * tracked until they are actually collected, since running classes or the underlying {@link ClassLoaderCache} may
+ * still retain them. Since that cache may still hand out a loader that has been closed, a new reloadable loader is
+ * requested from it instead of such loaders.
+ */
+public class LoaderManager implements ClassLoaderCache
+{
+    /**
+     * The minimum delay in milliseconds between two eviction passes.
+     */
+    private static final long EVICTION_INTERVAL = 10000L;
+
+    /**
+     * The default minimum idle time in milliseconds of the evicted loaders.
+     */
+    private static final long MIN_IDLE = 60000L;
+
+    /**
+     * The estimated size in bytes of a package whose size is unknown, like a remote package.
+     */
+    private static final long UNKNOWN_PACKAGE_SIZE = 1024L * 1024L;
+
+    /**
+     * Loaders used more recently than this, in milliseconds, are never evicted, since classes may still be running.
+     */
+    private final long minIdle;
+
+    private volatile ClassLoaderCache loaderf;
+
+    /**
+     * The tracked loaders, including the evicted ones not collected yet.
+     */
+    private final Map<ClassLoader, Tracked> loaders = new WeakHashMap<ClassLoader, Tracked>();
+
+    private volatile int maxLoaders = Integer.MAX_VALUE;
+
+    private volatile long idleTimeout = Long.MAX_VALUE;
+
+    private volatile long lastEviction = System.currentTimeMillis();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The last use and the estimated size of a tracked loader.
+     */
+    private static final class Tracked
+    {
+        private long lastUse;
+
+        private final long size;
+
+        /**
+         * Set once the loader has been evicted, and closed, so it should never be used again.
+         */
+        private boolean evicted;
+
+        /**
+         * Set once the loader has been replaced by the caches, so it should be evicted as soon as possible.
+         */
+        private boolean retired;
+
+        Tracked(long lastUse, long size)
+        {
+            this.lastUse = lastUse;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Order the loaders from the least to the most recently used.
+     */
+    private static final Comparator<Map.Entry<ClassLoader, Tracked>> LEAST_RECENTLY_USED =
+        new Comparator<Map.Entry<ClassLoader, Tracked>>()
+        {
+            public int compare(Map.Entry<ClassLoader, Tracked> e1, Map.Entry<ClassLoader, Tracked> e2)
+            {
+                long u1 = e1.getValue().lastUse;
+                long u2 = e2.getValue().lastUse;
+                return (u1 < u2) ? -1 : ((u1 == u2) ? 0 : 1);
+            }
+        };
+
+    /**
+     * Create a manager never evicting the loaders used during the last minute.
+     */
+    public LoaderManager()
+    {
+        this(MIN_IDLE);
+    }
+
+    /**
+     * @param minIdle the time in milliseconds during which a used loader is never evicted
+     */
+    LoaderManager(long minIdle)
+    {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * @param loaderf the factory actually building the loaders
+     */
+    public void setFactory(ClassLoaderCache loaderf)
+    {
+        this.loaderf = loaderf;
+    }
+
+    /**
+     * @param maxLoaders the maximum number of loaders kept beyond which the least recently used are evicted
+     * @param idleTimeout the time in milliseconds after which an unused loader is evicted
+     */
+    public void configure(int maxLoaders, long idleTimeout)
+    {
+        this.maxLoaders = maxLoaders;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The loader is tracked from now on.
+     *
+     * @see ClassLoaderCache#getURLClassLoader(URL[], ClassLoader, boolean)
+     */
+    public URLClassLoader getURLClassLoader(URL[] urls, ClassLoader parent, boolean reloadable)
+    {
+        URLClassLoader loader = loaderf.getURLClassLoader(urls, parent, reloadable);
+        if (isEvicted(loader)) {
+            // Closed, but still held by the underlying cache, which is asked to build it again
+            loader = loaderf.getURLClassLoader(urls, parent, true);
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (loaders) {
+            Tracked tracked = loaders.get(loader);
+            if (tracked == null) {
+                tracked = new Tracked(now, estimateSize(urls));
+                loaders.put(loader, tracked);
+            }
+            tracked.lastUse = now;
+        }
+        return loader;
+    }
+
+    /**
+     * @param loader a loader
+     * @return true if the loader is tracked and has been evicted
+     */
+    private boolean isEvicted(ClassLoader loader)
+    {
+        synchronized (loaders) {
+            Tracked tracked = loaders.get(loader);
+            return tracked != null && tracked.evicted;
+        }
+    }
+
+    /**
+     * @param urls the URLs of some packages
+     * @return the total size of the packages, as an estimate of the size of their classes
+     */
+    private static long estimateSize(URL[] urls)
+    {
+        long size = 0;
+        for (URL url : urls) {
+            size += estimateSize(url);
+        }
+        return size;
+    }
+
+    /**
+     * @param url the URL of a package
+     * @return the size of a local jar or directory, or a fixed estimate when it is unknown
+     */
+    private static long estimateSize(URL url)
+    {
+        if (url.getProtocol().equals("file")) {
+            try {
+                File file = new File(url.toURI());
+                if (file.exists()) {
+                    return getSize(file);
+                }
+            } catch (URISyntaxException e) {
+                // Unknown size
+            } catch (IllegalArgumentException e) {
+                // Unknown size
+            }
+        }
+        return UNKNOWN_PACKAGE_SIZE;
+    }
+
+    /**
+     * @param file a file or directory
+     * @return the total size of the files
+     */
+    private static long getSize(File file)
+    {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += getSize(child);
+        }
+        return size;
+    }
+
+    /**
+     * Record a use of a loader.
+     *
+     * @param loader the loader about to be used
+     */
+    public void touch(ClassLoader loader)
+    {
+        synchronized (loaders) {
+            Tracked tracked = loaders.get(loader);
+            if (tracked != null && !tracked.evicted) {
+                tracked.lastUse = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Retire a loader replaced by the caches, so it is evicted by the next eviction pass once it has been idle for a
+     * minute, whatever the maximum number of loaders and the idle timeout.
+     *
+     * @param loader the replaced loader
+     */
+    public void retire(ClassLoader loader)
+    {
+        synchronized (loaders) {
+            Tracked tracked = loaders.get(loader);
+            if (tracked != null) {
+                tracked.retired = true;
+            }
+        }
+    }
+
+    /**
+     * @return true if an eviction pass is due
+     */
+    public boolean isEvictionDue()
+    {
+        return System.currentTimeMillis() - lastEviction >= EVICTION_INTERVAL;
+    }
+
+    /**
+     * Evict the retired loaders, the loaders idle for longer than the idle timeout, and the least recently used ones
+     * beyond the maximum number of loaders. The loaders used during the last minute are always kept.
+     *
+     * @return the evicted loaders, to be dropped by the caches and then closed with {@link #close(ClassLoader)}
+     */
+    public List<ClassLoader> evict()
+    {
+        long now = System.currentTimeMillis();
+        lastEviction = now;
+        List<ClassLoader> evicted = new ArrayList<ClassLoader>();
+        synchronized (loaders) {
+            List<Map.Entry<ClassLoader, Tracked>> candidates = new ArrayList<Map.Entry<ClassLoader, Tracked>>();
+            for (Map.Entry<ClassLoader, Tracked> entry : loaders.entrySet()) {
+                if (!entry.getValue().evicted) {
+                    candidates.add(entry);
+                }
+            }
+            Collections.sort(candidates, LEAST_RECENTLY_USED);
+
+            int remaining = candidates.size();
+            for (Map.Entry<ClassLoader, Tracked> entry : candidates) {
+                long idle = now - entry.getValue().lastUse;
+                if (idle < minIdle) {
+                    // All the following loaders have been used more recently
+                    break;
+                }
+                if (!entry.getValue().retired && remaining <= maxLoaders && idle < idleTimeout) {
+                    // Only the retired loaders among the following ones are evicted
+                    continue;
+                }
+                entry.getValue().evicted = true;
+                remaining--;
+                evicted.add(entry.getKey());
+            }
+        }
+        evictions.addAndGet(evicted.size());
+        return evicted;
+    }
+
+    /**
+     * Close an evicted loader, releasing its jar files, when the platform supports it.
+     *
+     * @param loader the evicted loader
+     */
+    public void close(ClassLoader loader)
+    {
+        if (loader instanceof Closeable) {
+            try {
+                ((Closeable) loader).close();
+            } catch (IOException e) {
+                // The files are released when the loader is collected
+            }
+        }
+    }
+
+    /**
+     * @return the number of loaders in use, not evicted
+     */
+    public int getLoaderCount()
+    {
+        synchronized (loaders) {
+            int count = 0;
+            for (Tracked tracked : loaders.values()) {
+                if (!tracked.evicted) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return the number of evicted loaders not collected yet, still retained by running classes or by the
+     *         underlying class loader cache
+     */
+    public int getEvictedLoaderCount()
+    {
+        synchronized (loaders) {
+            return loaders.size() - getLoaderCount();
+        }
+    }
+
+    /**
+     * @return the estimated total size of the loaders not collected yet, evicted or not, in bytes
+     */
+    public long getLoaderSize()
+    {
+        synchronized (loaders) {
+            long size = 0;
+            for (Tracked tracked : loaders.values()) {
+                size += tracked.size;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * @return the number of loaders evicted since startup
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+}
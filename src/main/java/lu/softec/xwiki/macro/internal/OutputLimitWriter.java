@@ -0,0 +1,82 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer counting the characters written, and failing as soon as a maximum is exceeded.
+ */
+public class OutputLimitWriter extends FilterWriter
+{
+    private final long limit;
+
+    private long count;
+
+    /**
+     * @param out the writer receiving the output
+     * @param limit the maximum number of characters accepted, 0 or less for no limit
+     */
+    public OutputLimitWriter(Writer out, long limit)
+    {
+        super(out);
+        this.limit = limit;
+    }
+
+    /**
+     * @return the number of characters written so far
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    private void ensureCapacity(int len) throws IOException
+    {
+        count += len;
+        if (limit > 0 && count > limit) {
+            throw new IOException("Output exceeds the maximum size of " + limit + " characters");
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+        ensureCapacity(1);
+        out.write(c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+        ensureCapacity(len);
+        out.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+        ensureCapacity(len);
+        out.write(str, off, len);
+    }
+}
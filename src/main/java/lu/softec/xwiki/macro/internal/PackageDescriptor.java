@@ -0,0 +1,90 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Immutable description of a package, as declared by a JavaPackageClass object of a profile.
+ */
+public class PackageDescriptor
+{
+    private final String groupId;
+
+    private final String artifactId;
+
+    private final String version;
+
+    private final String packaging;
+
+    public PackageDescriptor(String groupId, String artifactId, String version, String packaging)
+    {
+        this.groupId = groupId;
+        this.artifactId = artifactId;
+        this.version = version;
+        this.packaging = packaging;
+    }
+
+    public String getGroupId()
+    {
+        return groupId;
+    }
+
+    public String getArtifactId()
+    {
+        return artifactId;
+    }
+
+    public String getVersion()
+    {
+        return version;
+    }
+
+    public String getPackaging()
+    {
+        return packaging;
+    }
+
+    /**
+     * @return true if this is a SNAPSHOT version of the package
+     */
+    public boolean isSnapshot()
+    {
+        return version.endsWith("-SNAPSHOT");
+    }
+
+    /**
+     * @param baseURL the base URL of the packages
+     * @return the URL of the jar, or of the exploded directory, of this package
+     * @throws MalformedURLException if the base URL is invalid
+     */
+    public URL getURL(String baseURL) throws MalformedURLException
+    {
+        if (packaging.equals("jar")) {
+            return new URL(StringUtils.join(new String[] {baseURL, artifactId, "-", version, ".jar"}));
+        } else {
+            return new URL(StringUtils.join(new String[] {baseURL, artifactId, "-", version, "/"}));
+        }
+    }
+}
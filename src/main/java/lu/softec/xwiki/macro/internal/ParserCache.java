@@ -0,0 +1,136 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.rendering.parser.Parser;
+
+/**
+ * Cache of the parsers looked up by syntax id. A parser is dropped as soon as a parser component is registered or
+ * unregistered with the same hint.
+ */
+public class ParserCache implements EventListener
+{
+    private static final String NAME = "ClassRunnerParserCache";
+
+    private static final List<Event> EVENTS = Arrays.<Event> asList(new ComponentDescriptorAddedEvent(Parser.class),
+        new ComponentDescriptorRemovedEvent(Parser.class));
+
+    private final Map<String, Parser> parsers = new ConcurrentHashMap<String, Parser>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Retrieve the parser of a syntax, looking it up only when it is not cached.
+     *
+     * @param componentManager the component manager used for the lookup
+     * @param syntaxId the syntax id of the parser
+     * @return the parser
+     * @throws ComponentLookupException if there is no parser for that syntax
+     */
+    public Parser getParser(ComponentManager componentManager, String syntaxId) throws ComponentLookupException
+    {
+        Parser parser = parsers.get(syntaxId);
+        if (parser != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            parser = componentManager.lookup(Parser.class, syntaxId);
+            parsers.put(syntaxId, parser);
+        }
+        return parser;
+    }
+
+    /**
+     * @return the number of lookups served from the cache
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups requiring a component lookup
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the ratio of lookups served from the cache, between 0 and 1
+     */
+    public double getHitRate()
+    {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#getName()
+     */
+    public String getName()
+    {
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#getEvents()
+     */
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#onEvent(Event, Object, Object)
+     */
+    public void onEvent(Event event, Object source, Object data)
+    {
+        String hint = ((ComponentDescriptorEvent) event).getRoleHint();
+        if (hint != null) {
+            parsers.remove(hint);
+        } else {
+            parsers.clear();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.rendering.macro.MacroExecutionException;
+
+/**
+ * Bounded LRU cache of the packages resolved for a profile and a base URL. An entry is dropped as soon as any of the
+ * profile documents it has been resolved from is created, updated or deleted.
+ */
+public class ProfilePackageCache implements EventListener
+{
+    private static final String NAME = "ClassRunnerProfilePackageCache";
+
+    private static final List<Event> EVENTS = Arrays.<Event> asList(new DocumentCreatedEvent(),
+        new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+
+    /**
+     * The cached packages, guarded by itself.
+     */
+    private final Map<Key, ProfilePackages> cache;
+
+    /**
+     * Incremented on each invalidation, to avoid caching a result resolved concurrently with a profile change.
+     * Guarded by {@link #cache}, so an invalidation cannot happen between its check and the caching of a result.
+     */
+    private long generation;
+
+    /**
+     * @param maxEntries the maximum number of entries kept in the cache
+     */
+    public ProfilePackageCache(final int maxEntries)
+    {
+        cache = new LinkedHashMap<Key, ProfilePackages>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, ProfilePackages> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Retrieve the packages of a profile, resolving them with the given helper when they are not cached.
+     *
+     * @param docHelper the helper used to read the profile documents
+     * @param profile the profile document
+     * @param baseURL the base URL of the packages
+     * @return the packages of the profile
+     * @throws MacroExecutionException if the profiles could not be read
+     */
+    public ProfilePackages getPackages(DocumentAccessHelper docHelper, DocumentReference profile, String baseURL)
+        throws MacroExecutionException
+    {
+        Key key = new Key(profile, baseURL);
+        ProfilePackages packages;
+        long gen;
+        synchronized (cache) {
+            packages = cache.get(key);
+            gen = generation;
+        }
+        if (packages == null) {
+            Collection<URL> pkgUrls = new ArrayList<URL>();
+            Collection<URL> dpkgUrls = new ArrayList<URL>();
+            List<String> groupIds = new ArrayList<String>();
+            Collection<DocumentReference> profiles = new HashSet<DocumentReference>();
+            docHelper.getPackageList(profile, baseURL, pkgUrls, dpkgUrls, groupIds, profiles);
+            packages = new ProfilePackages(pkgUrls, dpkgUrls, groupIds, profiles);
+
+            synchronized (cache) {
+                if (gen == generation) {
+                    cache.put(key, packages);
+                }
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Drop all cached entries depending on a given profile document.
+     *
+     * @param profile the modified profile document
+     */
+    public void invalidate(DocumentReference profile)
+    {
+        synchronized (cache) {
+            generation++;
+            for (Iterator<ProfilePackages> it = cache.values().iterator(); it.hasNext();) {
+                if (it.next().getProfiles().contains(profile)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#getName()
+     */
+    public String getName()
+    {
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#getEvents()
+     */
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#onEvent(Event, Object, Object)
+     */
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (source instanceof DocumentModelBridge) {
+            invalidate(((DocumentModelBridge) source).getDocumentReference());
+        }
+    }
+
+    /**
+     * Cache key, the profile and the base URL of its packages.
+     */
+    private static final class Key
+    {
+        private final DocumentReference profile;
+
+        private final String baseURL;
+
+        Key(DocumentReference profile, String baseURL)
+        {
+            this.profile = profile;
+            this.baseURL = baseURL;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return profile.equals(k.profile) && (baseURL == null ? k.baseURL == null : baseURL.equals(k.baseURL));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return profile.hashCode() * 31 + (baseURL == null ? 0 : baseURL.hashCode());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Immutable result of the resolution of the packages of a profile, including the profiles it includes.
+ */
+public class ProfilePackages
+{
+    private final List<URL> pkgUrls;
+
+    private final List<URL> dpkgUrls;
+
+    private final List<String> groupIds;
+
+    private final Set<DocumentReference> profiles;
+
+    public ProfilePackages(Collection<URL> pkgUrls, Collection<URL> dpkgUrls, List<String> groupIds,
+        Collection<DocumentReference> profiles)
+    {
+        this.pkgUrls = Collections.unmodifiableList(new ArrayList<URL>(pkgUrls));
+        this.dpkgUrls = Collections.unmodifiableList(new ArrayList<URL>(dpkgUrls));
+        this.groupIds = Collections.unmodifiableList(new ArrayList<String>(groupIds));
+        this.profiles = Collections.unmodifiableSet(new HashSet<DocumentReference>(profiles));
+    }
+
+    /**
+     * @return the URLs of the release packages
+     */
+    public List<URL> getPackageURLs()
+    {
+        return pkgUrls;
+    }
+
+    /**
+     * @return the URLs of the SNAPSHOT packages
+     */
+    public List<URL> getDebugPackageURLs()
+    {
+        return dpkgUrls;
+    }
+
+    /**
+     * @return the distinct groupIds of all packages, in profile order
+     */
+    public List<String> getGroupIds()
+    {
+        return groupIds;
+    }
+
+    /**
+     * @return the profile documents this result depends on
+     */
+    public Set<DocumentReference> getProfiles()
+    {
+        return profiles;
+    }
+}
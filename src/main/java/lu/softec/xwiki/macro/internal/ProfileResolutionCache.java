@@ -0,0 +1,227 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Short-lived bounded cache, across requests, of the admin status of the users and of the profile chosen for users
+ * that are not admins. The whole cache is dropped as soon as a document it may depend on is created, updated or
+ * deleted: a profile, a profile class, or a user, group or global rights document. Beyond its maximum size, the least
+ * recently used entries are evicted.
+ */
+public class ProfileResolutionCache implements EventListener
+{
+    private static final String NAME = "ClassRunnerProfileResolutionCache";
+
+    private static final List<Event> EVENTS = Arrays.<Event> asList(new DocumentCreatedEvent(),
+        new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+
+    /**
+     * The maximum number of entries of each kind.
+     */
+    private static final int MAX_ENTRIES = 10000;
+
+    /**
+     * The spaces of the documents the cached values depend on: the profiles, the profile classes, and the users,
+     * groups and global rights.
+     */
+    private static final Set<String> SPACES =
+        new HashSet<String>(Arrays.asList("ClassRunnerData", "ClassRunnerCode", "XWiki"));
+
+    private final Map<String, Cached> admins = newMap();
+
+    private final Map<String, Cached> profiles = newMap();
+
+    /**
+     * Incremented on each invalidation, to avoid caching a result resolved concurrently with a change. Guarded by
+     * this cache, like the maps.
+     */
+    private long generation;
+
+    private final long ttl;
+
+    /**
+     * A cached value, with its expiration time.
+     */
+    private static final class Cached
+    {
+        private final Object value;
+
+        private final long expires;
+
+        Cached(Object value, long expires)
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param ttl the time to live of the entries, in milliseconds
+     */
+    public ProfileResolutionCache(long ttl)
+    {
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return a map of entries evicted beyond the maximum number of entries, least recently used first
+     */
+    private static Map<String, Cached> newMap()
+    {
+        return new LinkedHashMap<String, Cached>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * @return the current generation, to be given back when putting a value resolved after this call
+     */
+    public synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * @param user the wiki and the user
+     * @return the cached admin status of the user, or null if it is not cached
+     */
+    public Boolean getAdmin(String user)
+    {
+        return (Boolean) get(admins, user);
+    }
+
+    /**
+     * @param user the wiki and the user
+     * @param admin the admin status of the user
+     * @param gen the generation obtained before resolving the status
+     */
+    public void putAdmin(String user, boolean admin, long gen)
+    {
+        put(admins, user, admin, gen);
+    }
+
+    /**
+     * @param user the wiki and the user
+     * @param defaultProfileName the name of the profile requested by the macro
+     * @return the cached profile chosen for the user, or null if it is not cached
+     */
+    public DocumentReference getProfile(String user, String defaultProfileName)
+    {
+        return (DocumentReference) get(profiles, user + '\u0000' + defaultProfileName);
+    }
+
+    /**
+     * @param user the wiki and the user
+     * @param defaultProfileName the name of the profile requested by the macro
+     * @param profile the profile chosen for the user
+     * @param gen the generation obtained before choosing the profile
+     */
+    public void putProfile(String user, String defaultProfileName, DocumentReference profile, long gen)
+    {
+        put(profiles, user + '\u0000' + defaultProfileName, profile, gen);
+    }
+
+    private synchronized Object get(Map<String, Cached> map, String key)
+    {
+        Cached cached = map.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= cached.expires) {
+            map.remove(key);
+            return null;
+        }
+        return cached.value;
+    }
+
+    private synchronized void put(Map<String, Cached> map, String key, Object value, long gen)
+    {
+        if (gen == generation) {
+            map.put(key, new Cached(value, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * Drop all cached entries.
+     */
+    public synchronized void invalidate()
+    {
+        generation++;
+        admins.clear();
+        profiles.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#getName()
+     */
+    public String getName()
+    {
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#getEvents()
+     */
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#onEvent(Event, Object, Object)
+     */
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (source instanceof DocumentModelBridge) {
+            DocumentReference document = ((DocumentModelBridge) source).getDocumentReference();
+            if (document != null && !SPACES.contains(document.getLastSpaceReference().getName())) {
+                return;
+            }
+        }
+        invalidate();
+    }
+}
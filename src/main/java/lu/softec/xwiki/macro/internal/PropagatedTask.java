@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A task running with a copy of the contexts of a request, prepared by {@link ContextPropagator}. Once the task has
+ * completed, the changes it made to its {@link DetachedServletResponse} are replayed on the response of the request
+ * by the first call to one of the get methods, which must therefore be called by the thread processing the request.
+ * The changes are lost when the task is abandoned or cancelled.
+ *
+ * @param <T> the result of the task
+ */
+public class PropagatedTask<T> extends FutureTask<T>
+{
+    private final DetachedServletResponse detachedResponse;
+
+    private final HttpServletResponse response;
+
+    private final AtomicBoolean replayed = new AtomicBoolean();
+
+    /**
+     * @param task the task, already running with the copy of the contexts
+     * @param detachedResponse the response given to the task, or null if there is none
+     * @param response the response of the request, or null if there is none
+     */
+    public PropagatedTask(Callable<T> task, DetachedServletResponse detachedResponse, HttpServletResponse response)
+    {
+        super(task);
+        this.detachedResponse = detachedResponse;
+        this.response = response;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException
+    {
+        try {
+            return super.get();
+        } finally {
+            replay();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        try {
+            return super.get(timeout, unit);
+        } finally {
+            replay();
+        }
+    }
+
+    /**
+     * Replay the changes made to the detached response on the response of the request, once the task has completed.
+     *
+     * @throws ExecutionException if the changes could not be applied to the response
+     */
+    private void replay() throws ExecutionException
+    {
+        if (this.detachedResponse == null || !isDone() || isCancelled() || !this.replayed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.detachedResponse.replay(this.response);
+        } catch (IOException e) {
+            throw new ExecutionException("Failed to apply the changes of the task to the response", e);
+        } catch (IllegalStateException e) {
+            throw new ExecutionException("Failed to apply the changes of the task to the response", e);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Bounded LRU cache of the blocks rendered by the macro, for invocations that opt in with a cache duration.
+ * <p>
+ * An expired entry is still served during another period of the same duration, while the first request seeing it
+ * expired renders the class again and replaces it. Blocks are cloned in and out, since the macro transformation
+ * modifies the blocks it inserts in the document.
+ */
+public class RenderedOutputCache
+{
+    private final Map<Key, CachedOutput> entries;
+
+    /**
+     * @param maxEntries the maximum number of entries kept in the cache
+     */
+    public RenderedOutputCache(final int maxEntries)
+    {
+        entries = new LinkedHashMap<Key, CachedOutput>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedOutput> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Retrieve cached blocks. When null is returned, the caller is expected to render the blocks and to either
+     * {@link #put} them or {@link #release} the key.
+     *
+     * @param key the invocation key
+     * @return a copy of the cached blocks, or null if they should be rendered by the caller
+     */
+    public List<Block> get(Key key)
+    {
+        CachedOutput entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now < entry.expires || (now < entry.staleUntil && !entry.refreshing.compareAndSet(false, true))) {
+            return cloneBlocks(entry.blocks);
+        }
+        return null;
+    }
+
+    /**
+     * Retrieve cached blocks, even expired, as long as they are within their stale period. Used when the class could
+     * not be run.
+     *
+     * @param key the invocation key
+     * @return a copy of the cached blocks, or null if there are none
+     */
+    public List<Block> getStale(Key key)
+    {
+        CachedOutput entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null || System.currentTimeMillis() >= entry.staleUntil) {
+            return null;
+        }
+        return cloneBlocks(entry.blocks);
+    }
+
+    /**
+     * Store freshly rendered blocks.
+     *
+     * @param key the invocation key
+     * @param blocks the rendered blocks
+     * @param ttl the duration in milliseconds during which the blocks are fresh
+     */
+    public void put(Key key, List<Block> blocks, long ttl)
+    {
+        long now = System.currentTimeMillis();
+        CachedOutput entry = new CachedOutput(cloneBlocks(blocks), now + ttl, now + 2 * ttl);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Allow another request to refresh an expired entry, after a failed rendering.
+     *
+     * @param key the invocation key
+     */
+    public void release(Key key)
+    {
+        CachedOutput entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    /**
+     * @param blocks some blocks
+     * @return a deep copy of the blocks
+     */
+    public static List<Block> cloneBlocks(List<Block> blocks)
+    {
+        List<Block> result = new ArrayList<Block>(blocks.size());
+        for (Block block : blocks) {
+            result.add(block.clone());
+        }
+        return result;
+    }
+
+    private static final class CachedOutput
+    {
+        private final List<Block> blocks;
+
+        private final long expires;
+
+        private final long staleUntil;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CachedOutput(List<Block> blocks, long expires, long staleUntil)
+        {
+            this.blocks = blocks;
+            this.expires = expires;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    /**
+     * Identify an invocation of the macro. The class loader is weakly referenced and compared by identity, so entries
+     * of a replaced loader simply stop matching and age out of the cache.
+     */
+    public static final class Key
+    {
+        private final String className;
+
+        private final WeakReference<ClassLoader> loader;
+
+        private final DocumentReference profile;
+
+        private final Map<String, Object> args;
+
+        private final String parserId;
+
+        private final boolean inline;
+
+        private final int hash;
+
+        public Key(String className, ClassLoader loader, DocumentReference profile, Map<String, Object> args,
+            String parserId, boolean inline)
+        {
+            this.className = className;
+            this.loader = new WeakReference<ClassLoader>(loader);
+            this.profile = profile;
+            this.args = (args != null) ? new LinkedHashMap<String, Object>(args) : null;
+            this.parserId = parserId;
+            this.inline = inline;
+
+            int h = className.hashCode();
+            h = h * 31 + System.identityHashCode(loader);
+            h = h * 31 + profile.hashCode();
+            h = h * 31 + (this.args != null ? this.args.hashCode() : 0);
+            h = h * 31 + (parserId != null ? parserId.hashCode() : 0);
+            this.hash = h * 31 + (inline ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            ClassLoader l = loader.get();
+            return hash == k.hash && inline == k.inline && l != null && l == k.loader.get()
+                && className.equals(k.className) && profile.equals(k.profile)
+                && (args == null ? k.args == null : args.equals(k.args))
+                && (parserId == null ? k.parserId == null : parserId.equals(k.parserId));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Registry of the class loaders of release packages, shared by all the profiles, of any wiki, resolving to the same
+ * ordered set of packages. Each profile using a loader is counted, and a loader is dropped from the registry once no
+ * profile uses it anymore, because their packages have changed.
+ * <p>
+ * Loaders are registered under the URLs actually loaded, the local copies of the jars when they are mirrored, and may
+ * also be found by the URLs declared by the profiles, so they are found without localizing these URLs again.
+ */
+public class SharedLoaderRegistry
+{
+    /**
+     * A shared loader, with the profiles using it.
+     */
+    private static final class Shared
+    {
+        private final ClassLoader loader;
+
+        private final Set<String> users = new HashSet<String>();
+
+        Shared(ClassLoader loader)
+        {
+            this.loader = loader;
+        }
+    }
+
+    private final Map<String, Shared> loaders = new HashMap<String, Shared>();
+
+    /**
+     * The key of the loader used by each profile.
+     */
+    private final Map<String, String> users = new HashMap<String, String>();
+
+    /**
+     * The key of the loader of the packages declared with some URLs, by the normalized and ordered declared URLs.
+     */
+    private final Map<String, String> sources = new HashMap<String, String>();
+
+    /**
+     * @param url the URL of a package
+     * @return a normalized form of the URL, identical for URLs only differing by the case of the scheme and host, or
+     *         by an explicit default port
+     */
+    public static String normalize(URL url)
+    {
+        StringBuilder sb = new StringBuilder(url.getProtocol().toLowerCase()).append(':');
+        if (url.getHost() != null && url.getHost().length() > 0) {
+            sb.append("//").append(url.getHost().toLowerCase());
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+                sb.append(':').append(url.getPort());
+            }
+        }
+        return sb.append(url.getFile()).toString();
+    }
+
+    /**
+     * Get the shared loader of a set of packages, and count the profile as one of its users.
+     *
+     * @param key the normalized and ordered URLs of the packages
+     * @param user the profile requesting the loader
+     * @return the shared loader, or null if there is none yet
+     */
+    public synchronized ClassLoader get(String key, String user)
+    {
+        Shared shared = loaders.get(key);
+        if (shared == null) {
+            return null;
+        }
+        use(key, user, shared);
+        return shared.loader;
+    }
+
+    /**
+     * Get the shared loader of a set of packages by their declared URLs, and count the profile as one of its users.
+     *
+     * @param source the normalized and ordered declared URLs of the packages
+     * @param user the profile requesting the loader
+     * @return the shared loader, or null if there is none yet
+     */
+    public synchronized ClassLoader getBySource(String source, String user)
+    {
+        String key = sources.get(source);
+        return (key != null) ? get(key, user) : null;
+    }
+
+    /**
+     * Register a newly built loader, unless another one has been registered meanwhile for the same packages.
+     *
+     * @param key the normalized and ordered URLs of the packages
+     * @param source the normalized and ordered declared URLs of the packages, or null if not known
+     * @param user the profile requesting the loader
+     * @param loader the newly built loader
+     * @return the shared loader, to be used instead of the given one
+     */
+    public synchronized ClassLoader register(String key, String source, String user, ClassLoader loader)
+    {
+        Shared shared = loaders.get(key);
+        if (shared == null) {
+            shared = new Shared(loader);
+            loaders.put(key, shared);
+        }
+        if (source != null) {
+            sources.put(source, key);
+        }
+        use(key, user, shared);
+        return shared.loader;
+    }
+
+    private void use(String key, String user, Shared shared)
+    {
+        String previous = users.put(user, key);
+        if (previous != null && !previous.equals(key)) {
+            Shared old = loaders.get(previous);
+            if (old != null) {
+                old.users.remove(user);
+                if (old.users.isEmpty()) {
+                    loaders.remove(previous);
+                    sources.values().removeAll(Collections.singleton(previous));
+                }
+            }
+        }
+        shared.users.add(user);
+    }
+
+    /**
+     * Drop an evicted loader from the registry.
+     *
+     * @param loader the evicted loader
+     */
+    public synchronized void remove(ClassLoader loader)
+    {
+        for (Iterator<Map.Entry<String, Shared>> it = loaders.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Shared> entry = it.next();
+            if (entry.getValue().loader == loader) {
+                users.keySet().removeAll(entry.getValue().users);
+                sources.values().removeAll(Collections.singleton(entry.getKey()));
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of loaders currently shared
+     */
+    public synchronized int size()
+    {
+        return loaders.size();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesce concurrent computations of the same key: the first caller computes the value in its own thread, while the
+ * others wait for its result instead of computing it again.
+ *
+ * @param <V> the type of the computed values
+ */
+public class SingleFlight<V>
+{
+    private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    /**
+     * Compute a value, or wait for the computation of the same key already in progress.
+     *
+     * @param key the key of the computation
+     * @param task the computation, only called if none is in progress for that key
+     * @param timeout the maximum time to wait for a computation in progress, in milliseconds
+     * @return the computed value
+     * @throws Exception the failure of the computation, or a {@link java.util.concurrent.TimeoutException} if the
+     *             computation in progress has not completed in time
+     */
+    public V get(String key, Callable<V> task, long timeout) throws Exception
+    {
+        FutureTask<V> future = new FutureTask<V>(task);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing == null) {
+            try {
+                future.run();
+            } finally {
+                inFlight.remove(key, future);
+            }
+            existing = future;
+        }
+
+        try {
+            return existing.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
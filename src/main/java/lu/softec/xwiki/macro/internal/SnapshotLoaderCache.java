@@ -0,0 +1,272 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lu.softec.xwiki.classloader.ClassLoaderCache;
+
+/**
+ * Bounded LRU cache of the class loaders of profiles having SNAPSHOT packages. A new loader is only built when one of
+ * the SNAPSHOT packages has actually changed, according to its ETag or last modification time, or to the modification
+ * time of its files when it is a local directory. For each set of packages, the packages are checked at most once per
+ * check interval, and by a single request at a time; other requests keep using the current loader meanwhile.
+ * <p>
+ * When a SNAPSHOT package cannot be checked, like a remote exploded directory, the loader is requested again from the
+ * factory, as a reloadable loader, at most once per check interval. The loaders replaced or dropped from the cache are
+ * kept until {@link #takeReplaced()}, so they could be evicted from the other caches.
+ */
+public class SnapshotLoaderCache
+{
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private static final int READ_TIMEOUT = 5000;
+
+    private final Map<String, Loader> loaders;
+
+    private final long checkInterval;
+
+    /**
+     * The loaders replaced or dropped since the last call to {@link #takeReplaced()}, guarded by {@link #loaders}.
+     */
+    private final List<ClassLoader> replaced = new ArrayList<ClassLoader>();
+
+    /**
+     * A class loader, with the state of the SNAPSHOT packages it has been built from.
+     */
+    private static final class Loader
+    {
+        private final ClassLoader loader;
+
+        private final ClassLoader parent;
+
+        private final String signature;
+
+        private volatile long lastCheck;
+
+        private final AtomicBoolean checking = new AtomicBoolean();
+
+        Loader(ClassLoader loader, ClassLoader parent, String signature, long lastCheck)
+        {
+            this.loader = loader;
+            this.parent = parent;
+            this.signature = signature;
+            this.lastCheck = lastCheck;
+        }
+    }
+
+    /**
+     * @param maxEntries the maximum number of loaders kept in the cache
+     * @param checkInterval the minimum delay between two checks of the same packages, in milliseconds
+     */
+    public SnapshotLoaderCache(final int maxEntries, long checkInterval)
+    {
+        this.checkInterval = checkInterval;
+        loaders = new LinkedHashMap<String, Loader>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Loader> eldest)
+            {
+                if (size() > maxEntries) {
+                    replaced.add(eldest.getValue().loader);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the class loader of a set of packages, building a new one only when the SNAPSHOT packages have changed.
+     *
+     * @param urls the URLs of all the packages
+     * @param snapshotUrls the URLs of the SNAPSHOT packages, which are also part of urls
+     * @param parent the parent of the class loader
+     * @param loaderf the factory building the loaders
+     * @return the class loader
+     */
+    public ClassLoader getClassLoader(URL[] urls, URL[] snapshotUrls, ClassLoader parent, ClassLoaderCache loaderf)
+    {
+        // URL.equals() resolves host names, so URLs are compared as strings
+        StringBuilder sb = new StringBuilder();
+        for (URL url : urls) {
+            sb.append(url.toExternalForm()).append(' ');
+        }
+        String key = sb.toString();
+
+        Loader current;
+        synchronized (loaders) {
+            current = loaders.get(key);
+        }
+
+        long now = System.currentTimeMillis();
+        String signature;
+        if (current != null && current.parent == parent) {
+            if (now - current.lastCheck < checkInterval || !current.checking.compareAndSet(false, true)) {
+                return current.loader;
+            }
+            try {
+                signature = getSignature(snapshotUrls);
+                current.lastCheck = now;
+                if (signature != null && signature.equals(current.signature)) {
+                    return current.loader;
+                }
+            } finally {
+                current.checking.set(false);
+            }
+        } else {
+            signature = getSignature(snapshotUrls);
+        }
+
+        // When the packages could not be checked, the factory decides whether the loader should be rebuilt
+        Loader loader = new Loader(loaderf.getURLClassLoader(urls, parent, true), parent, signature, now);
+        synchronized (loaders) {
+            Loader previous = loaders.put(key, loader);
+            if (previous != null && previous.loader != loader.loader) {
+                replaced.add(previous.loader);
+            }
+        }
+        return loader.loader;
+    }
+
+    /**
+     * @return the loaders replaced or dropped from the cache since the last call, to be evicted from the other caches
+     */
+    public List<ClassLoader> takeReplaced()
+    {
+        synchronized (loaders) {
+            if (replaced.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<ClassLoader> taken = new ArrayList<ClassLoader>(replaced);
+            replaced.clear();
+            return taken;
+        }
+    }
+
+    /**
+     * Drop an evicted loader from the cache.
+     *
+     * @param loader the evicted loader
+     */
+    public void remove(ClassLoader loader)
+    {
+        synchronized (loaders) {
+            for (Iterator<Loader> it = loaders.values().iterator(); it.hasNext();) {
+                if (it.next().loader == loader) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param urls the URLs of some packages
+     * @return a string changing whenever one of the packages changes, or null if one of them could not be checked
+     */
+    private static String getSignature(URL[] urls)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (URL url : urls) {
+            String state = getState(url);
+            if (state == null) {
+                return null;
+            }
+            sb.append(state).append(' ');
+        }
+        return sb.toString();
+    }
+
+    private static String getState(URL url)
+    {
+        if (url.getProtocol().equals("file")) {
+            try {
+                File file = new File(url.toURI());
+                if (!file.exists()) {
+                    return null;
+                }
+                long[] state = new long[2];
+                getState(file, state);
+                return state[0] + "/" + state[1];
+            } catch (URISyntaxException e) {
+                return null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        if (url.getPath().endsWith("/")) {
+            // A remote directory has no state of its own reflecting the changes of its files
+            return null;
+        }
+
+        try {
+            URLConnection connection = url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                http.setRequestMethod("HEAD");
+                if (http.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    return null;
+                }
+                http.disconnect();
+            }
+            String etag = connection.getHeaderField("ETag");
+            if (etag != null) {
+                return etag;
+            }
+            return connection.getLastModified() + "/" + connection.getContentLength();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Accumulate the latest modification time and the number of the files of a file or directory.
+     *
+     * @param file the file or directory
+     * @param state receives the latest modification time and the number of files
+     */
+    private static void getState(File file, long[] state)
+    {
+        state[0] = Math.max(state[0], file.lastModified());
+        state[1]++;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                getState(child, state);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.parser.Parser;
+
+/**
+ * Writer feeding a parser running in another thread through a bounded pipe, so the output is parsed while it is
+ * produced, without ever being held completely in memory. The parser runs with a copy of the contexts of the
+ * request, like the macros it may encounter expect.
+ */
+public class StreamingParser extends Writer
+{
+    private final PipedWriter pipe;
+
+    private final Future<XDOM> result;
+
+    /**
+     * Start parsing in a thread of the given executor. Must be called in the thread processing the request.
+     *
+     * @param parser the parser of the output
+     * @param executor the executor running the parser
+     * @param propagator provides the copy of the contexts of the request to the parser
+     * @param bufferSize the size of the pipe buffer, in characters
+     * @throws IOException if the pipe could not be created
+     * @throws ExecutionContextException if the execution context could not be cloned
+     * @throws java.util.concurrent.RejectedExecutionException if the executor has no thread available
+     */
+    public StreamingParser(final Parser parser, ExecutorService executor, ContextPropagator propagator,
+        int bufferSize) throws IOException, ExecutionContextException
+    {
+        final PipedReader reader = new PipedReader(bufferSize);
+        PropagatedTask<XDOM> task = propagator.propagate(new Callable<XDOM>()
+        {
+            public XDOM call() throws Exception
+            {
+                try {
+                    return parser.parse(reader);
+                } finally {
+                    reader.close();
+                }
+            }
+        });
+        pipe = new PipedWriter(reader);
+        executor.execute(task);
+        result = task;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+        pipe.write(cbuf, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        pipe.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        pipe.close();
+    }
+
+    /**
+     * Close the output and wait for the parser to complete.
+     *
+     * @return the parsed output
+     * @throws Exception the failure of the parser
+     */
+    public XDOM getResult() throws Exception
+    {
+        close();
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the parser after a failure of the producer.
+     */
+    public void abort()
+    {
+        result.cancel(true);
+        try {
+            pipe.close();
+        } catch (IOException e) {
+            // Ignored, the output is discarded anyway
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.embed.EmbeddableComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.container.Container;
+import org.xwiki.container.servlet.ServletRequest;
+import org.xwiki.container.servlet.ServletResponse;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.EntityReferenceValueProvider;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.macro.Macro;
+import org.xwiki.rendering.parser.Parser;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+import org.xwiki.rendering.transformation.Transformation;
+import org.xwiki.rendering.transformation.TransformationContext;
+
+import lu.softec.xwiki.classloader.ClassLoaderCache;
+import lu.softec.xwiki.macro.ClassRunnerMacroParameters;
+import lu.softec.xwiki.macro.internal.ClassRunnerMacro;
+
+/**
+ * Run the ClassRunner macro end to end, outside of a wiki. The macro and the rendering components are provided by an
+ * embedded component manager, while the wiki, the servlet container, the class loader factory and the configuration
+ * are in-memory stand-ins. Each request gets its own execution context, as in a servlet thread.
+ */
+public class ClassRunnerHarness
+{
+    /** The hint of the macro. */
+    public static final String MACRO = "classrunner";
+
+    private final EmbeddableComponentManager componentManager = new EmbeddableComponentManager();
+
+    private final InMemoryWiki wiki;
+
+    private final StubContainer container;
+
+    private final Execution execution;
+
+    private final ExecutionContextManager executionContextManager;
+
+    private final ClassRunnerMacro macro;
+
+    /**
+     * Create a harness without mirror of the packages, and recording the classes run in a temporary file.
+     *
+     * @param wiki the wiki holding the profiles
+     * @param loaderf the class loader factory
+     * @throws Exception if the components could not be initialized
+     */
+    public ClassRunnerHarness(InMemoryWiki wiki, ClassLoaderCache loaderf) throws Exception
+    {
+        this(wiki, loaderf, getDefaultConfiguration());
+    }
+
+    /**
+     * @param wiki the wiki holding the profiles
+     * @param loaderf the class loader factory
+     * @param configuration the configuration read by the macro when it is initialized
+     * @throws Exception if the components could not be initialized
+     */
+    public ClassRunnerHarness(InMemoryWiki wiki, ClassLoaderCache loaderf, StubConfiguration configuration)
+        throws Exception
+    {
+        this.wiki = wiki;
+        this.componentManager.initialize(getClass().getClassLoader());
+
+        this.container = new StubContainer(this.componentManager);
+        register(Container.class, "default", Stubs.proxy(Container.class, this.container));
+        register(DocumentAccessBridge.class, "default", Stubs.proxy(DocumentAccessBridge.class, wiki));
+        register(EntityReferenceSerializer.class, "default", Stubs.proxy(EntityReferenceSerializer.class, wiki));
+        register(DocumentReferenceResolver.class, "current", Stubs.proxy(DocumentReferenceResolver.class, wiki));
+        register(EntityReferenceValueProvider.class, "current",
+            Stubs.proxy(EntityReferenceValueProvider.class, wiki));
+        register(ClassLoaderCache.class, "default", loaderf);
+        register(ConfigurationSource.class, "xwikiproperties", Stubs.proxy(ConfigurationSource.class, configuration));
+
+        this.execution = this.componentManager.lookup(Execution.class);
+        this.executionContextManager = this.componentManager.lookup(ExecutionContextManager.class);
+        wiki.setExecution(this.execution);
+        wiki.setObservationManager(this.componentManager.lookup(ObservationManager.class));
+
+        this.macro = (ClassRunnerMacro) this.componentManager.lookup(Macro.class, MACRO);
+    }
+
+    /**
+     * @return a configuration without mirror of the packages, recording the classes run in a temporary file
+     * @throws IOException if the temporary file could not be created
+     */
+    public static StubConfiguration getDefaultConfiguration() throws IOException
+    {
+        File hotClasses = File.createTempFile("classrunner-hotclasses", ".properties");
+        hotClasses.deleteOnExit();
+        return new StubConfiguration().with("classrunner.mirror.directory", "")
+            .with("classrunner.warmup.file", hotClasses.getPath());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void register(Class<?> role, String hint, T instance)
+    {
+        DefaultComponentDescriptor<T> descriptor = new DefaultComponentDescriptor<T>();
+        descriptor.setRole((Class<T>) role);
+        descriptor.setRoleHint(hint);
+        this.componentManager.registerComponent(descriptor, instance);
+    }
+
+    /**
+     * @return the macro
+     */
+    public ClassRunnerMacro getMacro()
+    {
+        return this.macro;
+    }
+
+    /**
+     * @return the wiki holding the profiles
+     */
+    public InMemoryWiki getWiki()
+    {
+        return this.wiki;
+    }
+
+    /**
+     * @return the component manager providing the macro and the rendering components
+     */
+    public EmbeddableComponentManager getComponentManager()
+    {
+        return this.componentManager;
+    }
+
+    /**
+     * @return the execution holding the context of the current request
+     */
+    public Execution getExecution()
+    {
+        return this.execution;
+    }
+
+    /**
+     * Start a request in the current thread, without parameters nor cookies.
+     *
+     * @param user the serialized reference of the user of the request
+     * @return the response of the request
+     * @throws Exception if the execution context could not be initialized
+     */
+    public StubHttpResponse beginRequest(String user) throws Exception
+    {
+        return beginRequest(user, new StubHttpRequest());
+    }
+
+    /**
+     * Start a request in the current thread, with a new execution context and XWiki context.
+     *
+     * @param user the serialized reference of the user of the request
+     * @param request the HTTP request
+     * @return the response of the request
+     * @throws Exception if the execution context could not be initialized
+     */
+    public StubHttpResponse beginRequest(String user, StubHttpRequest request) throws Exception
+    {
+        StubHttpResponse response = new StubHttpResponse();
+        this.container.setRequest(new ServletRequest(request.asHttpServletRequest()));
+        this.container.setResponse(new ServletResponse(response.asHttpServletResponse()));
+
+        ExecutionContext context = new ExecutionContext();
+        Map<Object, Object> xcontext = new Hashtable<Object, Object>();
+        xcontext.put(InMemoryWiki.USER_KEY, user);
+        xcontext.put(InMemoryWiki.DOCUMENT_KEY, new DocumentReference(this.wiki.getWiki(), "Main", "WebHome"));
+        context.setProperty(InMemoryWiki.XWIKICONTEXT, xcontext);
+        this.executionContextManager.initialize(context);
+        this.execution.setContext(context);
+        return response;
+    }
+
+    /**
+     * End the request of the current thread.
+     */
+    public void endRequest()
+    {
+        this.execution.removeContext();
+        this.container.removeRequest();
+        this.container.removeResponse();
+    }
+
+    /**
+     * Execute the macro once in the current request.
+     *
+     * @param parameters the macro parameters
+     * @param inline true to execute the macro inline
+     * @return the blocks produced by the macro
+     * @throws Exception if the macro failed
+     */
+    public List<Block> execute(ClassRunnerMacroParameters parameters, boolean inline) throws Exception
+    {
+        MacroBlock block = new MacroBlock(MACRO, Collections.<String, String>emptyMap(), inline);
+        XDOM xdom = new XDOM(Collections.<Block>singletonList(block));
+        MacroTransformationContext context = new MacroTransformationContext();
+        context.setCurrentMacroBlock(block);
+        context.setXDOM(xdom);
+        context.setInline(inline);
+        context.setSyntax(Syntax.XWIKI_2_0);
+        return this.macro.execute(parameters, null, context);
+    }
+
+    /**
+     * Render a page in the current request: parse it with the xwiki/2.0 syntax, then run the ClassRunner parallel
+     * transformation and the macro transformation, as the wiki does.
+     *
+     * @param content the content of the page
+     * @return the transformed page
+     * @throws Exception if the page could not be parsed or transformed
+     */
+    public XDOM render(String content) throws Exception
+    {
+        Parser parser = this.componentManager.lookup(Parser.class, Syntax.XWIKI_2_0.toIdString());
+        XDOM xdom = parser.parse(new StringReader(content));
+        for (String hint : new String[] {MACRO, "macro"}) {
+            Transformation transformation = this.componentManager.lookup(Transformation.class, hint);
+            transformation.transform(xdom, new TransformationContext(xdom, Syntax.XWIKI_2_0));
+        }
+        return xdom;
+    }
+}
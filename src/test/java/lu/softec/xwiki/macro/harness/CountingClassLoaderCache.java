@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.harness;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lu.softec.xwiki.classloader.ClassLoaderCache;
+
+/**
+ * Class loader factory building a new loader on each call, as the real cache does on a miss, and counting them.
+ */
+public class CountingClassLoaderCache
+{
+    private final AtomicInteger builds = new AtomicInteger();
+
+    private final long buildDelay;
+
+    /**
+     * Create a factory building its loaders immediately.
+     */
+    public CountingClassLoaderCache()
+    {
+        this(0);
+    }
+
+    /**
+     * @param buildDelay the time spent building each loader, in milliseconds, so concurrent requests pile up
+     */
+    public CountingClassLoaderCache(long buildDelay)
+    {
+        this.buildDelay = buildDelay;
+    }
+
+    /**
+     * @param urls the URLs of the packages
+     * @param parent the parent of the loader
+     * @param reloadable true for the loaders of SNAPSHOT packages
+     * @return a new loader
+     */
+    public URLClassLoader getURLClassLoader(URL[] urls, ClassLoader parent, boolean reloadable)
+    {
+        this.builds.incrementAndGet();
+        if (this.buildDelay > 0) {
+            try {
+                Thread.sleep(this.buildDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return new URLClassLoader(urls, parent);
+    }
+
+    /**
+     * @return the number of loaders built so far
+     */
+    public int getBuilds()
+    {
+        return this.builds.get();
+    }
+
+    /**
+     * @return this factory as a class loader cache component
+     */
+    public ClassLoaderCache asClassLoaderCache()
+    {
+        return Stubs.proxy(ClassLoaderCache.class, this);
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.harness;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+
+/**
+ * In-memory wiki holding the profile documents read by the macro. It stands in for the document access bridge and
+ * for the reference resolver, serializer and value provider, through {@link Stubs#proxy(Class, Object)}. Like the
+ * real bridge, the current user and document are read from the XWiki context of the current execution context, so
+ * they follow the contexts propagated to other threads.
+ */
+public class InMemoryWiki
+{
+    /** The XWiki context property holding the current user. */
+    public static final String USER_KEY = "user";
+
+    /** The XWiki context property holding the reference of the current document. */
+    public static final String DOCUMENT_KEY = "harness.document";
+
+    /** The execution context property holding the XWiki context. */
+    public static final String XWIKICONTEXT = "xwikicontext";
+
+    /** The space of the profiles. */
+    public static final String PROFILE_SPACE = "ClassRunnerData";
+
+    /** The name of the default profile. */
+    public static final String DEFAULT_PROFILE = "ClassRunnerData";
+
+    private static final String CODESPACE = "ClassRunnerCode";
+
+    private static final String GUEST = "XWiki.XWikiGuest";
+
+    private final String wiki;
+
+    private final String packageClass;
+
+    private final String includeClass;
+
+    /**
+     * The objects of each document, by serialized document reference and class reference.
+     */
+    private final Map<String, Map<String, List<Map<String, String>>>> documents =
+        new ConcurrentHashMap<String, Map<String, List<Map<String, String>>>>();
+
+    private final Set<String> admins = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile Execution execution;
+
+    private volatile ObservationManager observationManager;
+
+    /**
+     * @param wiki the name of the wiki, which is also part of the package name of the classes run
+     */
+    public InMemoryWiki(String wiki)
+    {
+        this.wiki = wiki;
+        this.packageClass = serialize(new DocumentReference(wiki, CODESPACE, "JavaPackageClass"));
+        this.includeClass = serialize(new DocumentReference(wiki, CODESPACE, "JavaProfileIncludeClass"));
+    }
+
+    /**
+     * @param execution the execution providing the current user and document
+     */
+    public void setExecution(Execution execution)
+    {
+        this.execution = execution;
+    }
+
+    /**
+     * @param observationManager the observation manager notified of the changes of the profiles
+     */
+    public void setObservationManager(ObservationManager observationManager)
+    {
+        this.observationManager = observationManager;
+    }
+
+    /**
+     * @return the name of the wiki
+     */
+    public String getWiki()
+    {
+        return this.wiki;
+    }
+
+    /**
+     * @param name the name of a profile
+     * @return the reference of the profile document
+     */
+    public DocumentReference getProfileReference(String name)
+    {
+        return new DocumentReference(this.wiki, PROFILE_SPACE, name);
+    }
+
+    /**
+     * Create a profile without any package, or do nothing if it exists.
+     *
+     * @param name the name of the profile
+     */
+    public void createProfile(String name)
+    {
+        getObjects(getProfileReference(name), null);
+    }
+
+    /**
+     * Declare a package in a profile, creating the profile if needed.
+     *
+     * @param name the name of the profile
+     * @param groupId the groupId of the package, which prefixes the name of the classes run
+     * @param artifactId the artifactId of the package
+     * @param version the version of the package, a SNAPSHOT package being checked for changes
+     * @param packaging "jar" for a jar, or anything else for an exploded directory
+     */
+    public void addPackage(String name, String groupId, String artifactId, String version, String packaging)
+    {
+        Map<String, String> object = new ConcurrentHashMap<String, String>();
+        object.put("groupId", groupId);
+        object.put("artifactId", artifactId);
+        object.put("version", version);
+        object.put("packaging", packaging);
+        addObject(getProfileReference(name), this.packageClass, object);
+    }
+
+    /**
+     * Remove a package from a profile. The packages declared after it move up, as when an object is deleted.
+     *
+     * @param name the name of the profile
+     * @param artifactId the artifactId of the package
+     */
+    public void removePackage(String name, String artifactId)
+    {
+        DocumentReference reference = getProfileReference(name);
+        Map<String, List<Map<String, String>>> objects = this.documents.get(serialize(reference));
+        List<Map<String, String>> packages = (objects != null) ? objects.get(this.packageClass) : null;
+        if (packages != null) {
+            for (Map<String, String> object : packages) {
+                if (artifactId.equals(object.get("artifactId")) && packages.remove(object)) {
+                    notify(new DocumentUpdatedEvent(reference), reference);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a profile include the packages of another one, creating the profile if needed.
+     *
+     * @param name the name of the including profile
+     * @param included the name of the included profile
+     * @param baseURL the base URL of the packages of the included profile, or null to keep the current one
+     */
+    public void addInclude(String name, String included, String baseURL)
+    {
+        Map<String, String> object = new ConcurrentHashMap<String, String>();
+        object.put("name", included);
+        object.put("baseURL", (baseURL != null) ? baseURL : "");
+        addObject(getProfileReference(name), this.includeClass, object);
+    }
+
+    /**
+     * Remove all the packages and includes of a profile, keeping the profile.
+     *
+     * @param name the name of the profile
+     */
+    public void clearProfile(String name)
+    {
+        DocumentReference reference = getProfileReference(name);
+        Map<String, List<Map<String, String>>> objects = this.documents.get(serialize(reference));
+        if (objects != null) {
+            objects.clear();
+            notify(new DocumentUpdatedEvent(reference), reference);
+        }
+    }
+
+    /**
+     * @param name the name of the profile to remove
+     */
+    public void removeProfile(String name)
+    {
+        DocumentReference reference = getProfileReference(name);
+        if (this.documents.remove(serialize(reference)) != null) {
+            notify(new DocumentDeletedEvent(reference), reference);
+        }
+    }
+
+    /**
+     * @param user the serialized reference of a user
+     * @param admin true if the user may edit the profiles, and thus select them through the request
+     */
+    public void setAdmin(String user, boolean admin)
+    {
+        if (admin) {
+            this.admins.add(user);
+        } else {
+            this.admins.remove(user);
+        }
+    }
+
+    private void addObject(DocumentReference document, String className, Map<String, String> object)
+    {
+        getObjects(document, className).add(object);
+        notify(new DocumentUpdatedEvent(document), document);
+    }
+
+    private synchronized List<Map<String, String>> getObjects(DocumentReference document, String className)
+    {
+        String key = serialize(document);
+        Map<String, List<Map<String, String>>> objects = this.documents.get(key);
+        if (objects == null) {
+            objects = new ConcurrentHashMap<String, List<Map<String, String>>>();
+            this.documents.put(key, objects);
+            notify(new DocumentCreatedEvent(document), document);
+        }
+        if (className == null) {
+            return null;
+        }
+        List<Map<String, String>> list = objects.get(className);
+        if (list == null) {
+            list = new CopyOnWriteArrayList<Map<String, String>>();
+            objects.put(className, list);
+        }
+        return list;
+    }
+
+    private void notify(Event event, final DocumentReference document)
+    {
+        if (this.observationManager != null) {
+            this.observationManager.notify(event, Stubs.proxy(DocumentModelBridge.class, new Object()
+            {
+                @SuppressWarnings("unused")
+                public DocumentReference getDocumentReference()
+                {
+                    return document;
+                }
+            }), null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object getContextValue(String key)
+    {
+        ExecutionContext context = (this.execution != null) ? this.execution.getContext() : null;
+        Map<Object, Object> xcontext = (context != null) ? (Map<Object, Object>) context.getProperty(XWIKICONTEXT) : null;
+        return (xcontext != null) ? xcontext.get(key) : null;
+    }
+
+    // DocumentAccessBridge
+
+    /**
+     * @param documentReference the serialized reference of a document
+     * @param className the serialized reference of the class of the object
+     * @param objectNumber the number of the object
+     * @param propertyName the name of the property
+     * @return the value of the property, or null if there is no such object
+     */
+    public Object getProperty(String documentReference, String className, int objectNumber, String propertyName)
+    {
+        Map<String, List<Map<String, String>>> objects = this.documents.get(documentReference);
+        List<Map<String, String>> list = (objects != null) ? objects.get(className) : null;
+        if (list == null) {
+            return null;
+        }
+        try {
+            return list.get(objectNumber).get(propertyName);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param document the reference of a document
+     * @return true if the document exists
+     */
+    public boolean exists(DocumentReference document)
+    {
+        return this.documents.containsKey(serialize(document));
+    }
+
+    /**
+     * @param document the serialized reference of a document
+     * @return true if the document exists
+     */
+    public boolean exists(String document)
+    {
+        return this.documents.containsKey(document);
+    }
+
+    /**
+     * @param document the reference of a document
+     * @return true if the current user is an admin
+     */
+    public boolean isDocumentEditable(DocumentReference document)
+    {
+        return this.admins.contains(getCurrentUser());
+    }
+
+    /**
+     * @param document the reference of a document
+     * @return always true
+     */
+    public boolean isDocumentViewable(DocumentReference document)
+    {
+        return true;
+    }
+
+    /**
+     * @return true if the current user is an admin
+     */
+    public boolean hasProgrammingRights()
+    {
+        return this.admins.contains(getCurrentUser());
+    }
+
+    /**
+     * @return the serialized reference of the user of the current XWiki context, or the guest
+     */
+    public String getCurrentUser()
+    {
+        Object user = getContextValue(USER_KEY);
+        return (user != null) ? (String) user : this.wiki + ':' + GUEST;
+    }
+
+    /**
+     * @return the document of the current XWiki context, or the home page
+     */
+    public DocumentReference getCurrentDocumentReference()
+    {
+        Object document = getContextValue(DOCUMENT_KEY);
+        return (document != null) ? (DocumentReference) document : new DocumentReference(this.wiki, "Main", "WebHome");
+    }
+
+    // EntityReferenceSerializer
+
+    /**
+     * @param reference a reference
+     * @param parameters ignored
+     * @return the reference as wiki:space.page
+     */
+    public String serialize(EntityReference reference, Object... parameters)
+    {
+        if (reference == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        EntityReference parent = reference.getParent();
+        if (parent != null) {
+            sb.append(serialize(parent));
+            sb.append((parent.getType() == EntityType.WIKI) ? ':' : '.');
+        }
+        return sb.append(reference.getName()).toString();
+    }
+
+    // DocumentReferenceResolver
+
+    /**
+     * @param representation a reference as [[wiki:]space.]page
+     * @param parameters optionally, the reference providing the missing parts, the current document otherwise
+     * @return the resolved reference
+     */
+    public DocumentReference resolve(String representation, Object... parameters)
+    {
+        EntityReference defaults = (parameters.length > 0 && parameters[0] instanceof EntityReference)
+            ? (EntityReference) parameters[0] : getCurrentDocumentReference();
+        String wiki = this.wiki;
+        String space = getName(defaults, EntityType.SPACE, "Main");
+        String page = getName(defaults, EntityType.DOCUMENT, "WebHome");
+
+        String rest = representation;
+        int colon = rest.indexOf(':');
+        if (colon >= 0) {
+            wiki = rest.substring(0, colon);
+            rest = rest.substring(colon + 1);
+        }
+        int dot = rest.lastIndexOf('.');
+        if (dot >= 0) {
+            space = rest.substring(0, dot);
+            rest = rest.substring(dot + 1);
+        }
+        if (rest.length() > 0) {
+            page = rest;
+        }
+        return new DocumentReference(wiki, space, page);
+    }
+
+    private static String getName(EntityReference reference, EntityType type, String defaultName)
+    {
+        EntityReference extracted = reference.extractReference(type);
+        return (extracted != null) ? extracted.getName() : defaultName;
+    }
+
+    // EntityReferenceValueProvider
+
+    /**
+     * @param type the type of entity
+     * @return the name of the current entity of that type
+     */
+    public String getDefaultValue(EntityType type)
+    {
+        if (type == EntityType.WIKI) {
+            return this.wiki;
+        }
+        return getName(getCurrentDocumentReference(), type, null);
+    }
+}
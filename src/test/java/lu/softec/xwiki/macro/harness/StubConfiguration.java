@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.harness;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Configuration of a harness, standing in for the xwiki.properties configuration source through
+ * {@link Stubs#proxy(Class, Object)}.
+ */
+public class StubConfiguration
+{
+    private final Map<String, Object> properties = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * @param key the name of a property
+     * @param value its value, of the type of the default value the macro reads it with
+     * @return this configuration
+     */
+    public StubConfiguration with(String key, Object value)
+    {
+        this.properties.put(key, value);
+        return this;
+    }
+
+    /**
+     * @param <T> the type of the property
+     * @param key the name of the property
+     * @param defaultValue the value returned when the property is not set
+     * @return the value of the property
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getProperty(String key, T defaultValue)
+    {
+        Object value = this.properties.get(key);
+        return (value != null) ? (T) value : defaultValue;
+    }
+
+    /**
+     * @param <T> the type of the property
+     * @param key the name of the property
+     * @param valueClass the type of the property
+     * @return the value of the property, or null if it is not set
+     */
+    public <T> T getProperty(String key, Class<T> valueClass)
+    {
+        return valueClass.cast(this.properties.get(key));
+    }
+
+    /**
+     * @param <T> the type of the property
+     * @param key the name of the property
+     * @return the value of the property, or null if it is not set
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getProperty(String key)
+    {
+        return (T) this.properties.get(key);
+    }
+
+    /**
+     * @return the names of the properties set
+     */
+    public List<String> getKeys()
+    {
+        return new ArrayList<String>(this.properties.keySet());
+    }
+
+    /**
+     * @param key the name of a property
+     * @return true if the property is set
+     */
+    public boolean containsKey(String key)
+    {
+        return this.properties.containsKey(key);
+    }
+
+    /**
+     * @return true if no property is set
+     */
+    public boolean isEmpty()
+    {
+        return this.properties.isEmpty();
+    }
+}
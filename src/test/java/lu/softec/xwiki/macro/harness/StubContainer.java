@@ -0,0 +1,183 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.harness;
+
+import java.lang.reflect.Constructor;
+import java.util.LinkedList;
+
+import javax.servlet.ServletContext;
+
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.container.ApplicationContext;
+import org.xwiki.container.Request;
+import org.xwiki.container.Response;
+import org.xwiki.container.servlet.ServletApplicationContext;
+
+/**
+ * Servlet container holding the request and response of each thread, standing in for the container component
+ * through {@link Stubs#proxy(Class, Object)}.
+ */
+public class StubContainer
+{
+    private final ApplicationContext applicationContext;
+
+    private final ThreadLocal<LinkedList<Request>> requests = new ThreadLocal<LinkedList<Request>>()
+    {
+        @Override
+        protected LinkedList<Request> initialValue()
+        {
+            return new LinkedList<Request>();
+        }
+    };
+
+    private final ThreadLocal<LinkedList<Response>> responses = new ThreadLocal<LinkedList<Response>>()
+    {
+        @Override
+        protected LinkedList<Response> initialValue()
+        {
+            return new LinkedList<Response>();
+        }
+    };
+
+    /**
+     * @param componentManager the component manager, given to the application context when it requires it
+     * @throws Exception if the servlet application context could not be created
+     */
+    public StubContainer(ComponentManager componentManager) throws Exception
+    {
+        this.applicationContext = newServletApplicationContext(componentManager);
+    }
+
+    /**
+     * The constructor of the servlet application context depends on the platform version, so it is called with the
+     * arguments it requires among a servlet context and the component manager.
+     */
+    private static ApplicationContext newServletApplicationContext(ComponentManager componentManager)
+        throws Exception
+    {
+        ServletContext servletContext = Stubs.proxy(ServletContext.class, new Object());
+        for (Constructor<?> constructor : ServletApplicationContext.class.getConstructors()) {
+            Class<?>[] types = constructor.getParameterTypes();
+            Object[] args = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == ServletContext.class) {
+                    args[i] = servletContext;
+                } else if (types[i] == ComponentManager.class) {
+                    args[i] = componentManager;
+                }
+            }
+            return (ApplicationContext) constructor.newInstance(args);
+        }
+        throw new IllegalStateException("No public constructor for the servlet application context");
+    }
+
+    /**
+     * @return the servlet application context
+     */
+    public ApplicationContext getApplicationContext()
+    {
+        return this.applicationContext;
+    }
+
+    /**
+     * @return the request of the current thread
+     */
+    public Request getRequest()
+    {
+        return this.requests.get().peek();
+    }
+
+    /**
+     * @param request the request of the current thread
+     */
+    public void setRequest(Request request)
+    {
+        LinkedList<Request> stack = this.requests.get();
+        stack.clear();
+        stack.push(request);
+    }
+
+    /**
+     * Forget the request of the current thread.
+     */
+    public void removeRequest()
+    {
+        this.requests.remove();
+    }
+
+    /**
+     * @param request the request pushed for the current thread
+     */
+    public void pushRequest(Request request)
+    {
+        this.requests.get().push(request);
+    }
+
+    /**
+     * Restore the previous request of the current thread.
+     */
+    public void popRequest()
+    {
+        this.requests.get().poll();
+    }
+
+    /**
+     * @return the response of the current thread
+     */
+    public Response getResponse()
+    {
+        return this.responses.get().peek();
+    }
+
+    /**
+     * @param response the response of the current thread
+     */
+    public void setResponse(Response response)
+    {
+        LinkedList<Response> stack = this.responses.get();
+        stack.clear();
+        stack.push(response);
+    }
+
+    /**
+     * Forget the response of the current thread.
+     */
+    public void removeResponse()
+    {
+        this.responses.remove();
+    }
+
+    /**
+     * @param response the response pushed for the current thread
+     */
+    public void pushResponse(Response response)
+    {
+        this.responses.get().push(response);
+    }
+
+    /**
+     * Restore the previous response of the current thread.
+     */
+    public void popResponse()
+    {
+        this.responses.get().poll();
+    }
+}
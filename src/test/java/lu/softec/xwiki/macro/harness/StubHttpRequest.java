@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.harness;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * HTTP request of a harness, with parameters and cookies, standing in for the servlet request through
+ * {@link Stubs#proxy(Class, Object)}.
+ */
+public class StubHttpRequest
+{
+    private final Map<String, String[]> parameters = new HashMap<String, String[]>();
+
+    private final List<Cookie> cookies = new ArrayList<Cookie>();
+
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    /**
+     * @param name the name of a request parameter
+     * @param value its value
+     * @return this request
+     */
+    public StubHttpRequest withParameter(String name, String value)
+    {
+        this.parameters.put(name, new String[] {value});
+        return this;
+    }
+
+    /**
+     * @param name the name of a cookie
+     * @param value its value
+     * @return this request
+     */
+    public StubHttpRequest withCookie(String name, String value)
+    {
+        this.cookies.add(new Cookie(name, value));
+        return this;
+    }
+
+    /**
+     * @return this request as a servlet request
+     */
+    public HttpServletRequest asHttpServletRequest()
+    {
+        return Stubs.proxy(HttpServletRequest.class, this);
+    }
+
+    /**
+     * @param name the name of a parameter
+     * @return its first value, or null if it is missing
+     */
+    public String getParameter(String name)
+    {
+        String[] values = this.parameters.get(name);
+        return (values != null) ? values[0] : null;
+    }
+
+    /**
+     * @param name the name of a parameter
+     * @return its values, or null if it is missing
+     */
+    public String[] getParameterValues(String name)
+    {
+        return this.parameters.get(name);
+    }
+
+    /**
+     * @return the parameters
+     */
+    public Map<String, String[]> getParameterMap()
+    {
+        return Collections.unmodifiableMap(this.parameters);
+    }
+
+    /**
+     * @return the names of the parameters
+     */
+    public Enumeration<String> getParameterNames()
+    {
+        return Collections.enumeration(this.parameters.keySet());
+    }
+
+    /**
+     * @return the cookies, or null if there are none
+     */
+    public Cookie[] getCookies()
+    {
+        return this.cookies.isEmpty() ? null : this.cookies.toArray(new Cookie[0]);
+    }
+
+    /**
+     * @param name the name of an attribute
+     * @return its value
+     */
+    public synchronized Object getAttribute(String name)
+    {
+        return this.attributes.get(name);
+    }
+
+    /**
+     * @param name the name of an attribute
+     * @param value its value
+     */
+    public synchronized void setAttribute(String name, Object value)
+    {
+        this.attributes.put(name, value);
+    }
+
+    /**
+     * @param name the name of the attribute to remove
+     */
+    public synchronized void removeAttribute(String name)
+    {
+        this.attributes.remove(name);
+    }
+
+    /**
+     * @return the names of the attributes
+     */
+    public synchronized Enumeration<String> getAttributeNames()
+    {
+        return Collections.enumeration(new ArrayList<String>(this.attributes.keySet()));
+    }
+
+    /**
+     * @return the request method
+     */
+    public String getMethod()
+    {
+        return "GET";
+    }
+
+    /**
+     * @return the URI of the page being viewed
+     */
+    public String getRequestURI()
+    {
+        return "/xwiki/bin/view/Main/WebHome";
+    }
+
+    /**
+     * @return the URL of the page being viewed
+     */
+    public StringBuffer getRequestURL()
+    {
+        return new StringBuffer("http://localhost:8080").append(getRequestURI());
+    }
+}
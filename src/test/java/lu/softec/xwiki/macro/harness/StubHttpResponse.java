@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.harness;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HTTP response of a harness, recording the cookies it receives, standing in for the servlet response through
+ * {@link Stubs#proxy(Class, Object)}.
+ */
+public class StubHttpResponse
+{
+    private final List<Cookie> cookies = new CopyOnWriteArrayList<Cookie>();
+
+    /**
+     * @return this response as a servlet response
+     */
+    public HttpServletResponse asHttpServletResponse()
+    {
+        return Stubs.proxy(HttpServletResponse.class, this);
+    }
+
+    /**
+     * @param cookie a cookie sent to the client
+     */
+    public void addCookie(Cookie cookie)
+    {
+        this.cookies.add(cookie);
+    }
+
+    /**
+     * @return the cookies sent to the client
+     */
+    public List<Cookie> getCookies()
+    {
+        return this.cookies;
+    }
+
+    /**
+     * @param url an URL
+     * @return the same URL
+     */
+    public String encodeURL(String url)
+    {
+        return url;
+    }
+}
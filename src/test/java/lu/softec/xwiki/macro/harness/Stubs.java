@@ -0,0 +1,169 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.harness;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Build stand-ins of the platform interfaces from plain objects. A call is forwarded to the public method of the
+ * target having the same name and parameters, or else the same name and number of parameters, so the target only
+ * implements what a harness actually needs, whatever the version of the interface. Other calls return an empty value
+ * of their return type.
+ */
+public final class Stubs
+{
+    private Stubs()
+    {
+    }
+
+    /**
+     * Forward the calls of a proxy to its target.
+     */
+    private static final class Forwarder implements InvocationHandler
+    {
+        private static final Method MISSING;
+
+        static {
+            try {
+                MISSING = Object.class.getMethod("toString");
+            } catch (NoSuchMethodException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final Class<?> role;
+
+        private final Object target;
+
+        private final ConcurrentMap<Method, Method> methods = new ConcurrentHashMap<Method, Method>();
+
+        Forwarder(Class<?> role, Object target)
+        {
+            this.role = role;
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                } else if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return this.role.getSimpleName() + " stub of " + this.target;
+            }
+
+            Method forward = this.methods.get(method);
+            if (forward == null) {
+                forward = find(method);
+                this.methods.put(method, forward);
+            }
+            if (forward == MISSING) {
+                return getEmptyValue(method.getReturnType());
+            }
+            try {
+                return forward.invoke(this.target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private Method find(Method method)
+        {
+            Method found = null;
+            try {
+                found = this.target.getClass().getMethod(method.getName(), method.getParameterTypes());
+            } catch (NoSuchMethodException e) {
+                int count = method.getParameterTypes().length;
+                for (Method m : this.target.getClass().getMethods()) {
+                    if (m.getName().equals(method.getName()) && m.getParameterTypes().length == count) {
+                        found = m;
+                        break;
+                    }
+                }
+            }
+            if (found == null) {
+                return MISSING;
+            }
+            // The target may be an anonymous class
+            found.setAccessible(true);
+            return found;
+        }
+    }
+
+    /**
+     * @param <T> the type of the stand-in
+     * @param role the interface to implement
+     * @param target the object implementing the needed methods of the interface
+     * @return a stand-in forwarding its calls to the target
+     */
+    public static <T> T proxy(Class<T> role, Object target)
+    {
+        return role.cast(Proxy.newProxyInstance(role.getClassLoader(), new Class<?>[] {role},
+            new Forwarder(role, target)));
+    }
+
+    /**
+     * @param type the return type of a method
+     * @return the value returned by a method that the target does not implement
+     */
+    static Object getEmptyValue(Class<?> type)
+    {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (type == Enumeration.class) {
+            return Collections.enumeration(Collections.emptyList());
+        } else if (type == Map.class) {
+            return Collections.emptyMap();
+        } else if (type == Set.class) {
+            return Collections.emptySet();
+        } else if (type == List.class || type == Collection.class) {
+            return Collections.emptyList();
+        }
+        return null;
+    }
+}
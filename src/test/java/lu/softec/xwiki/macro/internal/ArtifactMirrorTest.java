@@ -0,0 +1,332 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for {@link ArtifactMirror}, against a local HTTP repository.
+ */
+public class ArtifactMirrorTest
+{
+    private static final byte[] JAR = "the content of the jar".getBytes();
+
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer server;
+
+    private File directory;
+
+    private URL jarUrl;
+
+    /**
+     * The checksum published next to the jar, or null to publish none.
+     */
+    private volatile String checksum;
+
+    /**
+     * The status returned for the jar, other than 200 and 304.
+     */
+    private volatile int failure;
+
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.checksum = sha1(JAR);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/repository/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                serve(exchange);
+            }
+        });
+        this.server.start();
+        this.jarUrl = new URL("http://127.0.0.1:" + this.server.getAddress().getPort()
+            + "/repository/lu/softec/test/1.0/test-1.0.jar");
+
+        this.directory = File.createTempFile("mirror", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.server.stop(0);
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+        byte[] body;
+        int status = 200;
+        if (path.endsWith(".jar.sha1")) {
+            if (this.checksum == null) {
+                status = 404;
+                body = new byte[0];
+            } else {
+                body = (this.checksum + "  test-1.0.jar\n").getBytes();
+            }
+        } else if (this.failure != 0) {
+            this.failures.incrementAndGet();
+            status = this.failure;
+            body = new byte[0];
+        } else if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            this.notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        } else {
+            this.downloads.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            body = JAR;
+        }
+
+        exchange.sendResponseHeaders(status, (body.length > 0) ? body.length : -1);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static String sha1(byte[] content) throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] read(URL url) throws IOException
+    {
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(URL url, byte[] content) throws Exception
+    {
+        OutputStream out = new FileOutputStream(new File(url.toURI()));
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private int countJars()
+    {
+        int count = 0;
+        for (File file : this.directory.listFiles()) {
+            if (file.getName().endsWith(".jar")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void coldDownloadIsStoredUnderItsChecksum() throws Exception
+    {
+        URL local = new ArtifactMirror(this.directory).localize(this.jarUrl);
+
+        Assert.assertEquals("file", local.getProtocol());
+        Assert.assertEquals(new File(this.directory, sha1(JAR) + ".jar").getCanonicalFile(),
+            new File(local.toURI()).getCanonicalFile());
+        Assert.assertArrayEquals(JAR, read(local));
+        Assert.assertEquals(1, this.downloads.get());
+    }
+
+    @Test
+    public void jarIsRevalidatedOncePerRun() throws Exception
+    {
+        ArtifactMirror mirror = new ArtifactMirror(this.directory);
+        URL local = mirror.localize(this.jarUrl);
+
+        Assert.assertEquals(local, mirror.localize(this.jarUrl));
+        Assert.assertEquals(1, this.downloads.get());
+        Assert.assertEquals(0, this.notModified.get());
+    }
+
+    @Test
+    public void warmCacheIsRevalidatedWithItsETag() throws Exception
+    {
+        URL local = new ArtifactMirror(this.directory).localize(this.jarUrl);
+
+        // A new run finds the jar in the index of the mirror
+        Assert.assertEquals(local, new ArtifactMirror(this.directory).localize(this.jarUrl));
+        Assert.assertEquals(1, this.downloads.get());
+        Assert.assertEquals(1, this.notModified.get());
+    }
+
+    @Test
+    public void checksumMismatchFallsBackToTheRemoteUrl() throws Exception
+    {
+        this.checksum = sha1("another content".getBytes());
+
+        Assert.assertEquals(this.jarUrl, new ArtifactMirror(this.directory).localize(this.jarUrl));
+        Assert.assertEquals(0, countJars());
+        Assert.assertFalse(new File(this.directory, "index.properties").exists());
+    }
+
+    @Test
+    public void jarWithoutPublishedChecksumIsMirrored() throws Exception
+    {
+        this.checksum = null;
+
+        URL local = new ArtifactMirror(this.directory).localize(this.jarUrl);
+
+        Assert.assertEquals("file", local.getProtocol());
+        Assert.assertArrayEquals(JAR, read(local));
+    }
+
+    @Test
+    public void jarWithoutPublishedChecksumIsRefusedWhenChecksumsAreRequired() throws Exception
+    {
+        this.checksum = null;
+        ArtifactMirror mirror = new ArtifactMirror(this.directory);
+        mirror.setChecksumRequired(true);
+
+        Assert.assertEquals(this.jarUrl, mirror.localize(this.jarUrl));
+        Assert.assertEquals(0, countJars());
+    }
+
+    @Test
+    public void alteredLocalCopyIsDownloadedAgain() throws Exception
+    {
+        URL local = new ArtifactMirror(this.directory).localize(this.jarUrl);
+        write(local, "malicious content".getBytes());
+
+        // The ETag still matches, but the copy no longer matches its name
+        Assert.assertEquals(local, new ArtifactMirror(this.directory).localize(this.jarUrl));
+        Assert.assertArrayEquals(JAR, read(local));
+        Assert.assertEquals(2, this.downloads.get());
+        Assert.assertEquals(0, this.notModified.get());
+    }
+
+    @Test
+    public void alteredLocalCopyIsNotUsedOffline() throws Exception
+    {
+        URL local = new ArtifactMirror(this.directory).localize(this.jarUrl);
+        write(local, "malicious content".getBytes());
+        this.server.stop(0);
+
+        Assert.assertEquals(this.jarUrl, new ArtifactMirror(this.directory).localize(this.jarUrl));
+        Assert.assertEquals(0, countJars());
+    }
+
+    @Test
+    public void offlineRunUsesTheLocalCopy() throws Exception
+    {
+        URL local = new ArtifactMirror(this.directory).localize(this.jarUrl);
+        this.server.stop(0);
+
+        Assert.assertEquals(local, new ArtifactMirror(this.directory).localize(this.jarUrl));
+    }
+
+    @Test
+    public void failedDownloadsAreRetriedAfterADelay() throws Exception
+    {
+        this.failure = 500;
+        ArtifactMirror mirror = new ArtifactMirror(this.directory, 500, 1000);
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(this.jarUrl, mirror.localize(this.jarUrl));
+        }
+        Assert.assertEquals(1, this.failures.get());
+
+        Thread.sleep(600);
+        this.failure = 0;
+        Assert.assertEquals("file", mirror.localize(this.jarUrl).getProtocol());
+        Assert.assertEquals(1, this.downloads.get());
+    }
+
+    @Test
+    public void retryDelayIsDoubledOnEachFailure() throws Exception
+    {
+        this.failure = 500;
+        ArtifactMirror mirror = new ArtifactMirror(this.directory, 300, 10000);
+
+        mirror.localize(this.jarUrl);
+        Thread.sleep(400);
+        mirror.localize(this.jarUrl);
+        Assert.assertEquals(2, this.failures.get());
+
+        // Still within the doubled delay
+        Thread.sleep(400);
+        mirror.localize(this.jarUrl);
+        Assert.assertEquals(2, this.failures.get());
+    }
+
+    @Test
+    public void onlyHttpJarsAreMirrored() throws Exception
+    {
+        ArtifactMirror mirror = new ArtifactMirror(this.directory);
+        URL file = new URL("file:/packages/test-1.0.jar");
+        URL exploded = new URL(this.jarUrl, "/repository/lu/softec/test/1.0/classes/");
+
+        Assert.assertSame(file, mirror.localize(file));
+        Assert.assertSame(exploded, mirror.localize(exploded));
+        Assert.assertFalse(mirror.isMirrorable(file));
+        Assert.assertFalse(mirror.isMirrorable(exploded));
+        Assert.assertTrue(mirror.isMirrorable(this.jarUrl));
+        Assert.assertEquals(0, this.downloads.get());
+    }
+}
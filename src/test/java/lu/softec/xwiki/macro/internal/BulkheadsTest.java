@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Bulkheads}.
+ */
+public class BulkheadsTest
+{
+    private static final long TIMEOUT = 10000L;
+
+    private Bulkheads bulkheads;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        this.bulkheads = new Bulkheads();
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void runsAreUnlimitedByDefault() throws Exception
+    {
+        this.bulkheads.configure(0, null, 0, null, 0);
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotNull(this.bulkheads.acquire("org.example.First", "Default"));
+        }
+        Assert.assertEquals(0, this.bulkheads.getQueued());
+    }
+
+    @Test
+    public void runsOverTheClassLimitAreRejected() throws Exception
+    {
+        this.bulkheads.configure(1, null, 0, null, 0);
+
+        Bulkheads.Permit permit = this.bulkheads.acquire("org.example.First", "Default");
+        Assert.assertNotNull(permit);
+        Assert.assertNull(this.bulkheads.acquire("org.example.First", "Default"));
+        Assert.assertNotNull(this.bulkheads.acquire("org.example.Second", "Default"));
+        Assert.assertEquals(1, this.bulkheads.getQueued());
+        Assert.assertEquals(1, this.bulkheads.getRejected());
+
+        permit.release();
+        Assert.assertNotNull(this.bulkheads.acquire("org.example.First", "Default"));
+    }
+
+    @Test
+    public void namedLimitsOverrideTheDefaultOnes() throws Exception
+    {
+        this.bulkheads.configure(1, "org.example.First=2, org.example.Second=0", 0, "Other=1", 0);
+
+        Assert.assertNotNull(this.bulkheads.acquire("org.example.First", "Default"));
+        Assert.assertNotNull(this.bulkheads.acquire("org.example.First", "Default"));
+        Assert.assertNull(this.bulkheads.acquire("org.example.First", "Default"));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNotNull(this.bulkheads.acquire("org.example.Second", "Default"));
+        }
+        Assert.assertNotNull(this.bulkheads.acquire("org.example.Third", "Other"));
+        Assert.assertNull(this.bulkheads.acquire("org.example.Fourth", "Other"));
+    }
+
+    @Test
+    public void aRejectedProfileReleasesTheClassPermit() throws Exception
+    {
+        this.bulkheads.configure(1, null, 1, null, 0);
+
+        Assert.assertNotNull(this.bulkheads.acquire("org.example.First", "Default"));
+        Assert.assertNull(this.bulkheads.acquire("org.example.Second", "Default"));
+        Assert.assertNotNull(this.bulkheads.acquire("org.example.Second", "Other"));
+    }
+
+    @Test
+    public void permitsAreOnlyReleasedOnce() throws Exception
+    {
+        this.bulkheads.configure(1, null, 0, null, 0);
+
+        Bulkheads.Permit permit = this.bulkheads.acquire("org.example.First", "Default");
+        permit.release();
+        permit.release();
+        Assert.assertNotNull(this.bulkheads.acquire("org.example.First", "Default"));
+        Assert.assertNull(this.bulkheads.acquire("org.example.First", "Default"));
+    }
+
+    @Test
+    public void waitingRunsGetTheReleasedPermit() throws Exception
+    {
+        this.bulkheads.configure(1, null, 0, null, TIMEOUT);
+
+        final Bulkheads.Permit permit = this.bulkheads.acquire("org.example.First", "Default");
+        Future<Bulkheads.Permit> waiting = this.executor.submit(new Callable<Bulkheads.Permit>()
+        {
+            public Bulkheads.Permit call() throws Exception
+            {
+                return BulkheadsTest.this.bulkheads.acquire("org.example.First", "Default");
+            }
+        });
+        while (this.bulkheads.getQueued() == 0) {
+            Thread.sleep(10);
+        }
+        permit.release();
+
+        Assert.assertNotNull(waiting.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, this.bulkheads.getRejected());
+    }
+
+    @Test
+    public void resetClearsTheCounters() throws Exception
+    {
+        this.bulkheads.configure(1, null, 0, null, 0);
+
+        this.bulkheads.acquire("org.example.First", "Default");
+        this.bulkheads.acquire("org.example.First", "Default");
+        this.bulkheads.reset();
+        Assert.assertEquals(0, this.bulkheads.getQueued());
+        Assert.assertEquals(0, this.bulkheads.getRejected());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ClassIndex}.
+ */
+public class ClassIndexTest
+{
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.directory = File.createTempFile("index", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+    }
+
+    @After
+    public void tearDown()
+    {
+        delete(this.directory);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private URL createDirectory(String name, String className) throws IOException
+    {
+        File root = new File(this.directory, name);
+        File file = new File(root, className.replace('.', '/') + ".class");
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+        return root.toURI().toURL();
+    }
+
+    private URL createJar(String name, String className, String classPath) throws IOException
+    {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (classPath != null) {
+            manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, classPath);
+        }
+        File file = new File(this.directory, name);
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(file), manifest);
+        try {
+            jar.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+            jar.closeEntry();
+        } finally {
+            jar.close();
+        }
+        return file.toURI().toURL();
+    }
+
+    @Test
+    public void indexesTheClassesOfLocalPackages() throws Exception
+    {
+        ClassIndex index = new ClassIndex(new URL[] {createDirectory("classes", "org.example.xwiki.First"),
+            createJar("second.jar", "org.example.xwiki.Second", null)}, 10);
+
+        Assert.assertTrue(index.isComplete());
+        Assert.assertTrue(index.contains("org.example.xwiki.First"));
+        Assert.assertTrue(index.contains("org.example.xwiki.Second"));
+        Assert.assertFalse(index.contains("org.example.xwiki.Third"));
+    }
+
+    @Test
+    public void remoteMissingOrExtendedPackagesMakeTheIndexIncomplete() throws Exception
+    {
+        URL classes = createDirectory("classes", "org.example.xwiki.First");
+
+        Assert.assertFalse(new ClassIndex(new URL[] {classes, new URL("http://localhost/second.jar")}, 10)
+            .isComplete());
+        Assert.assertFalse(new ClassIndex(new URL[] {classes, new File(this.directory, "missing.jar").toURI()
+            .toURL()}, 10).isComplete());
+        Assert.assertFalse(new ClassIndex(new URL[] {classes,
+            createJar("second.jar", "org.example.xwiki.Second", "third.jar")}, 10).isComplete());
+    }
+
+    @Test
+    public void missesOfACompleteIndexAreRememberedForGood() throws Exception
+    {
+        ClassIndex index = new ClassIndex(new URL[] {createDirectory("classes", "org.example.xwiki.First")}, 10, 50);
+
+        Assert.assertFalse(index.isMissing("org.example.xwiki.Missing"));
+        index.addMissing("org.example.xwiki.Missing");
+        Thread.sleep(100);
+        Assert.assertTrue(index.isMissing("org.example.xwiki.Missing"));
+    }
+
+    @Test
+    public void missesOfAnIncompleteIndexExpire() throws Exception
+    {
+        ClassIndex index = new ClassIndex(new URL[] {new URL("http://localhost/first.jar")}, 10, 50);
+
+        index.addMissing("org.example.xwiki.Missing");
+        Assert.assertTrue(index.isMissing("org.example.xwiki.Missing"));
+        Thread.sleep(100);
+        Assert.assertFalse(index.isMissing("org.example.xwiki.Missing"));
+    }
+
+    @Test
+    public void theLeastRecentlyUsedMissesAreEvicted() throws Exception
+    {
+        ClassIndex index = new ClassIndex(new URL[] {createDirectory("classes", "org.example.xwiki.First")}, 2);
+
+        index.addMissing("org.example.xwiki.First");
+        index.addMissing("org.example.xwiki.Second");
+        Assert.assertTrue(index.isMissing("org.example.xwiki.First"));
+        index.addMissing("org.example.xwiki.Third");
+
+        Assert.assertTrue(index.isMissing("org.example.xwiki.First"));
+        Assert.assertFalse(index.isMissing("org.example.xwiki.Second"));
+        Assert.assertTrue(index.isMissing("org.example.xwiki.Third"));
+    }
+}
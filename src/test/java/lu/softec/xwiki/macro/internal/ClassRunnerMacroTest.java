@@ -0,0 +1,411 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.RawBlock;
+import org.xwiki.rendering.block.VerbatimBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import lu.softec.xwiki.macro.ClassRunnerMacroParameters;
+import lu.softec.xwiki.macro.harness.ClassRunnerHarness;
+import lu.softec.xwiki.macro.harness.CountingClassLoaderCache;
+import lu.softec.xwiki.macro.harness.InMemoryWiki;
+import lu.softec.xwiki.macro.harness.StubHttpRequest;
+import lu.softec.xwiki.macro.harness.StubHttpResponse;
+import lu.softec.xwiki.macro.samples.xwiki.BlockingRunner;
+import lu.softec.xwiki.macro.samples.xwiki.CountingRunner;
+import lu.softec.xwiki.macro.samples.xwiki.NotIdempotentRunner;
+import lu.softec.xwiki.macro.samples.xwiki.WriterRunner;
+
+/**
+ * End to end tests of {@link ClassRunnerMacro}, run through the {@link ClassRunnerHarness}.
+ */
+public class ClassRunnerMacroTest
+{
+    private static final String GROUPID = "lu.softec.xwiki.macro.samples";
+
+    private static final String BASEURL = "file:/packages/";
+
+    private static final String USER = "xwiki:XWiki.User";
+
+    private static final String ADMIN = "xwiki:XWiki.Admin";
+
+    private static final long TIMEOUT = 10000L;
+
+    private InMemoryWiki wiki;
+
+    private CountingClassLoaderCache loaderf;
+
+    private ClassRunnerHarness harness;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.wiki = new InMemoryWiki("xwiki");
+        this.wiki.addPackage(InMemoryWiki.DEFAULT_PROFILE, GROUPID, "samples", "1.0", "jar");
+        this.wiki.setAdmin(ADMIN, true);
+        this.loaderf = new CountingClassLoaderCache();
+        this.harness = new ClassRunnerHarness(this.wiki, this.loaderf.asClassLoaderCache());
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown()
+    {
+        BlockingRunner.release.countDown();
+        this.executor.shutdownNow();
+        this.harness.endRequest();
+    }
+
+    private static ClassRunnerMacroParameters getParameters(String className)
+    {
+        ClassRunnerMacroParameters parameters = new ClassRunnerMacroParameters();
+        parameters.setClassName(className);
+        parameters.setBaseURL(BASEURL);
+        return parameters;
+    }
+
+    private static String getWords(List<Block> blocks)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Block block : blocks) {
+            for (WordBlock word : block.getChildrenByType(WordBlock.class, true)) {
+                sb.append(word.getWord());
+            }
+        }
+        return sb.toString();
+    }
+
+    private String run(String className) throws Exception
+    {
+        this.harness.beginRequest(USER);
+        return getWords(this.harness.execute(getParameters(className), false));
+    }
+
+    /**
+     * Use a harness allowing a single run at a time in each profile, and waiting shortly for it.
+     */
+    private void limitRunsPerProfile() throws Exception
+    {
+        this.harness = new ClassRunnerHarness(this.wiki, this.loaderf.asClassLoaderCache(),
+            ClassRunnerHarness.getDefaultConfiguration().with("classrunner.limit.profile", 1)
+                .with("classrunner.limit.wait", 50));
+    }
+
+    /**
+     * Run the {@link BlockingRunner} in another request, and wait for it to hold its permits.
+     */
+    private Future<List<Block>> startBlockingRun() throws Exception
+    {
+        BlockingRunner.started = new CountDownLatch(1);
+        BlockingRunner.release = new CountDownLatch(1);
+        Future<List<Block>> blocked = this.executor.submit(new Callable<List<Block>>()
+        {
+            public List<Block> call() throws Exception
+            {
+                ClassRunnerMacroTest.this.harness.beginRequest(USER);
+                try {
+                    return ClassRunnerMacroTest.this.harness.execute(getParameters("BlockingRunner"), false);
+                } finally {
+                    ClassRunnerMacroTest.this.harness.endRequest();
+                }
+            }
+        });
+        Assert.assertTrue(BlockingRunner.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        return blocked;
+    }
+
+    /**
+     * @param directory the exploded directory of a package, receiving the compiled {@link WriterRunner}
+     */
+    private static void copyWriterRunner(File directory) throws IOException
+    {
+        String name = WriterRunner.class.getName().replace('.', '/') + ".class";
+        File file = new File(directory, name);
+        file.getParentFile().mkdirs();
+        InputStream in = WriterRunner.class.getClassLoader().getResourceAsStream(name);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void runsTheWriterEntryPoint() throws Exception
+    {
+        Assert.assertEquals("Helloxwiki:XWiki.User", run("WriterRunner"));
+    }
+
+    @Test
+    public void runsTheSetContextEntryPoint() throws Exception
+    {
+        Assert.assertEquals("Helloxwiki:XWiki.User", run("ContextRunner"));
+    }
+
+    @Test
+    public void runsTheBlockEntryPoint() throws Exception
+    {
+        Assert.assertEquals("Helloxwiki:XWiki.User", run("BlockRunner"));
+    }
+
+    @Test
+    public void runsTheListenerEntryPoint() throws Exception
+    {
+        Assert.assertEquals("Helloxwiki:XWiki.User", run("ListenerRunner"));
+    }
+
+    @Test
+    public void runsReusableClasses() throws Exception
+    {
+        Assert.assertEquals("Helloxwiki:XWiki.User", run("ReusableRunner"));
+        this.harness.endRequest();
+        Assert.assertEquals("Helloxwiki:XWiki.User", run("ReusableRunner"));
+    }
+
+    @Test
+    public void passesTheRawPropertiesAsArguments() throws Exception
+    {
+        ClassRunnerMacroParameters parameters = getParameters("ArgumentsRunner");
+        parameters.set("first", "1");
+        parameters.set("second", "2");
+        this.harness.beginRequest(USER);
+
+        Assert.assertEquals("first=1second=2", getWords(this.harness.execute(parameters, false)));
+    }
+
+    @Test
+    public void skipsTheParserForVerbatimAndHtmlOutputs() throws Exception
+    {
+        ClassRunnerMacroParameters parameters = getParameters("ArgumentsContextRunner");
+        parameters.set("parser", ClassRunnerMacro.HTML_PARSER);
+        this.harness.beginRequest(USER);
+        List<Block> blocks = this.harness.execute(parameters, false);
+        Assert.assertTrue(blocks.get(0) instanceof RawBlock);
+        Assert.assertEquals("<p>1 arguments</p>", ((RawBlock) blocks.get(0)).getRawContent());
+        this.harness.endRequest();
+
+        parameters = getParameters("WriterRunner");
+        parameters.setParser(ClassRunnerMacro.VERBATIM_PARSER);
+        this.harness.beginRequest(USER);
+        blocks = this.harness.execute(parameters, true);
+        Assert.assertTrue(blocks.get(0) instanceof VerbatimBlock);
+        Assert.assertEquals("Hello **xwiki:XWiki.User**", ((VerbatimBlock) blocks.get(0)).getProtectedString());
+    }
+
+    @Test
+    public void collectsThePackagesOfIncludedProfiles() throws Exception
+    {
+        this.wiki.addInclude(InMemoryWiki.DEFAULT_PROFILE, "Included", null);
+        this.wiki.addPackage("Included", "org.example", "first", "1.0", "jar");
+        this.wiki.addInclude("Included", "Deeper", null);
+        this.wiki.addPackage("Deeper", "org.example", "second", "1.0", "jar");
+
+        Assert.assertEquals("Helloxwiki:XWiki.User", run("WriterRunner"));
+        Assert.assertEquals(1, this.loaderf.getBuilds());
+    }
+
+    @Test
+    public void adminsSelectTheirProfileThroughTheRequest() throws Exception
+    {
+        this.wiki.addPackage("Other", GROUPID, "other", "1.0", "jar");
+
+        StubHttpResponse response =
+            this.harness.beginRequest(ADMIN, new StubHttpRequest().withParameter("clpkg", "Other"));
+        this.harness.execute(getParameters("WriterRunner"), false);
+
+        List<Cookie> cookies = response.getCookies();
+        Assert.assertEquals(1, cookies.size());
+        Assert.assertEquals("Other", cookies.get(0).getValue());
+    }
+
+    @Test
+    public void identicalInvocationsOfARequestGetTheOriginalOutput() throws Exception
+    {
+        this.harness.beginRequest(USER);
+        List<Block> first = this.harness.execute(getParameters("WriterRunner"), false);
+        // The transformation goes on with the returned blocks
+        first.get(0).addChild(new WordBlock("Changed"));
+
+        List<Block> second = this.harness.execute(getParameters("WriterRunner"), false);
+        Assert.assertEquals("Helloxwiki:XWiki.User", getWords(second));
+        Assert.assertNotSame(first.get(0), second.get(0));
+    }
+
+    @Test
+    public void streamsTheOutputWithTheContextsOfTheRequest() throws Exception
+    {
+        ClassRunnerMacroParameters parameters = getParameters("WriterRunner");
+        parameters.setCrStream(true);
+
+        this.harness.beginRequest(USER);
+        Assert.assertEquals("Helloxwiki:XWiki.User", getWords(this.harness.execute(parameters, false)));
+    }
+
+    @Test
+    public void outputOfAClassNotAcceptingAWriterIsTruncated() throws Exception
+    {
+        ClassRunnerMacroParameters parameters = getParameters("StringWriterRunner");
+        parameters.setCrMaxOutput(5);
+
+        this.harness.beginRequest(USER);
+        Assert.assertEquals("Hello", getWords(this.harness.execute(parameters, false)));
+    }
+
+    @Test
+    public void rendersPagesWithSeveralMacros() throws Exception
+    {
+        this.harness.beginRequest(USER);
+        XDOM xdom = this.harness.render("{{classrunner className=\"WriterRunner\" baseURL=\"" + BASEURL + "\"/}}\n\n"
+            + "{{classrunner className=\"BlockRunner\" baseURL=\"" + BASEURL + "\"/}}");
+
+        Assert.assertTrue(xdom.getChildrenByType(MacroBlock.class, true).isEmpty());
+        Assert.assertEquals("Helloxwiki:XWiki.UserHelloxwiki:XWiki.User", getWords(xdom.getChildren()));
+    }
+
+    @Test
+    public void identicalInvocationsOfARequestRunOnce() throws Exception
+    {
+        int runs = CountingRunner.RUNS.get();
+        this.harness.beginRequest(USER);
+        Assert.assertEquals("Run" + (runs + 1), getWords(this.harness.execute(getParameters("CountingRunner"), false)));
+        Assert.assertEquals("Run" + (runs + 1), getWords(this.harness.execute(getParameters("CountingRunner"), false)));
+        this.harness.endRequest();
+
+        // The outputs are only reused within a request
+        Assert.assertEquals("Run" + (runs + 2), run("CountingRunner"));
+    }
+
+    @Test
+    public void notIdempotentClassesRunOnEachInvocation() throws Exception
+    {
+        int runs = NotIdempotentRunner.RUNS.get();
+        this.harness.beginRequest(USER);
+        Assert.assertEquals("Run" + (runs + 1),
+            getWords(this.harness.execute(getParameters("NotIdempotentRunner"), false)));
+        Assert.assertEquals("Run" + (runs + 2),
+            getWords(this.harness.execute(getParameters("NotIdempotentRunner"), false)));
+    }
+
+    @Test
+    public void rejectedRunsRenderTheStaleOutput() throws Exception
+    {
+        limitRunsPerProfile();
+        ClassRunnerMacroParameters parameters = getParameters("WriterRunner");
+        parameters.setCrCache(1);
+        this.harness.beginRequest(USER);
+        this.harness.execute(parameters, false);
+        this.harness.endRequest();
+        // Let the output expire, while staying within its stale period
+        Thread.sleep(1100);
+
+        Future<List<Block>> blocked = startBlockingRun();
+        try {
+            this.harness.beginRequest(USER);
+            Assert.assertEquals("Helloxwiki:XWiki.User", getWords(this.harness.execute(parameters, false)));
+            Assert.assertEquals(1, this.harness.getMacro().getMetrics().getBulkheadRejected());
+        } finally {
+            BlockingRunner.release.countDown();
+        }
+        Assert.assertEquals("Released", getWords(blocked.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void rejectedRunsWithoutStaleOutputFail() throws Exception
+    {
+        limitRunsPerProfile();
+
+        Future<List<Block>> blocked = startBlockingRun();
+        try {
+            this.harness.beginRequest(USER);
+            List<Block> blocks = this.harness.execute(getParameters("WriterRunner"), false);
+            Assert.assertTrue(((RawBlock) blocks.get(0)).getRawContent().contains("Server Internal Error"));
+            Assert.assertEquals(1, this.harness.getMacro().getMetrics().getBulkheadRejected());
+        } finally {
+            BlockingRunner.release.countDown();
+        }
+        Assert.assertEquals("Released", getWords(blocked.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void prefixesTheClassWithTheGroupIdOfThePackageContainingIt() throws Exception
+    {
+        File base = File.createTempFile("classrunner-packages", "");
+        base.delete();
+        copyWriterRunner(new File(base, "classes-1.0"));
+        this.wiki.clearProfile(InMemoryWiki.DEFAULT_PROFILE);
+        this.wiki.addPackage(InMemoryWiki.DEFAULT_PROFILE, "org.example", "other", "1.0", "jar");
+        this.wiki.addPackage(InMemoryWiki.DEFAULT_PROFILE, GROUPID, "classes", "1.0", "directory");
+
+        ClassRunnerMacroParameters parameters = getParameters("WriterRunner");
+        parameters.setBaseURL(base.toURI().toString());
+        this.harness.beginRequest(USER);
+        try {
+            Assert.assertEquals("Helloxwiki:XWiki.User", getWords(this.harness.execute(parameters, false)));
+        } finally {
+            delete(base);
+        }
+    }
+}
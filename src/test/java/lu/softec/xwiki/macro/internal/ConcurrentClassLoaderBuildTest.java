@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+import lu.softec.xwiki.macro.harness.CountingClassLoaderCache;
+
+/**
+ * Stress the class loader build of {@link ClassRunnerMacro} with many simultaneous first requests.
+ */
+public class ConcurrentClassLoaderBuildTest
+{
+    private static final int THREADS = 300;
+
+    private CountingClassLoaderCache loaderf;
+
+    private ClassRunnerMacro macro;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        this.loaderf = new CountingClassLoaderCache(100);
+        this.macro = new ClassRunnerMacro();
+        this.macro.setClassLoaderCache(this.loaderf.asClassLoaderCache());
+        this.executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    private static ProfilePackages getPackages(String... urls) throws Exception
+    {
+        List<URL> pkgUrls = new ArrayList<URL>();
+        for (String url : urls) {
+            pkgUrls.add(new URL(url));
+        }
+        return new ProfilePackages(pkgUrls, Collections.<URL>emptyList(), Collections.<String>emptyList(),
+            Collections.<DocumentReference>emptyList());
+    }
+
+    /**
+     * Request the loader of some packages from all the threads at once.
+     *
+     * @param packages the packages requested by all threads
+     * @param users the number of distinct profiles requesting the packages
+     * @return the loaders received by the threads
+     */
+    private List<ClassLoader> requestAtOnce(final ProfilePackages packages, int users) throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<ClassLoader>> results = new ArrayList<Future<ClassLoader>>();
+        for (int i = 0; i < THREADS; i++) {
+            final String user = "xwiki:XWiki.Profile" + (i % users);
+            results.add(this.executor.submit(new Callable<ClassLoader>()
+            {
+                public ClassLoader call() throws Exception
+                {
+                    start.await();
+                    return ConcurrentClassLoaderBuildTest.this.macro.getClassLoader(packages, user);
+                }
+            }));
+        }
+        start.countDown();
+
+        List<ClassLoader> loaders = new ArrayList<ClassLoader>();
+        for (Future<ClassLoader> result : results) {
+            loaders.add(result.get());
+        }
+        return loaders;
+    }
+
+    @Test
+    public void simultaneousFirstRequestsBuildASingleLoader() throws Exception
+    {
+        List<ClassLoader> loaders = requestAtOnce(getPackages("file:/packages/a.jar", "file:/packages/b.jar"), 1);
+
+        Assert.assertEquals(1, this.loaderf.getBuilds());
+        for (ClassLoader loader : loaders) {
+            Assert.assertSame(loaders.get(0), loader);
+        }
+    }
+
+    @Test
+    public void simultaneousFirstRequestsOfSeveralProfilesBuildASingleLoader() throws Exception
+    {
+        List<ClassLoader> loaders = requestAtOnce(getPackages("file:/packages/a.jar", "file:/packages/b.jar"), 10);
+
+        Assert.assertEquals(1, this.loaderf.getBuilds());
+        for (ClassLoader loader : loaders) {
+            Assert.assertSame(loaders.get(0), loader);
+        }
+    }
+
+    @Test
+    public void laterRequestsReuseTheBuiltLoader() throws Exception
+    {
+        ProfilePackages packages = getPackages("file:/packages/a.jar");
+        List<ClassLoader> loaders = requestAtOnce(packages, 1);
+
+        Assert.assertSame(loaders.get(0), this.macro.getClassLoader(packages, "xwiki:XWiki.Profile0"));
+        Assert.assertEquals(1, this.loaderf.getBuilds());
+    }
+
+    @Test
+    public void differentPackagesBuildDifferentLoaders() throws Exception
+    {
+        ClassLoader first = this.macro.getClassLoader(getPackages("file:/packages/a.jar"), "xwiki:XWiki.Profile0");
+        ClassLoader second = this.macro.getClassLoader(getPackages("file:/packages/b.jar"), "xwiki:XWiki.Profile1");
+
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, this.loaderf.getBuilds());
+        Assert.assertEquals(Arrays.asList(((URLClassLoader) first).getURLs()),
+            Arrays.asList(new URL("file:/packages/a.jar")));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HotClassRecorder}.
+ */
+public class HotClassRecorderTest
+{
+    private static final String PROFILE = "xwiki:ClassRunnerData.Default";
+
+    private static final String BASEURL = "http://127.0.0.1/repository";
+
+    private File directory;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.directory = File.createTempFile("hotclasses", "");
+        this.directory.delete();
+        this.file = new File(new File(this.directory, "classrunner"), "hotclasses.properties");
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.file.delete();
+        this.file.getParentFile().delete();
+        this.directory.delete();
+    }
+
+    private static void record(HotClassRecorder recorder, String className, int times)
+    {
+        for (int i = 0; i < times; i++) {
+            recorder.record(PROFILE, BASEURL, className);
+        }
+    }
+
+    @Test
+    public void mostRunClassesComeFirst()
+    {
+        HotClassRecorder recorder = new HotClassRecorder(null, 10, Long.MAX_VALUE);
+        record(recorder, "org.example.Rare", 1);
+        record(recorder, "org.example.Frequent", 3);
+
+        List<HotClassRecorder.HotClass> hot = recorder.getHotClasses(1);
+        Assert.assertEquals(1, hot.size());
+        Assert.assertEquals("org.example.Frequent", hot.get(0).getClassName());
+        Assert.assertEquals(PROFILE, hot.get(0).getProfile());
+        Assert.assertEquals(BASEURL, hot.get(0).getBaseURL());
+    }
+
+    @Test
+    public void leastRunClassesAreForgottenBeyondTheMaximum()
+    {
+        HotClassRecorder recorder = new HotClassRecorder(null, 4, Long.MAX_VALUE);
+        for (int i = 0; i < 4; i++) {
+            record(recorder, "org.example.Frequent" + i, 10 - i);
+        }
+        record(recorder, "org.example.Rare", 1);
+
+        List<HotClassRecorder.HotClass> hot = recorder.getHotClasses(10);
+        Assert.assertEquals(2, hot.size());
+        Assert.assertEquals("org.example.Frequent0", hot.get(0).getClassName());
+        Assert.assertEquals("org.example.Frequent1", hot.get(1).getClassName());
+    }
+
+    @Test
+    public void savedClassesAreLoadedOnTheNextRun() throws Exception
+    {
+        HotClassRecorder recorder = new HotClassRecorder(this.file, 10, Long.MAX_VALUE);
+        record(recorder, "org.example.Rare", 1);
+        record(recorder, "org.example.Frequent", 2);
+        recorder.save(10);
+
+        Assert.assertTrue(this.file.isFile());
+        List<HotClassRecorder.HotClass> hot = new HotClassRecorder(this.file, 10, Long.MAX_VALUE).getHotClasses(10);
+        Assert.assertEquals(2, hot.size());
+        Assert.assertEquals("org.example.Frequent", hot.get(0).getClassName());
+    }
+
+    @Test
+    public void saveIsDueOncePerInterval() throws Exception
+    {
+        HotClassRecorder recorder = new HotClassRecorder(this.file, 10, 0);
+        Thread.sleep(5);
+        Assert.assertTrue(recorder.isSaveDue());
+
+        recorder = new HotClassRecorder(this.file, 10, 60000L);
+        Assert.assertFalse(recorder.isSaveDue());
+    }
+
+    @Test
+    public void nothingIsSavedWithoutAFile() throws Exception
+    {
+        HotClassRecorder recorder = new HotClassRecorder(null, 10, 0);
+        record(recorder, "org.example.Frequent", 1);
+        recorder.save(10);
+
+        Assert.assertFalse(recorder.isSaveDue());
+    }
+}
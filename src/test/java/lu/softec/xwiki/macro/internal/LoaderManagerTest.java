@@ -0,0 +1,192 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lu.softec.xwiki.classloader.ClassLoaderCache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link LoaderManager}.
+ */
+public class LoaderManagerTest
+{
+    private static final ClassLoader PARENT = LoaderManagerTest.class.getClassLoader();
+
+    private LoaderManager manager;
+
+    private CachingFactory factory;
+
+    private File jar;
+
+    /**
+     * Factory keeping its loaders, like the real cache, unless a reloadable loader is requested.
+     */
+    private static final class CachingFactory implements ClassLoaderCache
+    {
+        private final Map<String, URLClassLoader> loaders = new HashMap<String, URLClassLoader>();
+
+        private final List<Boolean> requests = new ArrayList<Boolean>();
+
+        public synchronized URLClassLoader getURLClassLoader(URL[] urls, ClassLoader parent, boolean reloadable)
+        {
+            requests.add(reloadable);
+            String key = urls[0].toExternalForm();
+            URLClassLoader loader = loaders.get(key);
+            if (loader == null || reloadable) {
+                loader = new URLClassLoader(urls, parent);
+                loaders.put(key, loader);
+            }
+            return loader;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.manager = new LoaderManager(0);
+        this.factory = new CachingFactory();
+        this.manager.setFactory(this.factory);
+
+        this.jar = File.createTempFile("package", ".jar");
+        FileOutputStream out = new FileOutputStream(this.jar);
+        try {
+            out.write(new byte[1000]);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.jar.delete();
+    }
+
+    private URL[] getURLs(String... urls) throws IOException
+    {
+        URL[] result = new URL[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            result[i] = new URL(urls[i]);
+        }
+        return result;
+    }
+
+    @Test
+    public void loadersBeyondTheMaximumAreEvictedLeastRecentlyUsedFirst() throws Exception
+    {
+        this.manager.configure(1, Long.MAX_VALUE);
+        ClassLoader first = this.manager.getURLClassLoader(getURLs("http://127.0.0.1/first.jar"), PARENT, false);
+        Thread.sleep(5);
+        ClassLoader second = this.manager.getURLClassLoader(getURLs("http://127.0.0.1/second.jar"), PARENT, false);
+
+        List<ClassLoader> evicted = this.manager.evict();
+
+        Assert.assertEquals(1, evicted.size());
+        Assert.assertSame(first, evicted.get(0));
+        Assert.assertEquals(1, this.manager.getLoaderCount());
+        Assert.assertSame(second, this.manager.getURLClassLoader(getURLs("http://127.0.0.1/second.jar"), PARENT,
+            false));
+        Assert.assertEquals(1, this.manager.getEvictions());
+    }
+
+    @Test
+    public void idleLoadersAreEvicted() throws Exception
+    {
+        this.manager.configure(Integer.MAX_VALUE, 1);
+        ClassLoader loader = this.manager.getURLClassLoader(getURLs("http://127.0.0.1/first.jar"), PARENT, false);
+        Thread.sleep(5);
+
+        List<ClassLoader> evicted = this.manager.evict();
+
+        Assert.assertEquals(1, evicted.size());
+        Assert.assertSame(loader, evicted.get(0));
+        Assert.assertEquals(0, this.manager.getLoaderCount());
+        Assert.assertEquals(1, this.manager.getEvictedLoaderCount());
+    }
+
+    @Test
+    public void recentlyUsedLoadersAreKept() throws Exception
+    {
+        this.manager = new LoaderManager(60000L);
+        this.manager.setFactory(this.factory);
+        this.manager.configure(0, 0);
+        this.manager.getURLClassLoader(getURLs("http://127.0.0.1/first.jar"), PARENT, false);
+
+        Assert.assertTrue(this.manager.evict().isEmpty());
+    }
+
+    @Test
+    public void retiredLoadersAreEvictedWithinTheLimits() throws Exception
+    {
+        ClassLoader kept = this.manager.getURLClassLoader(getURLs("http://127.0.0.1/first.jar"), PARENT, false);
+        ClassLoader retired = this.manager.getURLClassLoader(getURLs("http://127.0.0.1/second.jar"), PARENT, false);
+        this.manager.retire(retired);
+        Thread.sleep(5);
+
+        List<ClassLoader> evicted = this.manager.evict();
+
+        Assert.assertEquals(1, evicted.size());
+        Assert.assertSame(retired, evicted.get(0));
+        Assert.assertNotSame(kept, evicted.get(0));
+    }
+
+    @Test
+    public void evictedLoaderStillCachedIsRequestedAgainFromTheFactory() throws Exception
+    {
+        this.manager.configure(0, Long.MAX_VALUE);
+        URL[] urls = getURLs("http://127.0.0.1/first.jar");
+        ClassLoader evicted = this.manager.getURLClassLoader(urls, PARENT, false);
+        Thread.sleep(5);
+        Assert.assertSame(evicted, this.manager.evict().get(0));
+
+        ClassLoader loader = this.manager.getURLClassLoader(urls, PARENT, false);
+
+        Assert.assertNotSame(evicted, loader);
+        Assert.assertEquals(3, this.factory.requests.size());
+        Assert.assertEquals(Boolean.TRUE, this.factory.requests.get(2));
+        Assert.assertSame(loader, this.factory.getURLClassLoader(urls, PARENT, false));
+        Assert.assertEquals(1, this.manager.getLoaderCount());
+    }
+
+    @Test
+    public void sizeIsEstimatedForLocalAndRemotePackages() throws Exception
+    {
+        this.manager.getURLClassLoader(new URL[] {this.jar.toURI().toURL()}, PARENT, false);
+        Assert.assertEquals(1000, this.manager.getLoaderSize());
+
+        this.manager.getURLClassLoader(getURLs("http://127.0.0.1/first.jar"), PARENT, false);
+        Assert.assertTrue(this.manager.getLoaderSize() > 1000);
+    }
+}
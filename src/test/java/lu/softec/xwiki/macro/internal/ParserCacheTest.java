@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.rendering.parser.Parser;
+
+import lu.softec.xwiki.macro.harness.Stubs;
+
+/**
+ * Unit tests for {@link ParserCache}.
+ */
+public class ParserCacheTest
+{
+    private ParserCache cache;
+
+    private ComponentManager componentManager;
+
+    /**
+     * Component manager providing a new parser on each lookup.
+     */
+    public static class Parsers
+    {
+        public Parser lookup(Class<?> role, String hint)
+        {
+            return Stubs.proxy(Parser.class, this);
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        this.cache = new ParserCache();
+        this.componentManager = Stubs.proxy(ComponentManager.class, new Parsers());
+    }
+
+    @Test
+    public void parsersAreLookedUpOnce() throws Exception
+    {
+        Parser parser = this.cache.getParser(this.componentManager, "xwiki/2.0");
+
+        Assert.assertSame(parser, this.cache.getParser(this.componentManager, "xwiki/2.0"));
+        Assert.assertNotSame(parser, this.cache.getParser(this.componentManager, "html/4.01"));
+        Assert.assertEquals(1, this.cache.getHits());
+        Assert.assertEquals(2, this.cache.getMisses());
+        Assert.assertEquals(1.0 / 3, this.cache.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void aRegisteredParserReplacesTheCachedOne() throws Exception
+    {
+        Parser parser = this.cache.getParser(this.componentManager, "xwiki/2.0");
+        Parser other = this.cache.getParser(this.componentManager, "html/4.01");
+
+        this.cache.onEvent(new ComponentDescriptorAddedEvent(Parser.class, "xwiki/2.0"), null, null);
+        Assert.assertNotSame(parser, this.cache.getParser(this.componentManager, "xwiki/2.0"));
+        Assert.assertSame(other, this.cache.getParser(this.componentManager, "html/4.01"));
+    }
+
+    @Test
+    public void anUnregisteredParserIsLookedUpAgain() throws Exception
+    {
+        Parser parser = this.cache.getParser(this.componentManager, "xwiki/2.0");
+
+        this.cache.onEvent(new ComponentDescriptorRemovedEvent(Parser.class, "xwiki/2.0"), null, null);
+        Assert.assertNotSame(parser, this.cache.getParser(this.componentManager, "xwiki/2.0"));
+        Assert.assertEquals(2, this.cache.getMisses());
+    }
+
+    @Test
+    public void anEventWithoutHintClearsTheCache() throws Exception
+    {
+        Parser parser = this.cache.getParser(this.componentManager, "xwiki/2.0");
+        Parser other = this.cache.getParser(this.componentManager, "html/4.01");
+
+        this.cache.onEvent(new ComponentDescriptorRemovedEvent(Parser.class), null, null);
+        Assert.assertNotSame(parser, this.cache.getParser(this.componentManager, "xwiki/2.0"));
+        Assert.assertNotSame(other, this.cache.getParser(this.componentManager, "html/4.01"));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+
+import lu.softec.xwiki.macro.harness.InMemoryWiki;
+import lu.softec.xwiki.macro.harness.Stubs;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.EntityReferenceValueProvider;
+import org.xwiki.rendering.macro.MacroExecutionException;
+
+/**
+ * Unit tests for {@link ProfilePackageCache}.
+ */
+public class ProfilePackageCacheTest
+{
+    private static final String BASEURL = "http://127.0.0.1/repository";
+
+    private InMemoryWiki wiki;
+
+    private ProfilePackageCache cache;
+
+    private CountingHelper helper;
+
+    /**
+     * Helper counting the resolutions, and optionally invalidating the cache while resolving.
+     */
+    private final class CountingHelper extends DocumentAccessHelper
+    {
+        private int resolutions;
+
+        private DocumentReference invalidated;
+
+        @SuppressWarnings("unchecked")
+        CountingHelper()
+        {
+            super(Stubs.proxy(DocumentAccessBridge.class, wiki), Stubs.proxy(EntityReferenceValueProvider.class, wiki),
+                Stubs.proxy(DocumentReferenceResolver.class, wiki), Stubs.proxy(EntityReferenceSerializer.class, wiki));
+        }
+
+        @Override
+        public void getPackageList(DocumentReference profile, String baseURL, Collection<URL> pkgUrls,
+            Collection<URL> dpkgUrls, List<String> groupIds, Collection<DocumentReference> profiles)
+            throws MacroExecutionException
+        {
+            this.resolutions++;
+            super.getPackageList(profile, baseURL, pkgUrls, dpkgUrls, groupIds, profiles);
+            if (this.invalidated != null) {
+                cache.invalidate(this.invalidated);
+            }
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        this.wiki = new InMemoryWiki("xwiki");
+        this.wiki.addPackage("First", "org.example", "first", "1.0", "jar");
+        this.wiki.addInclude("First", "Included", null);
+        this.wiki.addPackage("Included", "org.example", "included", "1.0", "jar");
+        this.wiki.addPackage("Second", "org.example", "second", "1.0", "jar");
+        this.cache = new ProfilePackageCache(2);
+        this.helper = new CountingHelper();
+    }
+
+    private ProfilePackages getPackages(String profile) throws MacroExecutionException
+    {
+        return this.cache.getPackages(this.helper, this.wiki.getProfileReference(profile), BASEURL);
+    }
+
+    @Test
+    public void packagesAreResolvedOnce() throws Exception
+    {
+        ProfilePackages packages = getPackages("First");
+
+        Assert.assertSame(packages, getPackages("First"));
+        Assert.assertEquals(1, this.helper.resolutions);
+        Assert.assertEquals(2, packages.getPackageURLs().size());
+    }
+
+    @Test
+    public void changeOfAnIncludedProfileInvalidatesTheEntry() throws Exception
+    {
+        getPackages("First");
+        getPackages("Second");
+
+        this.cache.invalidate(this.wiki.getProfileReference("Included"));
+        getPackages("First");
+        getPackages("Second");
+
+        Assert.assertEquals(3, this.helper.resolutions);
+    }
+
+    @Test
+    public void resultResolvedDuringAnInvalidationIsNotCached() throws Exception
+    {
+        this.helper.invalidated = this.wiki.getProfileReference("Second");
+        getPackages("First");
+        this.helper.invalidated = null;
+        getPackages("First");
+
+        Assert.assertEquals(2, this.helper.resolutions);
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvictedBeyondTheMaximum() throws Exception
+    {
+        getPackages("First");
+        getPackages("Second");
+        getPackages("First");
+        getPackages("Included");
+
+        getPackages("First");
+        Assert.assertEquals(3, this.helper.resolutions);
+        getPackages("Second");
+        Assert.assertEquals(4, this.helper.resolutions);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import lu.softec.xwiki.macro.harness.Stubs;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Unit tests for {@link ProfileResolutionCache}.
+ */
+public class ProfileResolutionCacheTest
+{
+    private static final String USER = "xwiki\u0000xwiki:XWiki.User";
+
+    private static final DocumentReference PROFILE = new DocumentReference("xwiki", "ClassRunnerData", "Other");
+
+    private ProfileResolutionCache cache;
+
+    @Before
+    public void setUp()
+    {
+        this.cache = new ProfileResolutionCache(60000L);
+        this.cache.putAdmin(USER, true, this.cache.getGeneration());
+        this.cache.putProfile(USER, "Default", PROFILE, this.cache.getGeneration());
+    }
+
+    private void update(String wiki, String space, String page)
+    {
+        final DocumentReference reference = new DocumentReference(wiki, space, page);
+        Object document = new Object()
+        {
+            public DocumentReference getDocumentReference()
+            {
+                return reference;
+            }
+        };
+        this.cache.onEvent(new DocumentUpdatedEvent(), Stubs.proxy(DocumentModelBridge.class, document), null);
+    }
+
+    @Test
+    public void resolutionsAreCached()
+    {
+        Assert.assertEquals(Boolean.TRUE, this.cache.getAdmin(USER));
+        Assert.assertEquals(PROFILE, this.cache.getProfile(USER, "Default"));
+        Assert.assertNull(this.cache.getProfile(USER, "Other"));
+    }
+
+    @Test
+    public void expiredEntriesAreDropped()
+    {
+        this.cache = new ProfileResolutionCache(0);
+        this.cache.putAdmin(USER, true, this.cache.getGeneration());
+
+        Assert.assertNull(this.cache.getAdmin(USER));
+    }
+
+    @Test
+    public void changesOfUnrelatedDocumentsKeepTheCache()
+    {
+        update("xwiki", "Main", "WebHome");
+        update("other", "Blog", "Post");
+
+        Assert.assertEquals(Boolean.TRUE, this.cache.getAdmin(USER));
+        Assert.assertEquals(PROFILE, this.cache.getProfile(USER, "Default"));
+    }
+
+    @Test
+    public void changeOfAProfileDropsTheCache()
+    {
+        update("xwiki", "ClassRunnerData", "Other");
+
+        Assert.assertNull(this.cache.getAdmin(USER));
+        Assert.assertNull(this.cache.getProfile(USER, "Default"));
+    }
+
+    @Test
+    public void changeOfARightsOrGroupDocumentDropsTheCache()
+    {
+        update("xwiki", "XWiki", "XWikiAdminGroup");
+
+        Assert.assertNull(this.cache.getAdmin(USER));
+    }
+
+    @Test
+    public void resultResolvedDuringAnInvalidationIsNotCached()
+    {
+        long gen = this.cache.getGeneration();
+        this.cache.invalidate();
+        this.cache.putAdmin(USER, false, gen);
+
+        Assert.assertNull(this.cache.getAdmin(USER));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvictedBeyondTheMaximum()
+    {
+        for (int i = 0; i < 10000; i++) {
+            this.cache.putAdmin("xwiki\u0000xwiki:XWiki.User" + i, false, this.cache.getGeneration());
+            if (i % 1000 == 0) {
+                Assert.assertEquals(Boolean.TRUE, this.cache.getAdmin(USER));
+            }
+        }
+
+        Assert.assertEquals(Boolean.TRUE, this.cache.getAdmin(USER));
+        Assert.assertNull(this.cache.getAdmin("xwiki\u0000xwiki:XWiki.User0"));
+        Assert.assertEquals(Boolean.FALSE, this.cache.getAdmin("xwiki\u0000xwiki:XWiki.User9999"));
+        Assert.assertEquals(PROFILE, this.cache.getProfile(USER, "Default"));
+    }
+}
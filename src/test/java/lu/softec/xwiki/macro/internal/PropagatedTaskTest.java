@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.Cookie;
+
+import lu.softec.xwiki.macro.harness.StubHttpResponse;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PropagatedTask} and the changes recorded by {@link DetachedServletResponse}.
+ */
+public class PropagatedTaskTest
+{
+    private StubHttpResponse response;
+
+    private DetachedServletResponse detached;
+
+    @Before
+    public void setUp()
+    {
+        this.response = new StubHttpResponse();
+        this.detached = new DetachedServletResponse(this.response.asHttpServletResponse());
+    }
+
+    private PropagatedTask<String> newTask(final CountDownLatch release)
+    {
+        return new PropagatedTask<String>(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                detached.addCookie(new Cookie("profile", "value"));
+                detached.setHeader("X-Profile", "value");
+                release.await();
+                return "done";
+            }
+        }, this.detached, this.response.asHttpServletResponse());
+    }
+
+    @Test
+    public void changesAreReplayedOnceWhenTheResultIsRetrieved() throws Exception
+    {
+        PropagatedTask<String> task = newTask(new CountDownLatch(0));
+        task.run();
+
+        Assert.assertTrue(this.detached.containsHeader("x-profile"));
+        Assert.assertTrue(this.response.getCookies().isEmpty());
+        Assert.assertEquals("done", task.get());
+        Assert.assertEquals(1, this.response.getCookies().size());
+        Assert.assertEquals("profile", this.response.getCookies().get(0).getName());
+
+        task.get();
+        Assert.assertEquals(1, this.response.getCookies().size());
+    }
+
+    @Test
+    public void changesOfAnAbandonedTaskAreNotReplayed() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        PropagatedTask<String> task = newTask(release);
+        Thread thread = new Thread(task);
+        thread.start();
+
+        try {
+            task.get(50, TimeUnit.MILLISECONDS);
+            Assert.fail("The task should still be running");
+        } catch (TimeoutException e) {
+            // Abandoned
+        }
+        task.cancel(false);
+        release.countDown();
+        thread.join();
+
+        Assert.assertTrue(this.response.getCookies().isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void contentCannotBeWritten()
+    {
+        this.detached.getWriter();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.WordBlock;
+
+/**
+ * Unit tests for {@link RenderedOutputCache}.
+ */
+public class RenderedOutputCacheTest
+{
+    private static final DocumentReference PROFILE = new DocumentReference("xwiki", "ClassRunnerData", "Default");
+
+    private RenderedOutputCache cache;
+
+    private ClassLoader loader;
+
+    @Before
+    public void setUp()
+    {
+        this.cache = new RenderedOutputCache(2);
+        this.loader = new URLClassLoader(new URL[0]);
+    }
+
+    private RenderedOutputCache.Key getKey(String className)
+    {
+        return new RenderedOutputCache.Key(className, this.loader, PROFILE, null, null, false);
+    }
+
+    private static List<Block> getBlocks(String word)
+    {
+        return Collections.<Block>singletonList(new WordBlock(word));
+    }
+
+    private static String getWord(List<Block> blocks)
+    {
+        return (blocks != null) ? ((WordBlock) blocks.get(0)).getWord() : null;
+    }
+
+    @Test
+    public void freshOutputIsServedAsACopy()
+    {
+        List<Block> blocks = getBlocks("Hello");
+        this.cache.put(getKey("org.example.First"), blocks, 10000);
+
+        List<Block> cached = this.cache.get(getKey("org.example.First"));
+        Assert.assertEquals("Hello", getWord(cached));
+        Assert.assertNotSame(blocks.get(0), cached.get(0));
+        Assert.assertNotSame(cached.get(0), this.cache.get(getKey("org.example.First")).get(0));
+    }
+
+    @Test
+    public void keysOfAnotherLoaderDoNotMatch()
+    {
+        this.cache.put(getKey("org.example.First"), getBlocks("Hello"), 10000);
+
+        Assert.assertNull(this.cache.get(new RenderedOutputCache.Key("org.example.First",
+            new URLClassLoader(new URL[0]), PROFILE, null, null, false)));
+        Assert.assertNull(this.cache.get(new RenderedOutputCache.Key("org.example.First", this.loader, PROFILE,
+            null, null, true)));
+    }
+
+    @Test
+    public void expiredOutputIsRefreshedByASingleCaller() throws Exception
+    {
+        this.cache.put(getKey("org.example.First"), getBlocks("Hello"), 100);
+        Thread.sleep(120);
+
+        // The first caller refreshes the output, while the others get the stale one
+        Assert.assertNull(this.cache.get(getKey("org.example.First")));
+        Assert.assertEquals("Hello", getWord(this.cache.get(getKey("org.example.First"))));
+
+        // After a failed refresh, the next caller tries again
+        this.cache.release(getKey("org.example.First"));
+        Assert.assertNull(this.cache.get(getKey("org.example.First")));
+
+        this.cache.put(getKey("org.example.First"), getBlocks("Refreshed"), 10000);
+        Assert.assertEquals("Refreshed", getWord(this.cache.get(getKey("org.example.First"))));
+    }
+
+    @Test
+    public void staleOutputIsKeptForTwiceItsTimeToLive() throws Exception
+    {
+        this.cache.put(getKey("org.example.First"), getBlocks("Hello"), 100);
+        Thread.sleep(120);
+        Assert.assertEquals("Hello", getWord(this.cache.getStale(getKey("org.example.First"))));
+
+        Thread.sleep(100);
+        Assert.assertNull(this.cache.getStale(getKey("org.example.First")));
+        Assert.assertNull(this.cache.get(getKey("org.example.First")));
+    }
+
+    @Test
+    public void theLeastRecentlyUsedOutputIsEvicted()
+    {
+        this.cache.put(getKey("org.example.First"), getBlocks("First"), 10000);
+        this.cache.put(getKey("org.example.Second"), getBlocks("Second"), 10000);
+        this.cache.get(getKey("org.example.First"));
+        this.cache.put(getKey("org.example.Third"), getBlocks("Third"), 10000);
+
+        Assert.assertEquals("First", getWord(this.cache.get(getKey("org.example.First"))));
+        Assert.assertNull(this.cache.get(getKey("org.example.Second")));
+        Assert.assertNull(this.cache.getStale(getKey("org.example.Second")));
+        Assert.assertEquals("Third", getWord(this.cache.get(getKey("org.example.Third"))));
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SingleFlight}.
+ */
+public class SingleFlightTest
+{
+    private static final long TIMEOUT = 10000L;
+
+    private SingleFlight<String> flight;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        this.flight = new SingleFlight<String>();
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void computesTheValueInTheCallerThread() throws Exception
+    {
+        final Thread caller = Thread.currentThread();
+        String value = this.flight.get("key", new Callable<String>()
+        {
+            public String call()
+            {
+                return (Thread.currentThread() == caller) ? "value" : "other thread";
+            }
+        }, TIMEOUT);
+
+        Assert.assertEquals("value", value);
+    }
+
+    @Test
+    public void concurrentCallersShareASingleComputation() throws Exception
+    {
+        final CountDownLatch computing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger computations = new AtomicInteger();
+        final Callable<String> task = new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                computations.incrementAndGet();
+                computing.countDown();
+                release.await();
+                return "value";
+            }
+        };
+        Callable<String> caller = new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return SingleFlightTest.this.flight.get("key", task, TIMEOUT);
+            }
+        };
+
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        results.add(this.executor.submit(caller));
+        Assert.assertTrue(computing.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 10; i++) {
+            results.add(this.executor.submit(caller));
+        }
+        // Give the other callers the time to join the computation in progress
+        Thread.sleep(200);
+        release.countDown();
+
+        for (Future<String> result : results) {
+            Assert.assertEquals("value", result.get());
+        }
+        Assert.assertEquals(1, computations.get());
+    }
+
+    @Test
+    public void differentKeysAreComputedIndependently() throws Exception
+    {
+        final AtomicInteger computations = new AtomicInteger();
+        Callable<String> task = new Callable<String>()
+        {
+            public String call()
+            {
+                return "value" + computations.incrementAndGet();
+            }
+        };
+
+        Assert.assertEquals("value1", this.flight.get("key1", task, TIMEOUT));
+        Assert.assertEquals("value2", this.flight.get("key2", task, TIMEOUT));
+    }
+
+    @Test
+    public void completedComputationsAreNotRemembered() throws Exception
+    {
+        final AtomicInteger computations = new AtomicInteger();
+        Callable<String> task = new Callable<String>()
+        {
+            public String call()
+            {
+                return "value" + computations.incrementAndGet();
+            }
+        };
+
+        Assert.assertEquals("value1", this.flight.get("key", task, TIMEOUT));
+        Assert.assertEquals("value2", this.flight.get("key", task, TIMEOUT));
+    }
+
+    @Test
+    public void failuresAreThrownToTheCaller() throws Exception
+    {
+        try {
+            this.flight.get("key", new Callable<String>()
+            {
+                public String call()
+                {
+                    throw new IllegalStateException("failed");
+                }
+            }, TIMEOUT);
+            Assert.fail("The failure should have been thrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("failed", e.getMessage());
+        }
+
+        // A failed computation is not remembered either
+        Assert.assertEquals("value", this.flight.get("key", new Callable<String>()
+        {
+            public String call()
+            {
+                return "value";
+            }
+        }, TIMEOUT));
+    }
+
+    @Test
+    public void waitersTimeOutOnASlowComputation() throws Exception
+    {
+        final CountDownLatch computing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        this.executor.submit(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return SingleFlightTest.this.flight.get("key", new Callable<String>()
+                {
+                    public String call() throws Exception
+                    {
+                        computing.countDown();
+                        release.await();
+                        return "value";
+                    }
+                }, TIMEOUT);
+            }
+        });
+        Assert.assertTrue(computing.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        try {
+            this.flight.get("key", new Callable<String>()
+            {
+                public String call()
+                {
+                    return "not coalesced";
+                }
+            }, 50);
+            Assert.fail("The wait should have timed out");
+        } catch (TimeoutException e) {
+            // Expected
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void timedOutWaitersLeaveTheComputationRunning() throws Exception
+    {
+        final CountDownLatch computing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<String> owner = this.executor.submit(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return SingleFlightTest.this.flight.get("key", new Callable<String>()
+                {
+                    public String call() throws Exception
+                    {
+                        computing.countDown();
+                        release.await();
+                        return "value";
+                    }
+                }, TIMEOUT);
+            }
+        });
+        Assert.assertTrue(computing.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        try {
+            this.flight.get("key", new Callable<String>()
+            {
+                public String call()
+                {
+                    return "not coalesced";
+                }
+            }, 50);
+            Assert.fail("The wait should have timed out");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+        release.countDown();
+
+        Assert.assertEquals("value", owner.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        // Once completed, the next caller computes the value again
+        Assert.assertEquals("recomputed", this.flight.get("key", new Callable<String>()
+        {
+            public String call()
+            {
+                return "recomputed";
+            }
+        }, 50));
+    }
+}
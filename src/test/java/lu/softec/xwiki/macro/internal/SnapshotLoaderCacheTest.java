@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+import lu.softec.xwiki.classloader.ClassLoaderCache;
+import lu.softec.xwiki.macro.harness.CountingClassLoaderCache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SnapshotLoaderCache}.
+ */
+public class SnapshotLoaderCacheTest
+{
+    private static final ClassLoader PARENT = SnapshotLoaderCacheTest.class.getClassLoader();
+
+    private CountingClassLoaderCache factory;
+
+    private ClassLoaderCache loaderf;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.factory = new CountingClassLoaderCache();
+        this.loaderf = this.factory.asClassLoaderCache();
+
+        this.directory = File.createTempFile("snapshot", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    private ClassLoader getClassLoader(SnapshotLoaderCache cache, URL url)
+    {
+        URL[] urls = new URL[] {url};
+        return cache.getClassLoader(urls, urls, PARENT, this.loaderf);
+    }
+
+    @Test
+    public void unchangedDirectoryKeepsItsLoader() throws Exception
+    {
+        SnapshotLoaderCache cache = new SnapshotLoaderCache(4, 0);
+        URL url = this.directory.toURI().toURL();
+
+        ClassLoader first = getClassLoader(cache, url);
+
+        Assert.assertSame(first, getClassLoader(cache, url));
+        Assert.assertEquals(1, this.factory.getBuilds());
+        Assert.assertTrue(cache.takeReplaced().isEmpty());
+    }
+
+    @Test
+    public void changedDirectoryReplacesItsLoader() throws Exception
+    {
+        SnapshotLoaderCache cache = new SnapshotLoaderCache(4, 0);
+        URL url = this.directory.toURI().toURL();
+
+        ClassLoader first = getClassLoader(cache, url);
+        new File(this.directory, "Added.class").createNewFile();
+        ClassLoader second = getClassLoader(cache, url);
+
+        Assert.assertNotSame(first, second);
+        List<ClassLoader> replaced = cache.takeReplaced();
+        Assert.assertEquals(1, replaced.size());
+        Assert.assertSame(first, replaced.get(0));
+        Assert.assertTrue(cache.takeReplaced().isEmpty());
+    }
+
+    @Test
+    public void uncheckablePackageIsReloadedOncePerCheckInterval() throws Exception
+    {
+        // A remote directory has no usable signature
+        URL url = new URL("http://127.0.0.1:1/repository/snapshot/");
+
+        SnapshotLoaderCache cache = new SnapshotLoaderCache(4, 60000L);
+        ClassLoader first = getClassLoader(cache, url);
+        Assert.assertSame(first, getClassLoader(cache, url));
+        Assert.assertEquals(1, this.factory.getBuilds());
+
+        cache = new SnapshotLoaderCache(4, 0);
+        first = getClassLoader(cache, url);
+        ClassLoader second = getClassLoader(cache, url);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(3, this.factory.getBuilds());
+        Assert.assertSame(first, cache.takeReplaced().get(0));
+    }
+
+    @Test
+    public void loadersDroppedFromAFullCacheAreReported() throws Exception
+    {
+        SnapshotLoaderCache cache = new SnapshotLoaderCache(1, 60000L);
+        File other = new File(this.directory, "other");
+        other.mkdirs();
+
+        ClassLoader first = getClassLoader(cache, this.directory.toURI().toURL());
+        getClassLoader(cache, other.toURI().toURL());
+
+        List<ClassLoader> replaced = cache.takeReplaced();
+        Assert.assertEquals(1, replaced.size());
+        Assert.assertSame(first, replaced.get(0));
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.samples.xwiki;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Runnable class with the run(Writer, Map, XWikiContext) entry point. It writes a payload of the size given by its
+ * "size" argument, or else lists its arguments.
+ */
+public class ArgumentsRunner
+{
+    public void run(Writer out, Map<String, Object> args, Map<Object, Object> xcontext) throws IOException
+    {
+        Object size = args.get("size");
+        if (size != null) {
+            out.write(Payload.get(Integer.parseInt(size.toString())));
+        } else {
+            for (Map.Entry<String, Object> arg : args.entrySet()) {
+                out.write(arg.getKey() + "=" + arg.getValue() + "\n");
+            }
+        }
+    }
+}
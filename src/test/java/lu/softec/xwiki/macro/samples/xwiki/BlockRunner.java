@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.samples.xwiki;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.FormatBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.listener.Format;
+
+/**
+ * Runnable class producing its output as blocks, through the List&lt;Block&gt; run(XWikiContext) entry point.
+ */
+public class BlockRunner
+{
+    public List<Block> run(Map<Object, Object> xcontext)
+    {
+        return Arrays.<Block> asList(new ParagraphBlock(Arrays.<Block> asList(new WordBlock("Hello"),
+            new SpaceBlock(), new FormatBlock(Arrays.<Block> asList(new WordBlock(String.valueOf(xcontext
+                .get("user")))), Format.BOLD))));
+    }
+}
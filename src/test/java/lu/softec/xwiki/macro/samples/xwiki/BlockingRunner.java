@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.samples.xwiki;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runnable class blocking until it is released, to hold the permits of its run.
+ */
+public class BlockingRunner
+{
+    /** Counted down when a run starts. */
+    public static volatile CountDownLatch started = new CountDownLatch(0);
+
+    /** Awaited by the runs before they complete. */
+    public static volatile CountDownLatch release = new CountDownLatch(0);
+
+    public void run(Writer out, Map<Object, Object> xcontext) throws IOException, InterruptedException
+    {
+        started.countDown();
+        release.await();
+        out.write("Released");
+    }
+}
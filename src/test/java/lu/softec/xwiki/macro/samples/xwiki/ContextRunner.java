@@ -0,0 +1,50 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.samples.xwiki;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Runnable class with the setContext(XWikiContext) and run(Writer) entry points. The macro still requires the
+ * run(Writer, XWikiContext) entry point, which it does not call when setContext is declared.
+ */
+public class ContextRunner
+{
+    private Map<Object, Object> xcontext;
+
+    public void setContext(Map<Object, Object> xcontext)
+    {
+        this.xcontext = xcontext;
+    }
+
+    public void run(Writer out) throws IOException
+    {
+        out.write("Hello **" + this.xcontext.get("user") + "**");
+    }
+
+    public void run(Writer out, Map<Object, Object> xcontext) throws IOException
+    {
+        setContext(xcontext);
+        run(out);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.samples.xwiki;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.xwiki.rendering.listener.Format;
+import org.xwiki.rendering.listener.Listener;
+
+/**
+ * Runnable class producing its output as listener events, through the run(Listener, XWikiContext) entry point.
+ */
+public class ListenerRunner
+{
+    public void run(Listener listener, Map<Object, Object> xcontext)
+    {
+        Map<String, String> none = Collections.emptyMap();
+        listener.beginParagraph(none);
+        listener.onWord("Hello");
+        listener.onSpace();
+        listener.beginFormat(Format.BOLD, none);
+        listener.onWord(String.valueOf(xcontext.get("user")));
+        listener.endFormat(Format.BOLD, none);
+        listener.endParagraph(none);
+    }
+}
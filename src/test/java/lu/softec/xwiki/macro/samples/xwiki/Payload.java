@@ -0,0 +1,57 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package lu.softec.xwiki.macro.samples.xwiki;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wiki text payloads of a given size, built once.
+ */
+public final class Payload
+{
+    private static final String LINE = "Lorem **ipsum** dolor sit amet, //consectetur// adipiscing elit.\n";
+
+    private static final Map<Integer, String> PAYLOADS = new ConcurrentHashMap<Integer, String>();
+
+    private Payload()
+    {
+    }
+
+    /**
+     * @param size the number of characters of the payload
+     * @return a payload of paragraphs of formatted words
+     */
+    public static String get(int size)
+    {
+        String payload = PAYLOADS.get(size);
+        if (payload == null) {
+            StringBuilder sb = new StringBuilder(size);
+            while (sb.length() < size) {
+                sb.append(LINE);
+            }
+            sb.setLength(size);
+            payload = sb.toString();
+            PAYLOADS.put(size, payload);
+        }
+        return payload;
+    }
+}